@@ -1,7 +1,9 @@
 package edu.vuum.mocca;
 
 //Import the necessary Java synchronization and scheduling classes.
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 
 /**
  * @class PingPongRight
@@ -17,6 +19,11 @@ public class PingPongRight {
 	 */
 	public final static int mMaxIterations = 10;
 
+	/**
+	 * Default number of round trips measured by the benchmark mode.
+	 */
+	public final static int mBenchmarkRoundTrips = 1000000;
+
 	/**
 	 * Latch that will be decremented each time a thread exits.
 	 */
@@ -83,6 +90,175 @@ public class PingPongRight {
 		}
 	}
 
+	/**
+	 * @class Turn
+	 * 
+	 * @brief Common acquire/release API so the benchmark can drive both
+	 *        SimpleSemaphore and java.util.concurrent.Semaphore through
+	 *        the same ping/pong loop.
+	 */
+	public static interface Turn {
+		void acquire();
+
+		void release();
+	}
+
+	/**
+	 * Adapts a SimpleSemaphore to the Turn interface.
+	 */
+	public static Turn turnOf(final SimpleSemaphore semaphore) {
+		return new Turn() {
+			public void acquire() {
+				semaphore.acquireUninterruptibly();
+			}
+
+			public void release() {
+				semaphore.release();
+			}
+		};
+	}
+
+	/**
+	 * Adapts a java.util.concurrent.Semaphore to the Turn interface.
+	 */
+	public static Turn turnOf(final Semaphore semaphore) {
+		return new Turn() {
+			public void acquire() {
+				semaphore.acquireUninterruptibly();
+			}
+
+			public void release() {
+				semaphore.release();
+			}
+		};
+	}
+
+	/**
+	 * @class RoundTripThread
+	 * 
+	 * @brief Silent variant of PlayPingPongThread used by the benchmark
+	 *        mode. When given a latency array it plays the "ping" side
+	 *        and records the System.nanoTime() delta of every round trip
+	 *        (release to the other thread, then reacquire) into it.
+	 */
+	static class RoundTripThread extends Thread {
+		private final Turn mMine;
+		private final Turn mOther;
+		private final int mRoundTrips;
+
+		/**
+		 * Preallocated latency samples (null for the "pong" side).
+		 */
+		private final long[] mLatencies;
+
+		RoundTripThread(Turn mine, Turn other, int roundTrips,
+				long[] latencies) {
+			mMine = mine;
+			mOther = other;
+			mRoundTrips = roundTrips;
+			mLatencies = latencies;
+		}
+
+		public void run() {
+			if (mLatencies == null) {
+				for (int i = 0; i < mRoundTrips; i++) {
+					mMine.acquire();
+					mOther.release();
+				}
+			} else {
+				for (int i = 0; i < mRoundTrips; i++) {
+					long start = System.nanoTime();
+					mOther.release();
+					mMine.acquire();
+					mLatencies[i] = System.nanoTime() - start;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Play roundTrips silent ping/pong exchanges between two threads and
+	 * return the latency of each round trip in nanoseconds. The ping
+	 * Turn must start out unavailable; the pong Turn is released by the
+	 * ping thread to begin each round trip.
+	 */
+	public static long[] measureRoundTrips(Turn ping, Turn pong,
+			int roundTrips) throws InterruptedException {
+		long[] latencies = new long[roundTrips];
+
+		RoundTripThread pingThread = new RoundTripThread(ping, pong,
+				roundTrips, latencies);
+		RoundTripThread pongThread = new RoundTripThread(pong, ping,
+				roundTrips, null);
+
+		pongThread.start();
+		pingThread.start();
+
+		pingThread.join();
+		pongThread.join();
+
+		return latencies;
+	}
+
+	/**
+	 * Sort the latency samples and print their distribution.
+	 */
+	static void printLatencies(String name, long[] latencies) {
+		Arrays.sort(latencies);
+
+		long total = 0;
+		for (long latency : latencies)
+			total += latency;
+
+		System.out.println(String.format(
+				"%-24s n=%d mean=%dns min=%dns p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns",
+				name, latencies.length, total / latencies.length,
+				latencies[0], percentile(latencies, 50.0),
+				percentile(latencies, 90.0), percentile(latencies, 99.0),
+				percentile(latencies, 99.9),
+				latencies[latencies.length - 1]));
+	}
+
+	/**
+	 * Return the given percentile of an already sorted sample array.
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	/**
+	 * Benchmark mode: measure the cross-thread wakeup latency of fair and
+	 * unfair SimpleSemaphores and of java.util.concurrent.Semaphore
+	 * without printing anything per iteration. Each mechanism gets an
+	 * unreported warmup run first so the JIT has compiled the loop.
+	 */
+	public static void benchmark(int roundTrips) throws InterruptedException {
+		int warmup = Math.max(1, roundTrips / 10);
+
+		for (int run = 0; run < 2; run++) {
+			boolean measured = run == 1;
+			int trips = measured ? roundTrips : warmup;
+
+			long[] fair = measureRoundTrips(
+					turnOf(new SimpleSemaphore(0, true)),
+					turnOf(new SimpleSemaphore(0, true)), trips);
+			long[] unfair = measureRoundTrips(
+					turnOf(new SimpleSemaphore(0, false)),
+					turnOf(new SimpleSemaphore(0, false)), trips);
+			long[] jdk = measureRoundTrips(turnOf(new Semaphore(0)),
+					turnOf(new Semaphore(0)), trips);
+
+			if (measured) {
+				System.out.println("Round trip latency over " + trips
+						+ " ping/pong exchanges:");
+				printLatencies("SimpleSemaphore(fair)", fair);
+				printLatencies("SimpleSemaphore(unfair)", unfair);
+				printLatencies("Semaphore", jdk);
+			}
+		}
+	}
+
 	/**
 	 * The method that actually runs the ping/pong program.
 	 */
@@ -111,11 +287,16 @@ public class PingPongRight {
 	}
 
 	/**
-	 * The main() entry point method into PingPongRight program.
+	 * The main() entry point method into PingPongRight program. Passing
+	 * "-b [round-trips]" runs the silent benchmark mode instead.
 	 * 
 	 * @throws InterruptedException
 	 */
 	public static void main(String[] args) throws InterruptedException {
-		process("Ready...Set...Go!", "Ping!  ", " Pong! ", "Done!", mMaxIterations);
+		if (args.length > 0 && args[0].equals("-b"))
+			benchmark(args.length > 1 ? Integer.parseInt(args[1])
+					: mBenchmarkRoundTrips);
+		else
+			process("Ready...Set...Go!", "Ping!  ", " Pong! ", "Done!", mMaxIterations);
 	}
 }
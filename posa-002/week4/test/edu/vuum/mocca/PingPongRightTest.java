@@ -1,10 +1,13 @@
 package edu.vuum.mocca;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.concurrent.Semaphore;
 
 import org.junit.After;
 import org.junit.Before;
@@ -87,6 +90,30 @@ public class PingPongRightTest {
         }
     }
 
+    /*
+     * Test that the benchmark mode records one positive latency per
+     * round trip without printing anything.
+     */
+    @Test(timeout = 30000)
+    public void testMeasureRoundTrips() throws InterruptedException {
+        long[] simple =
+            PingPongRight.measureRoundTrips(PingPongRight.turnOf(new SimpleSemaphore(0, true)),
+                                            PingPongRight.turnOf(new SimpleSemaphore(0, true)),
+                                            1000);
+        long[] jdk =
+            PingPongRight.measureRoundTrips(PingPongRight.turnOf(new Semaphore(0)),
+                                            PingPongRight.turnOf(new Semaphore(0)),
+                                            1000);
+
+        assertEquals(1000, simple.length);
+        assertEquals(1000, jdk.length);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(simple[i] > 0);
+            assertTrue(jdk[i] > 0);
+        }
+        assertEquals(0, outContent.size());
+    }
+
     // This is what should be output \n was replaced for visible
     // endlines for inclusion into single line.
     String testResultUnix =
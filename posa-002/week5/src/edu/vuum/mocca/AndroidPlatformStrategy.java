@@ -4,7 +4,7 @@ import java.lang.ref.WeakReference;
 import java.util.concurrent.CountDownLatch;
 
 import android.app.Activity;
-import android.widget.TextView;
+import android.widget.ListView;
 import android.util.Log;
 
 /**
@@ -17,19 +17,36 @@ import android.util.Log;
  */
 public class AndroidPlatformStrategy extends PlatformStrategy
 {	
-    /** TextViewVariable. */
-    private TextView mTextViewOutput;
+    /** ListView that displays the most recent lines of output. */
+    private ListView mListViewOutput;
+
+    /** Fixed-capacity ring of lines shown by mListViewOutput. */
+    private LineRingAdapter mOutputLines;
 	
     /** Activity variable finds gui widgets by view. */
     private WeakReference<Activity> mActivity;
 
+    /**
+     * Delay before buffered output is flushed to the ListView, i.e.,
+     * roughly one display frame.
+     */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    /**
+     * Lines waiting to be added to mOutputLines, no more than it
+     * displays.
+     */
+    private final OutputBuffer mBuffer;
+
     public AndroidPlatformStrategy(Object output, final Object activityParam)
     {
         /**
-         * A textview output which displays calculations and
-         * expression trees.
+         * A listview output, backed by a LineRingAdapter, which
+         * displays the most recent lines of the game.
          */
-        mTextViewOutput = (TextView) output;
+        mListViewOutput = (ListView) output;
+        mOutputLines = (LineRingAdapter) mListViewOutput.getAdapter();
+        mBuffer = new OutputBuffer(mOutputLines.capacity());
 
         /** The current activity window (succinct or verbose). */
         mActivity = new WeakReference<Activity>((Activity) activityParam);
@@ -41,7 +58,7 @@ public class AndroidPlatformStrategy extends PlatformStrategy
     public void begin()
     {
         mOptions = Options.instance();
-        mLatch = new CountDownLatch(mOptions.maxIterations());
+        mLatch = new CountDownLatch(mOptions.numberOfThreads());
     }
 
     public void print(final String outputString)
@@ -51,7 +68,6 @@ public class AndroidPlatformStrategy extends PlatformStrategy
 
     public void done(){
         mLatch.countDown();
-        printUI("Done!");
     }
 
     /** Barrier that waits for all the game threads to finish. */
@@ -73,14 +89,50 @@ public class AndroidPlatformStrategy extends PlatformStrategy
        Log.e(javaFile, errorMessage);
     }
 
+    /**
+     * Write out the buffered output on the next frame.
+     */
+    public void flush()
+    {
+        if (mBuffer.scheduleFlush())
+            mListViewOutput.post(mFlushRunnable);
+    }
+
+    /**
+     * Append the string to the buffer and, unless a flush is already
+     * pending, schedule one for the next frame.  This way the UI
+     * thread runs one Runnable per frame rather than one per line.
+     * Once the activity is gone nothing will display the output, so
+     * it's dropped.
+     */
     private void printUI(final String string){
-        if(mActivity!=null&&mActivity.get()!=null){
-            mActivity.get().runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mTextViewOutput.setText(mTextViewOutput.getText() + "\n" + string);
-                }
-            });
+        if(mActivity==null||mActivity.get()==null)
+            return;
+
+        mBuffer.append(string);
+
+        if(mBuffer.scheduleFlush()){
+            mListViewOutput.postDelayed(mFlushRunnable, FRAME_INTERVAL_MS);
         }
     }
+
+    /**
+     * Runs on the UI thread and adds every buffered line to the ring
+     * of lines, then refreshes the ListView once for the whole batch.
+     */
+    private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mBuffer.flushStarted();
+
+                boolean changed = false;
+                for (String line; (line = mBuffer.poll()) != null; ) {
+                    mOutputLines.add(line);
+                    changed = true;
+                }
+
+                if (changed)
+                    mOutputLines.notifyDataSetChanged();
+            }
+        };
 }
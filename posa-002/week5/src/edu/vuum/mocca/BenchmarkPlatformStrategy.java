@@ -0,0 +1,155 @@
+package edu.vuum.mocca;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class BenchmarkPlatformStrategy
+ *
+ * @brief Provides a PlatformStrategy that measures the ping/pong game
+ *        instead of displaying it.  Its printIteration() method just
+ *        records a System.nanoTime() timestamp in a preallocated array,
+ *        without formatting the line, and its done()/awaitDone()
+ *        methods use an atomic counter plus LockSupport rather than a
+ *        CountDownLatch, so the numbers reflect the cost of the
+ *        synchronization mechanism rather than the output path.  When
+ *        the game is flushed it prints a summary of the gaps between
+ *        consecutive iterations.  In an "MMAP" game the child
+ *        processes don't print their own summaries; they hand their
+ *        timestamps to the parent, whose summary covers the whole
+ *        ring.  Other lines, such as the ones
+ *        PlayPingPong prints before and after the game, are ignored.
+ *        It plays the role of the "Concrete Strategy" in the Strategy
+ *        pattern.
+ */
+public class BenchmarkPlatformStrategy extends PlatformStrategy
+{
+    /** Where the summary and error messages are printed. */
+    private final PrintStream mOutput;
+
+    /** Timestamp of each iteration in the current game. */
+    private long[] mTimestamps = new long[0];
+
+    /** Index of the next free slot in mTimestamps. */
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /** Number of game threads that haven't called done() yet. */
+    private final AtomicInteger mRunning = new AtomicInteger();
+
+    /**
+     * Number of iterations in the first lap around the ring, whose
+     * gaps include the threads starting up.
+     */
+    private int mFirstLap;
+
+    /** Thread that's waiting in awaitDone(). */
+    private volatile Thread mWaiter;
+
+    /** Ctor. */
+    public BenchmarkPlatformStrategy(Object output)
+    {
+        mOutput = (PrintStream) output;
+    }
+
+    /**
+     * Preallocate the timestamps for a new game so print() never
+     * allocates.
+     */
+    public void begin()
+    {
+        Options options = Options.instance();
+        int capacity = options.maxIterations() * options.numberOfThreads();
+
+        if (mTimestamps.length < capacity)
+            mTimestamps = new long[capacity];
+
+        mNext.set(0);
+        mFirstLap = options.numberOfThreads();
+        mRunning.set(options.numberOfThreads());
+        mWaiter = Thread.currentThread();
+    }
+
+    /** Lines other than iterations aren't measured. */
+    public void print(String outputString)
+    {
+    }
+
+    /** Record when this iteration happened; nothing is formatted. */
+    public void printIteration(String stringToPrint, int loopsDone)
+    {
+        int index = mNext.getAndIncrement();
+        if (index < mTimestamps.length)
+            mTimestamps[index] = System.nanoTime();
+    }
+
+    /** Returns the timestamps recorded so far in this game. */
+    public long[] iterations()
+    {
+        return Arrays.copyOf(mTimestamps,
+                             Math.min(mNext.get(), mTimestamps.length));
+    }
+
+    /** Record iterations that were played in another process. */
+    public void addIterations(long[] timestamps)
+    {
+        int index = mNext.getAndAdd(timestamps.length);
+        int count = Math.min(timestamps.length, mTimestamps.length - index);
+        if (count > 0)
+            System.arraycopy(timestamps, 0, mTimestamps, index, count);
+    }
+
+    /** Indicate that a game thread has finished running. */
+    public void done()
+    {
+        if (mRunning.decrementAndGet() == 0)
+            LockSupport.unpark(mWaiter);
+    }
+
+    /** Barrier that waits for all the game threads to finish. */
+    public void awaitDone()
+    {
+        // park() may return spuriously, so recheck the count.
+        while (mRunning.get() > 0)
+            LockSupport.park(this);
+    }
+
+    /**
+     * Returns statistics for the gaps between consecutive iterations of
+     * the last game, leaving out the first lap around the ring, whose
+     * gaps include the threads starting up.  Iterations added from
+     * other processes arrive out of order, so the timestamps are
+     * sorted first; only one thread plays at a time, so that's the
+     * order the iterations happened in.
+     */
+    public SampleStatistics gaps()
+    {
+        long[] timestamps = iterations();
+        Arrays.sort(timestamps);
+
+        int count = timestamps.length;
+        int first = Math.min(mFirstLap, count);
+        long[] gaps = new long[Math.max(0, count - first - 1)];
+
+        for (int i = first + 1; i < count; ++i)
+            gaps[i - first - 1] = timestamps[i] - timestamps[i - 1];
+
+        return new SampleStatistics(gaps, gaps.length);
+    }
+
+    /** Print the summary of the game that just finished. */
+    public void flush()
+    {
+        mOutput.println("Inter-iteration gaps: " + gaps());
+    }
+
+    /**
+     * Error log formats the message and displays it for the debugging
+     * purposes.
+     */
+    public void errorLog(String javaFile, String errorMessage)
+    {
+        mOutput.println(javaFile + " " + errorMessage);
+    }
+}
@@ -1,6 +1,8 @@
 package edu.vuum.mocca;
 
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.io.PrintStream;
 
 /**
@@ -10,9 +12,20 @@ import java.io.PrintStream;
  *        output data to the console window and synchronizing on
  *        thread completion in the ping/pong game.  It plays the role
  *        of the "Concrete Strategy" in the Strategy pattern.
+ *
+ *        Output is appended to an @a OutputBuffer and written by a
+ *        single flusher thread once @a FLUSH_LINES lines are pending
+ *        or every @a FLUSH_INTERVAL_MS milliseconds, whichever comes
+ *        first, so the game threads never contend on the PrintStream.
  */
 public class ConsolePlatformStrategy extends PlatformStrategy
 {
+    /** Number of pending lines that triggers an early flush. */
+    private static final int FLUSH_LINES = 1024;
+
+    /** Maximum time a line waits in the buffer before it's flushed. */
+    private static final long FLUSH_INTERVAL_MS = 50;
+
     /**
      * Latch to decrement each time a thread exits to control when the
      * play() method returns.
@@ -22,23 +35,45 @@ public class ConsolePlatformStrategy extends PlatformStrategy
     /** Contains information for outputting to console window. */
     PrintStream mOutput;
 
+    /** Lines waiting to be written to mOutput. */
+    private final OutputBuffer mBuffer = new OutputBuffer();
+
+    /** Thread that drains mBuffer in the background. */
+    private Thread mFlusher = null;
+
     /** Ctor. */
-    public ConsolePlatformStrategy(Object output) 
+    public ConsolePlatformStrategy(Object output)
     {
         mOutput = (PrintStream) output;
     }
-	
+
     /** Do any initialization needed to start a new game. */
     public void begin()
     {
-        mLatch = new CountDownLatch(NUMBER_OF_THREADS);
+        mLatch = new CountDownLatch(Options.instance().numberOfThreads());
+
+        if (mFlusher == null) {
+            mFlusher = new Thread(new Runnable() {
+                    public void run() {
+                        for (;;) {
+                            LockSupport.parkNanos
+                                (TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+                            flush();
+                        }
+                    }
+                }, "ConsolePlatformStrategy flusher");
+            mFlusher.setDaemon(true);
+            mFlusher.start();
+        }
     }
 
     /** Print the outputString to the display. */
     public void print(String outputString)
     {
-        /** Print to the console window. */
-        mOutput.println(outputString);
+        /** Buffer the line and wake the flusher if the batch is full. */
+        if (mBuffer.append(outputString) == FLUSH_LINES
+            && mFlusher != null)
+            LockSupport.unpark(mFlusher);
     }
 
     /** Indicate that a game thread has finished running. */
@@ -46,7 +81,7 @@ public class ConsolePlatformStrategy extends PlatformStrategy
     {
         mLatch.countDown();
     }
-    
+
     /** Barrier that waits for all the game threads to finish. */
     public void awaitDone()
     {
@@ -54,14 +89,36 @@ public class ConsolePlatformStrategy extends PlatformStrategy
             mLatch.await();
         } catch(java.lang.InterruptedException e) {
         }
+        flush();
+    }
+
+    /**
+     * Write all the buffered lines to the console window with a
+     * single print() call.  Synchronized so the flusher thread and
+     * explicit flushes drain the buffer one at a time, in order.
+     */
+    public synchronized void flush()
+    {
+        mBuffer.flushStarted();
+
+        StringBuilder batch = new StringBuilder();
+        String lineSeparator = System.getProperty("line.separator");
+        for (String line; (line = mBuffer.poll()) != null; )
+            batch.append(line).append(lineSeparator);
+
+        if (batch.length() > 0) {
+            mOutput.print(batch);
+            mOutput.flush();
+        }
     }
 
     /**
      * Error log formats the message and displays it for the debugging
      * purposes.
      */
-    public void errorLog(String javaFile, String errorMessage) 
+    public void errorLog(String javaFile, String errorMessage)
     {
+        flush();
         mOutput.println(javaFile + " " + errorMessage);
     }
 }
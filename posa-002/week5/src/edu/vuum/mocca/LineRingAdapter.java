@@ -0,0 +1,122 @@
+package edu.vuum.mocca;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * @class LineRingAdapter
+ *
+ * @brief Adapter that backs the ping/pong output ListView with a
+ *        fixed-capacity ring of lines.  Once the ring is full each new
+ *        line overwrites the oldest one, so memory stays constant and
+ *        adding a line is O(1) no matter how long the game runs.  The
+ *        ListView recycles its row views, so only the visible rows are
+ *        laid out on each update.
+ *
+ *        This adapter is only accessed from the UI thread.
+ */
+public class LineRingAdapter extends BaseAdapter
+{
+    /** Number of lines kept if no capacity is given. */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /** The ring of lines. */
+    private final String[] mLines;
+
+    /** Index of the oldest line in mLines. */
+    private int mFirst = 0;
+
+    /** Number of lines currently in mLines. */
+    private int mCount = 0;
+
+    /** Number of lines added since the last clear(), used for item ids. */
+    private long mTotal = 0;
+
+    /** Inflates the row views. */
+    private final LayoutInflater mInflater;
+
+    /** Ctor. */
+    public LineRingAdapter(Context context, int capacity)
+    {
+        mInflater = LayoutInflater.from(context);
+        mLines = new String[capacity];
+    }
+
+    /**
+     * Add a line to the end of the ring, dropping the oldest line if
+     * the ring is full.  Call notifyDataSetChanged() once after adding
+     * a batch of lines.
+     */
+    public void add(String line)
+    {
+        int last = (mFirst + mCount) % mLines.length;
+        mLines[last] = line;
+
+        if (mCount < mLines.length)
+            ++mCount;
+        else
+            mFirst = (mFirst + 1) % mLines.length;
+
+        ++mTotal;
+    }
+
+    /** Returns the most lines the ring holds. */
+    public int capacity()
+    {
+        return mLines.length;
+    }
+
+    /** Remove all the lines. */
+    public void clear()
+    {
+        Arrays.fill(mLines, null);
+        mFirst = 0;
+        mCount = 0;
+        mTotal = 0;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount()
+    {
+        return mCount;
+    }
+
+    @Override
+    public String getItem(int position)
+    {
+        return mLines[(mFirst + position) % mLines.length];
+    }
+
+    /** The id of a line is its number since the last clear(). */
+    @Override
+    public long getItemId(int position)
+    {
+        return mTotal - mCount + position;
+    }
+
+    @Override
+    public boolean hasStableIds()
+    {
+        return true;
+    }
+
+    /** Reuse the recycled row view if there is one. */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent)
+    {
+        TextView row = (TextView) convertView;
+        if (row == null)
+            row = (TextView) mInflater.inflate(R.layout.pingpong_line,
+                                               parent,
+                                               false);
+        row.setText(getItem(position));
+        return row;
+    }
+}
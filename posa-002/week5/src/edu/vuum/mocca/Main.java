@@ -1,5 +1,7 @@
 package edu.vuum.mocca;
 
+import java.io.PrintStream;
+
 /**
  * @class Main
  *
@@ -24,7 +26,60 @@ public class Main
                                          null).makePlatformStrategy());
 
         /** Initializes the Options singleton. */
-        Options.instance().parseArgs(args);
+        if (!Options.instance().parseArgs(args))
+            return;
+
+        /**
+         * A ring needs at least two threads to pass the turn around;
+         * with fewer the handoff mechanisms would wait forever.
+         */
+        if (Options.instance().numberOfThreads() < 2) {
+            Options.instance().printUsage();
+            return;
+        }
+
+        /**
+         * Machine-readable benchmark results go to stdout, so send the
+         * game output to stderr in that case.
+         */
+        PrintStream gameOutput =
+            Options.instance().outputFormat() != null
+            ? System.err
+            : System.out;
+
+        /**
+         * Switch to a different platform if one was requested, e.g.,
+         * the BENCHMARK platform that records timestamps rather than
+         * printing.
+         */
+        if (Options.instance().platformType() != null
+            || gameOutput != System.out)
+            PlatformStrategy.instance
+                (new PlatformStrategyFactory(gameOutput,
+                                             null).makePlatformStrategy
+                 (Options.instance().platformType() != null
+                  ? Options.instance().platformType()
+                  : PlatformStrategyFactory.platformType()));
+
+        /**
+         * Benchmark repeated runs of every requested sync mechanism
+         * and "turn" setting if -w, -r or -o was given.
+         */
+        if (Options.instance().isBenchmark()) {
+            PingPongBenchmark benchmark =
+                new PingPongBenchmark(PlatformStrategy.instance(),
+                                      Options.instance(),
+                                      System.out);
+
+            /** Reject sync mechanisms that aren't in the registry. */
+            if (benchmark.unknownSyncMechanisms() != null) {
+                Options.instance().printUsage();
+                return;
+            }
+
+            benchmark.run();
+            return;
+        }
 
         /**
          * Create a PlayPingPong object to run the designated number of
@@ -34,7 +89,14 @@ public class Main
             new PlayPingPong(PlatformStrategy.instance(),
                              Options.instance().maxIterations(),
                              Options.instance().maxTurns(),
-                             Options.instance().syncMechanism());
+                             Options.instance().syncMechanism(),
+                             Options.instance().numberOfThreads());
+
+        /** Reject sync mechanisms that aren't in the registry. */
+        if (!pingPong.isSyncMechanism(Options.instance().syncMechanism())) {
+            Options.instance().printUsage();
+            return;
+        }
 
         /**
          * Start a thread to play ping-pong.
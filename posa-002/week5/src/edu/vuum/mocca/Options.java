@@ -18,11 +18,49 @@ public class Options
     private int mMaxTurns = 1;
 
     /**
-     * Which synchronization to use, e.g., "SEMA" vs. "COND".
+     * Every "turn" setting to benchmark, given as a comma-separated
+     * list to -t.  The first one is mMaxTurns.
+     */
+    private int[] mMaxTurnsList = { 1 };
+
+    /**
+     * Which synchronization to use, e.g., "SEMA", "COND", "PARK",
+     * "SPIN", "TURN", "MMAP", "EXCHANGE", "QUEUE" or "TRANSFER".
      * Defaults to "SEMA".
      */
     private String mSyncMechanism = "SEMA";
 
+    /**
+     * Every synchronization mechanism to benchmark, given as a
+     * comma-separated list to -s.  The first one is mSyncMechanism.
+     */
+    private String[] mSyncMechanisms = { "SEMA" };
+
+    /**
+     * Number of threads passing the turn around the ring (defaults
+     * to 2, i.e., a ping thread and a pong thread).
+     */
+    private int mNumberOfThreads = PlatformStrategy.NUMBER_OF_THREADS;
+
+    /**
+     * Which platform to run on, e.g., BENCHMARK to measure the game
+     * without printing it.  Defaults to null, i.e., the platform
+     * detected at runtime.
+     */
+    private PlatformStrategyFactory.PlatformType mPlatformType = null;
+
+    /** Number of unmeasured warmup runs (defaults to 0). */
+    private int mWarmups = 0;
+
+    /** Number of measured runs (defaults to 0, i.e., play one game). */
+    private int mRepetitions = 0;
+
+    /**
+     * Format of the benchmark results, i.e., "csv" or "json".  Defaults
+     * to null, i.e., a human-readable summary.
+     */
+    private String mOutputFormat = null;
+
     /** Method to return the one and only singleton uniqueInstance. */
     public static Options instance()
     {
@@ -44,6 +82,12 @@ public class Options
         return mMaxTurns;
     }
 
+    /** Every "turn" setting to benchmark. */
+    public int[] maxTurnsList()
+    {
+        return mMaxTurnsList;
+    }
+
     /**
      * Which synchronization to use, e.g., "SEMA" vs. "COND".
      * Defaults to "SEMA".
@@ -53,6 +97,54 @@ public class Options
         return mSyncMechanism;
     }
 
+    /** Every synchronization mechanism to benchmark. */
+    public String[] syncMechanisms()
+    {
+        return mSyncMechanisms;
+    }
+
+    /** Number of threads passing the turn around the ring. */
+    public int numberOfThreads()
+    {
+        return mNumberOfThreads;
+    }
+
+    /**
+     * Which platform to run on, or null to use the platform detected at
+     * runtime.
+     */
+    public PlatformStrategyFactory.PlatformType platformType()
+    {
+        return mPlatformType;
+    }
+
+    /** Number of unmeasured warmup runs. */
+    public int warmups()
+    {
+        return mWarmups;
+    }
+
+    /** Number of measured runs. */
+    public int repetitions()
+    {
+        return mRepetitions;
+    }
+
+    /** Format of the benchmark results, or null for a summary. */
+    public String outputFormat()
+    {
+        return mOutputFormat;
+    }
+
+    /**
+     * Returns true if the program should benchmark repeated runs
+     * rather than play a single game.
+     */
+    public boolean isBenchmark()
+    {
+        return mWarmups > 0 || mRepetitions > 0 || mOutputFormat != null;
+    }
+
     /**
      * Parse command-line arguments and set the appropriate values.
      */
@@ -62,10 +154,35 @@ public class Options
             for (int argc = 0; argc < argv.length; argc += 2)
                 if (argv[argc].equals("-i"))
                     mMaxIterations = Integer.parseInt(argv[argc + 1]);
-                else if (argv[argc].equals("-s"))
-                    mSyncMechanism = argv[argc + 1];
-                else if (argv[argc].equals("-t"))
-                    mMaxTurns = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-s")) {
+                    mSyncMechanisms = argv[argc + 1].split(",");
+                    mSyncMechanism = mSyncMechanisms[0];
+                }
+                else if (argv[argc].equals("-t")) {
+                    String[] turns = argv[argc + 1].split(",");
+                    mMaxTurnsList = new int[turns.length];
+                    for (int i = 0; i < turns.length; ++i)
+                        mMaxTurnsList[i] = Integer.parseInt(turns[i]);
+                    mMaxTurns = mMaxTurnsList[0];
+                }
+                else if (argv[argc].equals("-n"))
+                    mNumberOfThreads = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-p"))
+                    try {
+                        mPlatformType =
+                            PlatformStrategyFactory.PlatformType.valueOf(argv[argc + 1]);
+                    } catch (IllegalArgumentException e) {
+                        printUsage();
+                        return false;
+                    }
+                else if (argv[argc].equals("-w"))
+                    mWarmups = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-r"))
+                    mRepetitions = Integer.parseInt(argv[argc + 1]);
+                else if (argv[argc].equals("-o")
+                         && (argv[argc + 1].equals("csv")
+                             || argv[argc + 1].equals("json")))
+                    mOutputFormat = argv[argc + 1];
                 else
                     {
                         printUsage();
@@ -88,8 +205,17 @@ public class Options
         platform.errorLog("Options", "Usage: ");
         platform.errorLog("Options", "-h: invoke help ");
         platform.errorLog("Options", "-i max-number-of-iterations ");
-        platform.errorLog("Options", "-s sync-mechanism (e.g., \"SEMA\" or \"COND\"");
-        platform.errorLog("Options", "-t max-number-of-turns");
+        platform.errorLog("Options", "-s sync-mechanism (\"SEMA\", \"COND\", \"PARK\", \"SPIN\", \"TURN\",");
+        platform.errorLog("Options", "   \"MMAP\", \"EXCHANGE\", \"QUEUE\" or \"TRANSFER\"), or a comma-separated list;");
+        platform.errorLog("Options", "   \"MMAP\" plays all but the ping thread in separate processes");
+        platform.errorLog("Options", "   \"MMAP\" and \"TRANSFER\" are only available on the console");
+        platform.errorLog("Options", "-t max-number-of-turns, or a comma-separated list");
+        platform.errorLog("Options", "-n number-of-threads in the token ring, at least 2 (defaults to 2)");
+        platform.errorLog("Options", "-p platform (\"PLAIN_JAVA\" or \"BENCHMARK\", which records");
+        platform.errorLog("Options", "   timestamps instead of printing)");
+        platform.errorLog("Options", "-w number-of-warmup-runs");
+        platform.errorLog("Options", "-r number-of-measured-runs");
+        platform.errorLog("Options", "-o csv|json results format (game output goes to stderr)");
     }
 
     /**
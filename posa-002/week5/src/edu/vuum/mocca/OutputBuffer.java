@@ -0,0 +1,92 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @class OutputBuffer
+ *
+ * @brief Lock-free buffer that the ping/pong threads append their
+ *        output lines to.  A single flusher per platform drains the
+ *        pending lines in batches, so the cost of displaying output
+ *        doesn't dominate the cost of the game itself.  A buffer may
+ *        be given a capacity, past which the oldest lines are dropped,
+ *        for a display that only shows the most recent lines anyway.
+ */
+public class OutputBuffer
+{
+    /** Lines appended by the game threads that haven't been flushed. */
+    private final ConcurrentLinkedQueue<String> mLines =
+        new ConcurrentLinkedQueue<String>();
+
+    /** Number of lines in mLines. */
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    /** Most lines kept waiting to be flushed. */
+    private final int mCapacity;
+
+    /** True while a flush has been scheduled but hasn't started. */
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    /** Ctor for a buffer that keeps every line until it's flushed. */
+    public OutputBuffer()
+    {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Ctor for a buffer that keeps at most @a capacity lines, dropping
+     * the oldest line when a new one arrives while it's full.
+     */
+    public OutputBuffer(int capacity)
+    {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Append a line to the buffer and return the number of lines
+     * that are now waiting to be flushed.
+     */
+    public int append(String line)
+    {
+        mLines.offer(line);
+        int pending = mPending.incrementAndGet();
+
+        if (pending > mCapacity && mLines.poll() != null)
+            pending = mPending.decrementAndGet();
+        return pending;
+    }
+
+    /**
+     * Returns true if the caller should schedule a flush, i.e., no
+     * flush is already pending.  Lets the Android platform post one
+     * flush per frame instead of one Runnable per line.
+     */
+    public boolean scheduleFlush()
+    {
+        return mFlushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the flusher before it drains the buffer, so that lines
+     * appended while it drains schedule another flush.
+     */
+    public void flushStarted()
+    {
+        mFlushScheduled.set(false);
+    }
+
+    /**
+     * Remove and return the oldest pending line, or null if there are
+     * none.  Only the flusher calls this, apart from append() dropping
+     * lines from a full buffer.
+     */
+    public String poll()
+    {
+        String line = mLines.poll();
+        if (line != null)
+            mPending.decrementAndGet();
+        return line;
+    }
+}
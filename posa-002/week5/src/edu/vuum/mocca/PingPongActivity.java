@@ -4,7 +4,7 @@ import android.app.Activity;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
-import android.widget.TextView;
+import android.widget.ListView;
 
 /**
  * @class MainActivity
@@ -12,8 +12,11 @@ import android.widget.TextView;
  * @brief Initial start up screen for the android GUI.
  */
 public class PingPongActivity extends Activity {
-    /** TextView that PingPong will be "played" upon */
-    private TextView mAndroidPingPongOutput;
+    /** ListView that PingPong will be "played" upon */
+    private ListView mAndroidPingPongOutput;
+
+    /** Bounded ring of output lines displayed by mAndroidPingPongOutput */
+    private LineRingAdapter mOutputLines;
 
     /** Button that allows playing and resetting of the game */
     private Button mPlayButton;
@@ -29,7 +32,10 @@ public class PingPongActivity extends Activity {
         // Sets the content view to the xml file, activity_ping_pong.
         setContentView(R.layout.activity_ping_pong);
         mAndroidPingPongOutput =
-            (TextView) findViewById(R.id.pingpong_output);
+            (ListView) findViewById(R.id.pingpong_output);
+        mOutputLines =
+            new LineRingAdapter(this, LineRingAdapter.DEFAULT_CAPACITY);
+        mAndroidPingPongOutput.setAdapter(mOutputLines);
         mPlayButton = (Button) findViewById(R.id.play_button);
 
         // Initializes the Platform singleton with the appropriate
@@ -53,7 +59,8 @@ public class PingPongActivity extends Activity {
                 new PlayPingPong(PlatformStrategy.instance(),
                                  Options.instance().maxIterations(),
                                  Options.instance().maxTurns(),
-                                 Options.instance().syncMechanism());
+                                 Options.instance().syncMechanism(),
+                                 Options.instance().numberOfThreads());
 
             // Play ping-pong with the designated number of
             // iterations.
@@ -62,14 +69,15 @@ public class PingPongActivity extends Activity {
             mGameState = RESET;
         } else if (mGameState == RESET) {
 
-            // Empty TextView and prepare the UI to play another game.
-            mAndroidPingPongOutput.setText(R.string.empty_string);
+            // Empty ListView and prepare the UI to play another game.
+            mOutputLines.clear();
             mPlayButton.setText(R.string.play_button);
             mGameState = PLAY;
         } else {
             // Notify the player that something has gone wrong and
             // reset.
-            mAndroidPingPongOutput.setText("Unknown State entered!");
+            mOutputLines.add("Unknown State entered!");
+            mOutputLines.notifyDataSetChanged();
             mGameState = RESET;
         }
     }
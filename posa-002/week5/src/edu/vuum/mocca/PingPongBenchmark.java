@@ -0,0 +1,147 @@
+package edu.vuum.mocca;
+
+import java.io.PrintStream;
+
+/**
+ * @class PingPongBenchmark
+ *
+ * @brief Plays the ping/pong game repeatedly for every combination of
+ *        synchronization mechanism and "turn" setting in the Options,
+ *        discarding the warmup runs so the JIT has compiled the game
+ *        before it's measured.  Only the game itself is timed, from
+ *        starting its threads until they're done, so creating them
+ *        (or starting the child JVMs of "MMAP") isn't counted.  It
+ *        then reports the mean, standard deviation, and percentiles
+ *        of the measured run times as a human-readable summary, CSV,
+ *        or JSON.
+ */
+public class PingPongBenchmark
+{
+    /** The platform the games are played on. */
+    private final PlatformStrategy mPlatformStrategy;
+
+    /** The benchmark settings. */
+    private final Options mOptions;
+
+    /** Where the results are printed. */
+    private final PrintStream mResults;
+
+    /** Ctor. */
+    public PingPongBenchmark(PlatformStrategy platformStrategy,
+                             Options options,
+                             PrintStream results)
+    {
+        mPlatformStrategy = platformStrategy;
+        mOptions = options;
+        mResults = results;
+    }
+
+    /**
+     * Returns the names of any requested sync mechanisms that aren't
+     * registered, or null if they're all valid.
+     */
+    public String unknownSyncMechanisms()
+    {
+        StringBuilder unknown = new StringBuilder();
+        PlayPingPong pingPong = makePingPong(mOptions.syncMechanism(),
+                                             mOptions.maxTurns());
+
+        for (String syncMechanism : mOptions.syncMechanisms())
+            if (!pingPong.isSyncMechanism(syncMechanism))
+                unknown.append(unknown.length() == 0 ? "" : ",")
+                       .append(syncMechanism);
+
+        return unknown.length() == 0 ? null : unknown.toString();
+    }
+
+    /** Run every benchmark and print the results. */
+    public void run()
+    {
+        String format = mOptions.outputFormat();
+        int repetitions = Math.max(1, mOptions.repetitions());
+        boolean first = true;
+
+        if ("csv".equals(format))
+            mResults.println("mechanism,max_turns,threads,iterations,warmups,repetitions,"
+                             + "mean_ns,stddev_ns,min_ns,p50_ns,p90_ns,p99_ns,max_ns");
+        else if ("json".equals(format))
+            mResults.println("[");
+
+        for (String syncMechanism : mOptions.syncMechanisms())
+            for (int maxTurns : mOptions.maxTurnsList()) {
+                for (int i = 0; i < mOptions.warmups(); ++i)
+                    makePingPong(syncMechanism, maxTurns).run();
+
+                long[] runTimes = new long[repetitions];
+                for (int i = 0; i < repetitions; ++i) {
+                    PlayPingPong pingPong = makePingPong(syncMechanism,
+                                                         maxTurns);
+                    pingPong.run();
+                    runTimes[i] = pingPong.elapsedNanos();
+                }
+
+                SampleStatistics stats =
+                    new SampleStatistics(runTimes, repetitions);
+
+                if ("csv".equals(format))
+                    mResults.println(String.format("%s,%d,%d,%d,%d,%d,%.0f,%.0f,%d,%d,%d,%d,%d",
+                                                   syncMechanism,
+                                                   maxTurns,
+                                                   mOptions.numberOfThreads(),
+                                                   mOptions.maxIterations(),
+                                                   mOptions.warmups(),
+                                                   repetitions,
+                                                   stats.mean(),
+                                                   stats.stddev(),
+                                                   stats.min(),
+                                                   stats.percentile(50),
+                                                   stats.percentile(90),
+                                                   stats.percentile(99),
+                                                   stats.max()));
+                else if ("json".equals(format))
+                    mResults.print(String.format("%s  {\"mechanism\": \"%s\", \"max_turns\": %d, "
+                                                   + "\"threads\": %d, \"iterations\": %d, "
+                                                   + "\"warmups\": %d, \"repetitions\": %d, "
+                                                   + "\"mean_ns\": %.0f, \"stddev_ns\": %.0f, "
+                                                   + "\"min_ns\": %d, \"p50_ns\": %d, \"p90_ns\": %d, "
+                                                   + "\"p99_ns\": %d, \"max_ns\": %d}",
+                                                   first ? "" : ",\n",
+                                                   syncMechanism,
+                                                   maxTurns,
+                                                   mOptions.numberOfThreads(),
+                                                   mOptions.maxIterations(),
+                                                   mOptions.warmups(),
+                                                   repetitions,
+                                                   stats.mean(),
+                                                   stats.stddev(),
+                                                   stats.min(),
+                                                   stats.percentile(50),
+                                                   stats.percentile(90),
+                                                   stats.percentile(99),
+                                                   stats.max()));
+                else
+                    mResults.println(syncMechanism
+                                     + " turns=" + maxTurns
+                                     + " run time: " + stats);
+                first = false;
+            }
+
+        if ("json".equals(format)) {
+            mResults.println();
+            mResults.println("]");
+        }
+    }
+
+    /**
+     * Factory method that makes a game with the designated sync
+     * mechanism and "turn" setting.
+     */
+    private PlayPingPong makePingPong(String syncMechanism, int maxTurns)
+    {
+        return new PlayPingPong(mPlatformStrategy,
+                                mOptions.maxIterations(),
+                                maxTurns,
+                                syncMechanism,
+                                mOptions.numberOfThreads());
+    }
+}
@@ -0,0 +1,287 @@
+package edu.vuum.mocca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @class PingPongProcess
+ *
+ * @brief Starts the child JVMs in an "MMAP" ping/pong game and is the
+ *        entry point that runs in each of them.  In that game every
+ *        thread in the ring except the ping thread runs in its own
+ *        process, and the threads pass the turn through a small
+ *        memory-mapped file.  The file holds the index of the thread
+ *        whose turn it is, followed by a state byte per thread, so
+ *        the parent can wait for the child JVMs to start up before
+ *        the game is timed and see each child finish its part without
+ *        waiting for its JVM to exit.  On a platform that measures
+ *        the game, the file also has room for every thread's
+ *        iteration timestamps, which the children save there so the
+ *        parent can summarize the whole ring.  Android apps can't
+ *        launch a JVM, so this only works on the console.
+ */
+public class PingPongProcess
+{
+    /** Offset of the index of the thread whose turn it is. */
+    static final int TURN_OFFSET = 0;
+
+    /**
+     * Offset of the number of iteration timestamps each thread has
+     * room for, which is 0 unless the platform measures the game.
+     */
+    static final int ITERATION_SLOTS_OFFSET = 8;
+
+    /**
+     * Offset of the per-thread state bytes, which are kept off the
+     * turn's cache line.
+     */
+    static final int READY_OFFSET = 64;
+
+    /** States of a thread: started, waiting for its turn, finished. */
+    static final byte STARTING = 0;
+    static final byte READY = 1;
+    static final byte DONE = 2;
+
+    /** How often the parent checks whether the children are ready. */
+    private static final long READY_POLL_MS = 1;
+
+    /**
+     * Bounds on how long the parent parks between checks of whether
+     * a child has finished its part of the game.
+     */
+    private static final long MIN_DONE_POLL_NANOS = 1000;
+    private static final long MAX_DONE_POLL_NANOS = 100000;
+
+    /** Create the file whose mapping the processes share. */
+    static File createSharedFile() throws IOException
+    {
+        File file = File.createTempFile("pingpong", ".mmap");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Map the shared file for a game with @a numberOfThreads threads,
+     * each with room for @a iterationSlots iteration timestamps.
+     */
+    static MappedByteBuffer map(File file,
+                                int numberOfThreads,
+                                int iterationSlots)
+        throws IOException
+    {
+        MappedByteBuffer shared =
+            map(file, iterationsOffset(numberOfThreads,
+                                       iterationSlots,
+                                       numberOfThreads));
+        shared.putInt(ITERATION_SLOTS_OFFSET, iterationSlots);
+        return shared;
+    }
+
+    /** Map the whole of a shared file the parent has already mapped. */
+    static MappedByteBuffer map(File file) throws IOException
+    {
+        return map(file, file.length());
+    }
+
+    /** Map the first @a size bytes of @a file. */
+    private static MappedByteBuffer map(File file, long size)
+        throws IOException
+    {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the file is closed.
+            return randomAccessFile.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the offset of thread @a index's iteration timestamps,
+     * which are preceded by how many there are.
+     */
+    private static int iterationsOffset(int numberOfThreads,
+                                        int iterationSlots,
+                                        int index)
+    {
+        // Align the timestamps to a long.
+        int start = (READY_OFFSET + numberOfThreads + 7) & ~7;
+        return start + index * 8 * (iterationSlots + 1);
+    }
+
+    /**
+     * Save the @a timestamps of thread @a index's iterations, as many
+     * as there's room for.
+     */
+    static void saveIterations(MappedByteBuffer shared,
+                               int numberOfThreads,
+                               int index,
+                               long[] timestamps)
+    {
+        int slots = shared.getInt(ITERATION_SLOTS_OFFSET);
+        int offset = iterationsOffset(numberOfThreads, slots, index);
+        int count = Math.min(timestamps.length, slots);
+
+        for (int i = 0; i < count; ++i)
+            shared.putLong(offset + 8 * (i + 1), timestamps[i]);
+        shared.putLong(offset, count);
+    }
+
+    /**
+     * Returns the iteration timestamps thread @a index saved, which
+     * are none unless the platform measures the game.
+     */
+    static long[] loadIterations(MappedByteBuffer shared,
+                                 int numberOfThreads,
+                                 int index)
+    {
+        int slots = shared.getInt(ITERATION_SLOTS_OFFSET);
+        int offset = iterationsOffset(numberOfThreads, slots, index);
+        long[] timestamps =
+            new long[slots == 0 ? 0 : (int) shared.getLong(offset)];
+
+        for (int i = 0; i < timestamps.length; ++i)
+            timestamps[i] = shared.getLong(offset + 8 * (i + 1));
+        return timestamps;
+    }
+
+    /**
+     * Start a child JVM that plays thread @a index of the game whose
+     * turn is kept in @a file.  It uses the same kind of platform as
+     * this process and shares its console.
+     */
+    static Process start(File file,
+                         int index,
+                         int numberOfThreads,
+                         int maxIterations,
+                         int maxTurns) throws IOException
+    {
+        PlatformStrategyFactory.PlatformType platformType =
+            Options.instance().platformType() != null
+            ? Options.instance().platformType()
+            : PlatformStrategyFactory.platformType();
+
+        /**
+         * Send the game output to stderr if Main did, so it doesn't
+         * mix with machine-readable results.
+         */
+        String output =
+            Options.instance().outputFormat() != null ? "err" : "out";
+
+        return new ProcessBuilder
+            (Arrays.asList(System.getProperty("java.home")
+                           + File.separator + "bin" + File.separator + "java",
+                           "-cp",
+                           System.getProperty("java.class.path"),
+                           PingPongProcess.class.getName(),
+                           file.getPath(),
+                           Integer.toString(index),
+                           Integer.toString(numberOfThreads),
+                           Integer.toString(maxIterations),
+                           Integer.toString(maxTurns),
+                           platformType.name(),
+                           output))
+            .inheritIO()
+            .start();
+    }
+
+    /** Tell the parent that thread @a index is waiting for its turn. */
+    static void markReady(MappedByteBuffer shared, int index)
+    {
+        shared.put(READY_OFFSET + index, READY);
+    }
+
+    /** Tell the parent that thread @a index has finished its part. */
+    static void markDone(MappedByteBuffer shared, int index)
+    {
+        shared.put(READY_OFFSET + index, DONE);
+    }
+
+    /**
+     * Wait for every child process to mark itself ready, failing if
+     * one of them exits first.
+     */
+    static void awaitReady(MappedByteBuffer shared, Process[] processes)
+    {
+        for (int i = 0; i < processes.length; ++i)
+            if (processes[i] != null)
+                while (shared.get(READY_OFFSET + i) == STARTING) {
+                    if (hasExited(processes[i]))
+                        throw new IllegalStateException
+                            ("Ping/pong process " + i + " exited with status "
+                             + processes[i].exitValue());
+
+                    LockSupport.parkNanos
+                        (TimeUnit.MILLISECONDS.toNanos(READY_POLL_MS));
+                }
+    }
+
+    /**
+     * Wait for thread @a index, which plays in @a process, to finish
+     * its part of the game, or for the process to exit if it fails
+     * before it does.
+     */
+    static void awaitDone(MappedByteBuffer shared,
+                          int index,
+                          Process process)
+    {
+        long parkNanos = MIN_DONE_POLL_NANOS;
+
+        while (shared.get(READY_OFFSET + index) != DONE
+               && !hasExited(process)) {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_DONE_POLL_NANOS);
+        }
+    }
+
+    /** Returns true if @a process has exited. */
+    private static boolean hasExited(Process process)
+    {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Entry point of a child process, whose arguments are the shared
+     * file, the index of the thread to play, the number of threads in
+     * the ring, the number of iterations and turns, the platform type,
+     * and "out" or "err" for where the game output goes.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File file = new File(args[0]);
+        int index = Integer.parseInt(args[1]);
+        int numberOfThreads = Integer.parseInt(args[2]);
+        int maxIterations = Integer.parseInt(args[3]);
+        int maxTurns = Integer.parseInt(args[4]);
+
+        /** Only one game thread runs in this process. */
+        Options.instance().parseArgs(new String[] {
+                "-i", args[3], "-t", args[4], "-n", "1"
+            });
+
+        PlatformStrategy.instance
+            (new PlatformStrategyFactory("err".equals(args[6])
+                                         ? System.err
+                                         : System.out,
+                                         null).makePlatformStrategy
+             (PlatformStrategyFactory.PlatformType.valueOf(args[5])));
+
+        new PlayPingPong(PlatformStrategy.instance(),
+                         maxIterations,
+                         maxTurns,
+                         "MMAP",
+                         numberOfThreads).playMappedThread(file, index);
+    }
+}
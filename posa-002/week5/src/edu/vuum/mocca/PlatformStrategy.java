@@ -39,12 +39,47 @@ public abstract class PlatformStrategy
     /** Print the outputString to the display. */
     public abstract void print(String outputString);
 
+    /**
+     * Print iteration @a loopsDone of the thread that prints
+     * @a stringToPrint.  Platforms that don't display the game
+     * override this to skip formatting the line.
+     */
+    public void printIteration(String stringToPrint, int loopsDone)
+    {
+        print(stringToPrint + "(" + loopsDone + ")");
+    }
+
+    /**
+     * Returns the System.nanoTime() of each iteration played in this
+     * process so far in the current game, or null if the platform
+     * doesn't measure iterations.
+     */
+    public long[] iterations()
+    {
+        return null;
+    }
+
+    /**
+     * Add the @a timestamps of the iterations a thread of the game
+     * played in another process, so the whole game is measured
+     * together.  Platforms that don't measure iterations ignore them.
+     */
+    public void addIterations(long[] timestamps)
+    {
+    }
+
     /** Indicate that a game thread has finished running. */
     public abstract void done();
 
     /** Barrier that waits for all the game threads to finish. */
     public abstract void awaitDone();
 
+    /**
+     * Write out any output that's still buffered.  Platforms that
+     * print synchronously don't need to override this.
+     */
+    public void flush() {}
+
    /**
      * Returns the name of the platform in a string. e.g., Android or
      * a JVM.
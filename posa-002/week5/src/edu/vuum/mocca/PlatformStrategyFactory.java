@@ -24,7 +24,8 @@ public class PlatformStrategyFactory
      */
     public enum PlatformType {
     	ANDROID,
-    	PLAIN_JAVA
+    	PLAIN_JAVA,
+    	BENCHMARK
     }
     
     /**
@@ -74,6 +75,20 @@ public class PlatformStrategyFactory
                                          return new ConsolePlatformStrategy(output);
                                      }
                                  });
+
+    	/** 
+         * The benchmark platform maps to a command object that creates
+         * a @a BenchmarkPlatformStrategy, which records timestamps
+         * instead of printing.
+         */
+        mPlatformStrategyMap.put(PlatformType.BENCHMARK,
+                                 new IPlatformStrategyFactoryStrategy() 
+                                 {
+                                     public PlatformStrategy execute() 
+                                     {
+                                         return new BenchmarkPlatformStrategy(output);
+                                     }
+                                 });
     }
 
     /** 
@@ -104,6 +119,15 @@ public class PlatformStrategyFactory
     {
         PlatformType type = platformType();
 
+        return makePlatformStrategy(type);
+    }
+
+    /** 
+     * Create a new @a PlatformStrategy object of the designated type,
+     * e.g., to run the BENCHMARK platform on a plain JVM.
+     */
+    public PlatformStrategy makePlatformStrategy(PlatformType type) 
+    {
         return mPlatformStrategyMap.get(type).execute();
     }
 }
@@ -1,7 +1,17 @@
 package edu.vuum.mocca;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -21,6 +31,12 @@ public class PlayPingPong implements Runnable {
     /** Maximum number of iterations per "turn" (defaults to 1). */
     private static int mMaxTurns = 1;
 
+    /**
+     * Number of threads passing the turn around the ring (defaults to
+     * 2, i.e., one ping thread and one pong thread).
+     */
+    private static int mNumberOfThreads = PlatformStrategy.NUMBER_OF_THREADS;
+
     /**
      * Keeps track of the platform that we're running on, e.g., Android vs.
      * Console.
@@ -35,10 +51,34 @@ public class PlayPingPong implements Runnable {
 
     /**
      * Constants used to distinguish between ping and pong threads.
+     * Any additional threads in a token ring follow the pong thread.
      */
     private final static int PING_THREAD = 0;
     private final static int PONG_THREAD = 1;
 
+    /**
+     * This interface uses the Strategy pattern to create the
+     * PingPongThreads for a particular synchronization mechanism at
+     * runtime.
+     */
+    private static interface IPingPongThreadFactoryStrategy {
+        public void execute(PingPongThread[] pingPongThreads);
+    }
+
+    /**
+     * HashMap used to map strings containing the synchronization
+     * mechanism names (e.g., "SEMA" or "COND") to the command objects
+     * that create the associated PingPongThreads.
+     */
+    private HashMap<String, IPingPongThreadFactoryStrategy> mSyncMechanismMap =
+        new HashMap<String, IPingPongThreadFactoryStrategy>();
+
+    /**
+     * Nanoseconds the last game took from starting its threads until
+     * they were all done, leaving out creating them.
+     */
+    private long mElapsedNanos;
+
     /**
      * @Brief PingPongThread
      * 
@@ -68,6 +108,13 @@ public class PlayPingPong implements Runnable {
         void setOtherThreadId(long id) {
         }
 
+        /**
+         * Sets the other thread, i.e., the one this thread hands its
+         * turn to in release().
+         */
+        void setOtherThread(PingPongThread otherThread) {
+        }
+
         /**
          * This method runs in a separate thread of control and
          * implements the core ping/pong algorithm. It plays the role
@@ -83,7 +130,7 @@ public class PlayPingPong implements Runnable {
 
                 acquire();
 
-                mPlatformStrategy.print(mStringToPrint + "(" + loopsDone + ")");
+                mPlatformStrategy.printIteration(mStringToPrint, loopsDone);
 
                 release();
             }
@@ -227,12 +274,585 @@ public class PlayPingPong implements Runnable {
         }
     }
 
+    /**
+     * @class PingPongThreadPark
+     * 
+     * @brief This class uses LockSupport.park() and unpark() on a
+     *        per-thread volatile flag to implement the acquire() and
+     *        release() hook methods that schedule the ping/pong
+     *        algorithm. It plays the role of the "Concrete Class" in
+     *        the Template Method pattern.
+     */
+    static class PingPongThreadPark extends PingPongThread {
+        /**
+         * True when it's this thread's turn to run.
+         */
+        private volatile boolean mMyTurn;
+
+        /**
+         * The thread whose turn it is after ours.
+         */
+        private PingPongThreadPark mOtherThread;
+
+        PingPongThreadPark(String stringToPrint, boolean isOwner) {
+            super(stringToPrint);
+            mMyTurn = isOwner;
+        }
+
+        void setOtherThread(PingPongThread otherThread) {
+            mOtherThread = (PingPongThreadPark) otherThread;
+        }
+
+        /**
+         * Hook method for ping/pong acquire.
+         */
+        void acquire() {
+            // park() may return spuriously, so recheck the flag.
+            while (!mMyTurn)
+                LockSupport.park(this);
+
+            mMyTurn = false;
+        }
+
+        /**
+         * Hook method for ping/pong release.
+         */
+        void release() {
+            mOtherThread.mMyTurn = true;
+            LockSupport.unpark(mOtherThread);
+        }
+    }
+
+    /**
+     * @class PingPongThreadSpin
+     * 
+     * @brief This class busy-spins on a per-thread volatile flag to
+     *        implement the acquire() and release() hook methods that
+     *        schedule the ping/pong algorithm. It never blocks, so it
+     *        only performs well while each thread has its own core. It
+     *        plays the role of the "Concrete Class" in the Template
+     *        Method pattern.
+     */
+    static class PingPongThreadSpin extends PingPongThread {
+        /**
+         * True when it's this thread's turn to run.
+         */
+        private volatile boolean mMyTurn;
+
+        /**
+         * The thread whose turn it is after ours.
+         */
+        private PingPongThreadSpin mOtherThread;
+
+        PingPongThreadSpin(String stringToPrint, boolean isOwner) {
+            super(stringToPrint);
+            mMyTurn = isOwner;
+        }
+
+        void setOtherThread(PingPongThread otherThread) {
+            mOtherThread = (PingPongThreadSpin) otherThread;
+        }
+
+        /**
+         * Hook method for ping/pong acquire.
+         */
+        void acquire() {
+            while (!mMyTurn)
+                continue;
+
+            mMyTurn = false;
+        }
+
+        /**
+         * Hook method for ping/pong release.
+         */
+        void release() {
+            mOtherThread.mMyTurn = true;
+        }
+    }
+
+    /**
+     * @class PingPongThreadTurn
+     * 
+     * @brief This class uses a volatile turn field shared by all the
+     *        threads, plus LockSupport.park() and unpark() on the
+     *        thread whose turn it is, to implement the acquire() and
+     *        release() hook methods that schedule the ping/pong
+     *        algorithm.  Unlike PingPongThreadCond it never takes a
+     *        lock, and it spins briefly before parking so a turn that
+     *        comes back quickly doesn't pay for a context switch.  It
+     *        plays the role of the "Concrete Class" in the Template
+     *        Method pattern.
+     */
+    static class PingPongThreadTurn extends PingPongThread {
+        /**
+         * Number of times acquire() checks the turn before parking.
+         * Spinning only helps if the other thread is running on
+         * another core, so don't spin at all on a single core.
+         */
+        final static int SPIN_LIMIT =
+            Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+
+        /**
+         * @class Turn
+         *
+         * @brief Holds the index of the thread whose turn it currently
+         *        is.
+         */
+        static class Turn {
+            volatile int mOwner;
+
+            Turn(int owner) {
+                mOwner = owner;
+            }
+        }
+
+        /**
+         * The turn shared by all the threads in the game.
+         */
+        private final Turn mTurn;
+
+        /**
+         * This thread's index in the ring.
+         */
+        private final int mIndex;
+
+        /**
+         * The thread whose turn it is after ours.
+         */
+        private PingPongThreadTurn mOtherThread;
+
+        /**
+         * Number of times we've iterated thus far in our "turn".
+         */
+        private int mIterationCount;
+
+        PingPongThreadTurn(String stringToPrint, Turn turn, int index) {
+            super(stringToPrint);
+            mTurn = turn;
+            mIndex = index;
+            mIterationCount = mMaxTurns;
+        }
+
+        void setOtherThread(PingPongThread otherThread) {
+            mOtherThread = (PingPongThreadTurn) otherThread;
+        }
+
+        /**
+         * Hook method for ping/pong acquire.
+         */
+        void acquire() {
+            // park() may return spuriously, so recheck the turn.
+            for (int spins = SPIN_LIMIT; mTurn.mOwner != mIndex; )
+                if (spins > 0)
+                    --spins;
+                else
+                    LockSupport.park(this);
+        }
+
+        /**
+         * Hook method for ping/pong release.
+         */
+        void release() {
+            if (--mIterationCount == 0)
+                passTurn();
+        }
+
+        /**
+         * Run the ping/pong algorithm, then hand over a partly used
+         * turn so the next thread isn't left waiting when the number
+         * of iterations isn't a multiple of the number of turns.
+         */
+        public void run() {
+            super.run();
+
+            if (mIterationCount != mMaxTurns)
+                passTurn();
+        }
+
+        /**
+         * Give the turn to the next thread and wake it up in case it
+         * has parked.
+         */
+        private void passTurn() {
+            mIterationCount = mMaxTurns;
+            mTurn.mOwner = mOtherThread.mIndex;
+            LockSupport.unpark(mOtherThread);
+        }
+    }
+
+    /**
+     * @class PingPongThreadMapped
+     * 
+     * @brief This class passes the turn through an int in a file that
+     *        every process in the game memory-maps, so the threads in
+     *        the ring can run in separate JVMs.  A MappedByteBuffer has
+     *        no volatile accessors, so release() writes a volatile
+     *        field after updating the turn and acquire() reads it
+     *        before checking the turn, which keeps the JIT from
+     *        reordering the buffer accesses or hoisting them out of the
+     *        wait loop.  unpark() can't wake a thread in another
+     *        process, so a waiting thread spins briefly and then parks
+     *        for exponentially longer intervals.  It plays the role of
+     *        the "Concrete Class" in the Template Method pattern.
+     */
+    static class PingPongThreadMapped extends PingPongThread {
+        /**
+         * Bounds on how long acquire() parks between checks of the
+         * turn once it's done spinning.
+         */
+        private final static long MIN_PARK_NANOS = 1000;
+        private final static long MAX_PARK_NANOS = 100000;
+
+        /**
+         * Volatile field whose accesses order the accesses to the
+         * mapped turn.
+         */
+        private static volatile int mFence;
+
+        /**
+         * The file mapping shared with the other processes.
+         */
+        private final MappedByteBuffer mShared;
+
+        /**
+         * Indices of this thread and the thread whose turn it is after
+         * ours.
+         */
+        private final int mIndex;
+        private final int mNextIndex;
+
+        /**
+         * Number of times we've iterated thus far in our "turn".
+         */
+        private int mIterationCount;
+
+        PingPongThreadMapped(String stringToPrint, MappedByteBuffer shared,
+                             int index, int numberOfThreads) {
+            super(stringToPrint);
+            mShared = shared;
+            mIndex = index;
+            mNextIndex = (index + 1) % numberOfThreads;
+            mIterationCount = mMaxTurns;
+        }
+
+        /**
+         * Hook method for ping/pong acquire.
+         */
+        void acquire() {
+            long parkNanos = MIN_PARK_NANOS;
+
+            for (int spins = PingPongThreadTurn.SPIN_LIMIT;
+                 turnOwner() != mIndex; )
+                if (spins > 0)
+                    --spins;
+                else {
+                    LockSupport.parkNanos(this, parkNanos);
+                    parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+                }
+        }
+
+        /**
+         * Hook method for ping/pong release.
+         */
+        void release() {
+            if (--mIterationCount == 0)
+                passTurn();
+        }
+
+        /**
+         * Run the ping/pong algorithm, then hand over a partly used
+         * turn so the next thread isn't left waiting when the number
+         * of iterations isn't a multiple of the number of turns.
+         */
+        public void run() {
+            super.run();
+
+            if (mIterationCount != mMaxTurns)
+                passTurn();
+        }
+
+        /**
+         * Returns the index of the thread whose turn it is.
+         */
+        private int turnOwner() {
+            // Read the fence first so the read of the turn can't be
+            // hoisted out of acquire()'s loop.  The fence is never
+            // negative, so this always returns the turn.
+            return mFence < 0
+                ? mFence
+                : mShared.getInt(PingPongProcess.TURN_OFFSET);
+        }
+
+        /**
+         * Give the turn to the next thread.
+         */
+        private void passTurn() {
+            mIterationCount = mMaxTurns;
+            mShared.putInt(PingPongProcess.TURN_OFFSET, mNextIndex);
+
+            // Write the fence so the write of the turn isn't delayed.
+            mFence = mNextIndex;
+        }
+    }
+
+    /**
+     * @class PingPongThreadProcess
+     * 
+     * @brief This class stands in for a thread of an "MMAP" game that
+     *        plays in a child process.  It just waits for the process
+     *        to finish its part, hands the platform any iterations the
+     *        process measured, and then tells the platform it's done,
+     *        so the game's barrier and timing work as they do for
+     *        threads.  It doesn't wait for the child JVM to exit, so
+     *        shutting it down isn't timed.
+     */
+    static class PingPongThreadProcess extends PingPongThread {
+        /**
+         * The child process playing this thread's part of the game.
+         */
+        private final Process mProcess;
+
+        /**
+         * The file mapping shared with the child process.
+         */
+        private final MappedByteBuffer mShared;
+
+        /**
+         * Index of this thread and number of threads in the ring.
+         */
+        private final int mIndex;
+        private final int mNumberOfThreads;
+
+        PingPongThreadProcess(String stringToPrint, Process process,
+                              MappedByteBuffer shared,
+                              int index, int numberOfThreads) {
+            super(stringToPrint);
+            mProcess = process;
+            mShared = shared;
+            mIndex = index;
+            mNumberOfThreads = numberOfThreads;
+        }
+
+        /**
+         * The child process does the acquiring and releasing.
+         */
+        void acquire() {
+        }
+
+        void release() {
+        }
+
+        /**
+         * Wait for the child process to finish its part of the game.
+         */
+        public void run() {
+            PingPongProcess.awaitDone(mShared, mIndex, mProcess);
+            mPlatformStrategy.addIterations
+                (PingPongProcess.loadIterations(mShared,
+                                                mNumberOfThreads,
+                                                mIndex));
+            mPlatformStrategy.done();
+        }
+    }
+
+    /**
+     * @class PingPongThreadHandoff
+     * 
+     * @brief This class factors out what's common to the mechanisms
+     *        that hand a token directly from one thread to the other
+     *        and block the sender until the receiver takes it (e.g.,
+     *        Exchanger and SynchronousQueue). Because release() blocks,
+     *        the owner thread starts out holding the token and takes
+     *        the final token after its last iteration so the other
+     *        thread's last release() has a receiver.
+     */
+    static abstract class PingPongThreadHandoff extends PingPongThread {
+        /**
+         * The token that's passed between the threads.
+         */
+        protected static final Object TOKEN = new Object();
+
+        /**
+         * True while this thread holds the token without having
+         * received it from the other thread, i.e., on the owner's
+         * first turn.
+         */
+        private boolean mHoldsToken;
+
+        /**
+         * True if this thread started out holding the token.
+         */
+        private final boolean mIsOwner;
+
+        PingPongThreadHandoff(String stringToPrint, boolean isOwner) {
+            super(stringToPrint);
+            mHoldsToken = isOwner;
+            mIsOwner = isOwner;
+        }
+
+        /**
+         * Hook methods that receive the token from the previous thread
+         * and hand it to the next thread, respectively.
+         */
+        abstract void take() throws InterruptedException;
+        abstract void put() throws InterruptedException;
+
+        /**
+         * Hook method for ping/pong acquire.
+         */
+        void acquire() {
+            if (mHoldsToken)
+                mHoldsToken = false;
+            else
+                try {
+                    take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * Hook method for ping/pong release.
+         */
+        void release() {
+            try {
+                put();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Run the ping/pong algorithm, then have the owner take the
+         * token handed over by the other thread's last release().
+         */
+        public void run() {
+            super.run();
+
+            if (mIsOwner)
+                acquire();
+        }
+    }
+
+    /**
+     * @class PingPongThreadExchange
+     * 
+     * @brief This class uses Exchangers to implement the acquire() and
+     *        release() hook methods that schedule the ping/pong
+     *        algorithm. It plays the role of the "Concrete Class" in
+     *        the Template Method pattern.
+     */
+    static class PingPongThreadExchange extends PingPongThreadHandoff {
+        /**
+         * Exchangers shared with the previous and next thread.
+         */
+        private final Exchanger<Object> mFromPrevious;
+        private final Exchanger<Object> mToNext;
+
+        PingPongThreadExchange(String stringToPrint,
+                               Exchanger<Object> fromPrevious,
+                               Exchanger<Object> toNext,
+                               boolean isOwner) {
+            super(stringToPrint, isOwner);
+            mFromPrevious = fromPrevious;
+            mToNext = toNext;
+        }
+
+        void take() throws InterruptedException {
+            mFromPrevious.exchange(null);
+        }
+
+        void put() throws InterruptedException {
+            mToNext.exchange(TOKEN);
+        }
+    }
+
+    /**
+     * @class PingPongThreadQueue
+     * 
+     * @brief This class uses SynchronousQueues to implement the
+     *        acquire() and release() hook methods that schedule the
+     *        ping/pong algorithm. It plays the role of the "Concrete
+     *        Class" in the Template Method pattern.
+     */
+    static class PingPongThreadQueue extends PingPongThreadHandoff {
+        /**
+         * Queues shared with the previous and next thread.
+         */
+        private final SynchronousQueue<Object> mFromPrevious;
+        private final SynchronousQueue<Object> mToNext;
+
+        PingPongThreadQueue(String stringToPrint,
+                            SynchronousQueue<Object> fromPrevious,
+                            SynchronousQueue<Object> toNext,
+                            boolean isOwner) {
+            super(stringToPrint, isOwner);
+            mFromPrevious = fromPrevious;
+            mToNext = toNext;
+        }
+
+        void take() throws InterruptedException {
+            mFromPrevious.take();
+        }
+
+        void put() throws InterruptedException {
+            mToNext.put(TOKEN);
+        }
+    }
+
+    /**
+     * @class PingPongThreadTransfer
+     * 
+     * @brief This class uses LinkedTransferQueue.transfer() to
+     *        implement the acquire() and release() hook methods that
+     *        schedule the ping/pong algorithm. It plays the role of the
+     *        "Concrete Class" in the Template Method pattern.  Note
+     *        that LinkedTransferQueue requires API level 21 on Android,
+     *        so this mechanism is only registered on the console.
+     */
+    static class PingPongThreadTransfer extends PingPongThreadHandoff {
+        /**
+         * Queues shared with the previous and next thread.
+         */
+        private final LinkedTransferQueue<Object> mFromPrevious;
+        private final LinkedTransferQueue<Object> mToNext;
+
+        PingPongThreadTransfer(String stringToPrint,
+                               LinkedTransferQueue<Object> fromPrevious,
+                               LinkedTransferQueue<Object> toNext,
+                               boolean isOwner) {
+            super(stringToPrint, isOwner);
+            mFromPrevious = fromPrevious;
+            mToNext = toNext;
+        }
+
+        void take() throws InterruptedException {
+            mFromPrevious.take();
+        }
+
+        void put() throws InterruptedException {
+            mToNext.transfer(TOKEN);
+        }
+    }
+
     /**
      * Constructor stores the PlatformStrategy and the number of iterations to
      * play ping/pong.
      */
     public PlayPingPong(PlatformStrategy platformStrategy, int maxIterations,
 			int maxTurns, String syncMechanism) {
+        this(platformStrategy, maxIterations, maxTurns, syncMechanism,
+             PlatformStrategy.NUMBER_OF_THREADS);
+    }
+
+    /**
+     * Constructor stores the PlatformStrategy, the number of iterations to
+     * play ping/pong, and the number of threads that pass the turn around
+     * the ring.
+     */
+    public PlayPingPong(PlatformStrategy platformStrategy, int maxIterations,
+			int maxTurns, String syncMechanism, int numberOfThreads) {
         // The PlatformStrategy being used.
         mPlatformStrategy = platformStrategy;
 
@@ -244,6 +864,13 @@ public class PlayPingPong implements Runnable {
 
         // Which synchronization to use (e.g., "SEMA" vs. "COND").
         mSyncMechanism = syncMechanism;
+
+        // Number of threads in the ring.
+        mNumberOfThreads = numberOfThreads;
+
+        // Register the command objects that create the threads for
+        // each synchronization mechanism.
+        makeSyncMechanismMap();
     }
 
     static String pingString = "ping  ";
@@ -262,34 +889,304 @@ public class PlayPingPong implements Runnable {
         }
     }
 
+    /**
+     * Returns true if @a syncMechanism names a registered
+     * synchronization mechanism.
+     */
+    public boolean isSyncMechanism(String syncMechanism) {
+        return mSyncMechanismMap.containsKey(syncMechanism);
+    }
+
+    /**
+     * Populate mSyncMechanismMap with the command objects that create
+     * the PingPongThreads for each synchronization mechanism.  Thread
+     * i receives its turn from thread i - 1 and hands it to thread
+     * i + 1 (modulo the ring size), so with two threads this is the
+     * classic ping/pong game.
+     */
+    private void makeSyncMechanismMap() {
+        mSyncMechanismMap.put("SEMA", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    // Create the semaphores that schedule threads
+                    // printing "ping " and "_pong" in the correct
+                    // alternating order.  Only the ping thread's
+                    // semaphore starts out unlocked.
+                    int n = pingPongThreads.length;
+                    Semaphore semas[] = new Semaphore[n];
+                    for (int i = 0; i < n; ++i)
+                        semas[i] = new Semaphore(i == PING_THREAD ? 1 : 0);
+
+                    for (int i = 0; i < n; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadSema(threadString(i),
+                                                   semas[i],
+                                                   semas[(i + 1) % n]);
+                }
+            });
+
+        mSyncMechanismMap.put("COND", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    int n = pingPongThreads.length;
+                    ReentrantLock lock = new ReentrantLock();
+                    Condition conds[] = new Condition[n];
+                    for (int i = 0; i < n; ++i)
+                        conds[i] = lock.newCondition();
+
+                    for (int i = 0; i < n; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadCond(threadString(i),
+                                                   lock,
+                                                   conds[i],
+                                                   conds[(i + 1) % n],
+                                                   i == PING_THREAD);
+                    for (int i = 0; i < n; ++i)
+                        pingPongThreads[i]
+                            .setOtherThreadId(pingPongThreads[(i + 1) % n].getId());
+                }
+            });
+
+        mSyncMechanismMap.put("PARK", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    for (int i = 0; i < pingPongThreads.length; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadPark(threadString(i),
+                                                   i == PING_THREAD);
+                    linkThreads(pingPongThreads);
+                }
+            });
+
+        mSyncMechanismMap.put("SPIN", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    for (int i = 0; i < pingPongThreads.length; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadSpin(threadString(i),
+                                                   i == PING_THREAD);
+                    linkThreads(pingPongThreads);
+                }
+            });
+
+        mSyncMechanismMap.put("TURN", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    PingPongThreadTurn.Turn turn =
+                        new PingPongThreadTurn.Turn(PING_THREAD);
+                    for (int i = 0; i < pingPongThreads.length; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadTurn(threadString(i),
+                                                   turn,
+                                                   i);
+                    linkThreads(pingPongThreads);
+                }
+            });
+
+        mSyncMechanismMap.put("EXCHANGE", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    // Exchanger i connects thread i to thread i + 1.
+                    int n = pingPongThreads.length;
+                    List<Exchanger<Object>> exchangers =
+                        new ArrayList<Exchanger<Object>>(n);
+                    for (int i = 0; i < n; ++i)
+                        exchangers.add(new Exchanger<Object>());
+
+                    for (int i = 0; i < n; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadExchange(threadString(i),
+                                                       exchangers.get((i + n - 1) % n),
+                                                       exchangers.get(i),
+                                                       i == PING_THREAD);
+                }
+            });
+
+        mSyncMechanismMap.put("QUEUE", new IPingPongThreadFactoryStrategy() {
+                public void execute(PingPongThread[] pingPongThreads) {
+                    // Queue i connects thread i to thread i + 1.
+                    int n = pingPongThreads.length;
+                    List<SynchronousQueue<Object>> queues =
+                        new ArrayList<SynchronousQueue<Object>>(n);
+                    for (int i = 0; i < n; ++i)
+                        queues.add(new SynchronousQueue<Object>());
+
+                    for (int i = 0; i < n; ++i)
+                        pingPongThreads[i] =
+                            new PingPongThreadQueue(threadString(i),
+                                                    queues.get((i + n - 1) % n),
+                                                    queues.get(i),
+                                                    i == PING_THREAD);
+                }
+            });
+
+        // Android can't start child JVMs, and LinkedTransferQueue
+        // only exists there from API level 21, so MMAP and TRANSFER
+        // are only offered on the console.
+        if (isConsole()) {
+            mSyncMechanismMap.put("MMAP", new IPingPongThreadFactoryStrategy() {
+                    public void execute(PingPongThread[] pingPongThreads) {
+                        // The ping thread plays in this process and every
+                        // other thread in the ring plays in a child JVM
+                        // that maps the same file.
+                        int n = pingPongThreads.length;
+                        Process processes[] = new Process[n];
+                        try {
+                            // Leave room for every iteration's timestamp
+                            // if the platform measures them.
+                            File file = PingPongProcess.createSharedFile();
+                            MappedByteBuffer shared =
+                                PingPongProcess.map(file, n,
+                                                    mPlatformStrategy.iterations() != null
+                                                    ? mMaxIterations
+                                                    : 0);
+
+                            for (int i = PONG_THREAD; i < n; ++i) {
+                                processes[i] =
+                                    PingPongProcess.start(file, i, n,
+                                                          mMaxIterations,
+                                                          mMaxTurns);
+                                pingPongThreads[i] =
+                                    new PingPongThreadProcess(threadString(i),
+                                                              processes[i],
+                                                              shared,
+                                                              i,
+                                                              n);
+                            }
+                            pingPongThreads[PING_THREAD] =
+                                new PingPongThreadMapped(threadString(PING_THREAD),
+                                                         shared,
+                                                         PING_THREAD,
+                                                         n);
+
+                            // Don't start the clock until every child JVM
+                            // is up and waiting for its turn.
+                            PingPongProcess.awaitReady(shared, processes);
+                        } catch (IOException e) {
+                            destroy(processes);
+                            throw new IllegalStateException("Can't start the ping/pong processes", e);
+                        } catch (RuntimeException e) {
+                            // Don't leave the child JVMs that did start
+                            // waiting for a turn that never comes.
+                            destroy(processes);
+                            throw e;
+                        }
+                    }
+                });
+
+            mSyncMechanismMap.put("TRANSFER", new IPingPongThreadFactoryStrategy() {
+                    public void execute(PingPongThread[] pingPongThreads) {
+                        // Queue i connects thread i to thread i + 1.
+                        int n = pingPongThreads.length;
+                        List<LinkedTransferQueue<Object>> queues =
+                            new ArrayList<LinkedTransferQueue<Object>>(n);
+                        for (int i = 0; i < n; ++i)
+                            queues.add(new LinkedTransferQueue<Object>());
+
+                        for (int i = 0; i < n; ++i)
+                            pingPongThreads[i] =
+                                new PingPongThreadTransfer(threadString(i),
+                                                           queues.get((i + n - 1) % n),
+                                                           queues.get(i),
+                                                           i == PING_THREAD);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Kill the child processes in @a processes that have been started.
+     */
+    private static void destroy(Process[] processes) {
+        for (Process process : processes)
+            if (process != null)
+                process.destroy();
+    }
+
+    /**
+     * Returns true if the game runs on a plain JVM rather than on
+     * Android, where some mechanisms aren't available.
+     */
+    private static boolean isConsole() {
+        return PlatformStrategyFactory.platformType()
+            == PlatformStrategyFactory.PlatformType.PLAIN_JAVA;
+    }
+
+    /**
+     * Returns the string printed by thread i: "ping" and "_pong" for
+     * the first two threads and a numbered token for the rest of the
+     * ring.
+     */
+    private static String threadString(int i) {
+        if (i == PING_THREAD)
+            return pingString;
+        else if (i == PONG_THREAD)
+            return pongString;
+        else
+            return "token" + i + " ";
+    }
+
+    /**
+     * Tell each thread which thread it hands its turn to.
+     */
+    private static void linkThreads(PingPongThread[] pingPongThreads) {
+        for (int i = 0; i < pingPongThreads.length; ++i)
+            pingPongThreads[i]
+                .setOtherThread(pingPongThreads[(i + 1) % pingPongThreads.length]);
+    }
+
     private void makePingPongThreads(String schedMechanism,
                                      PingPongThread[] pingPongThreads) {
         formatStrings();
-        if (schedMechanism.equals("SEMA")) {
-            // Create the semaphores that schedule threads
-            // printing "ping " and "_pong" in the correct
-            // alternating order.
-            Semaphore pingSema = new Semaphore(1); // Starts out unlocked.
-            Semaphore pongSema = new Semaphore(0);
-
-            pingPongThreads[PING_THREAD] = new PingPongThreadSema(pingString,
-                                                                  pingSema, pongSema);
-            pingPongThreads[PONG_THREAD] = new PingPongThreadSema(pongString,
-                                                                  pongSema, pingSema);
-        } else if (schedMechanism.equals("COND")) {
-            ReentrantLock lock = new ReentrantLock();
-            Condition pingCond = lock.newCondition();
-            Condition pongCond = lock.newCondition();
-
-            pingPongThreads[PING_THREAD] = new PingPongThreadCond(pingString,
-                                                                  lock, pingCond, pongCond, true);
-            pingPongThreads[PONG_THREAD] = new PingPongThreadCond(pongString,
-                                                                  lock, pongCond, pingCond, false);
-            pingPongThreads[PING_THREAD]
-                .setOtherThreadId(pingPongThreads[PONG_THREAD].getId());
-            pingPongThreads[PONG_THREAD]
-                .setOtherThreadId(pingPongThreads[PING_THREAD].getId());
-        }
+
+        IPingPongThreadFactoryStrategy factory =
+            mSyncMechanismMap.get(schedMechanism);
+
+        if (factory == null)
+            throw new IllegalArgumentException("Unknown sync mechanism \""
+                                               + schedMechanism + "\"");
+
+        factory.execute(pingPongThreads);
+    }
+
+    /**
+     * Play thread @a index of an "MMAP" game whose turn is kept in @a
+     * file.  This is how each child process started by PingPongProcess
+     * joins the game.
+     */
+    void playMappedThread(File file, int index) throws IOException {
+        mPlatformStrategy.begin();
+
+        MappedByteBuffer shared = PingPongProcess.map(file);
+        PingPongThread pingPongThread =
+            new PingPongThreadMapped(threadString(index),
+                                     shared,
+                                     index,
+                                     mNumberOfThreads);
+        pingPongThread.start();
+
+        /** Tell the parent process this thread is waiting for its turn. */
+        PingPongProcess.markReady(shared, index);
+
+        mPlatformStrategy.awaitDone();
+
+        /**
+         * The parent summarizes the iterations of the whole ring, so a
+         * platform that measures them saves this process's for it
+         * rather than printing them.
+         */
+        long[] iterations = mPlatformStrategy.iterations();
+        if (iterations != null)
+            PingPongProcess.saveIterations(shared,
+                                           mNumberOfThreads,
+                                           index,
+                                           iterations);
+        else
+            mPlatformStrategy.flush();
+
+        PingPongProcess.markDone(shared, index);
+    }
+
+    /**
+     * Returns how many nanoseconds the last game took once its
+     * threads (and, for "MMAP", its child JVMs) had been set up.
+     */
+    public long elapsedNanos() {
+        return mElapsedNanos;
     }
 
     /**
@@ -303,23 +1200,27 @@ public class PlayPingPong implements Runnable {
         /** Let the user know we're starting. */
         mPlatformStrategy.print("Ready...Set...Go!");
 
-        /** Create the ping and pong threads. */
-        PingPongThread pingPongThreads[] = new PingPongThread[2];
-        pingPongThreads[PING_THREAD] = null;
-        pingPongThreads[PONG_THREAD] = null;
+        /** Create the ping and pong threads (and any others in the ring). */
+        PingPongThread pingPongThreads[] = new PingPongThread[mNumberOfThreads];
 
         /**
          * Create the appropriate type of threads with the designated scheduling
          * mechanism (e.g., "SEMA" for Semaphores, "COND" for ConditionObjects,
-         * etc.).
+         * "PARK" for LockSupport, "SPIN" for busy-waiting, "TURN" for a
+         * volatile turn with spin-then-park, "MMAP" for separate
+         * processes sharing a memory-mapped file, "EXCHANGE" for
+         * Exchangers, "QUEUE" for SynchronousQueues, "TRANSFER" for
+         * LinkedTransferQueues).
          */
         makePingPongThreads(mSyncMechanism, pingPongThreads);
 
+        long startTime = System.nanoTime();
+
         /**
-         * Start ping and pong threads, which calls their run() methods.
+         * Start the threads, which calls their run() methods.
          */
-        pingPongThreads[PING_THREAD].start();
-        pingPongThreads[PONG_THREAD].start();
+        for (PingPongThread pingPongThread : pingPongThreads)
+            pingPongThread.start();
 
         /**
          * Barrier synchronization to wait for all work to be done before
@@ -327,7 +1228,26 @@ public class PlayPingPong implements Runnable {
          */
         mPlatformStrategy.awaitDone();
 
+        long elapsedTime = System.nanoTime() - startTime;
+        mElapsedNanos = elapsedTime;
+
+        /**
+         * Report how fast the turn went around the ring so mechanisms
+         * can be compared as the number of threads grows past the
+         * number of cores.
+         */
+        long passes = (long) mNumberOfThreads * mMaxIterations;
+        mPlatformStrategy.print(String.format("%d threads on %d cores: %d token passes/sec",
+                                              mNumberOfThreads,
+                                              Runtime.getRuntime().availableProcessors(),
+                                              elapsedTime > 0
+                                              ? passes * 1000000000L / elapsedTime
+                                              : 0));
+
         /** Let the user know we're done. */
         mPlatformStrategy.print("Done!");
+
+        /** Make sure all the buffered output is displayed. */
+        mPlatformStrategy.flush();
     }
 }
@@ -0,0 +1,97 @@
+package edu.vuum.mocca;
+
+import java.util.Arrays;
+
+/**
+ * @class SampleStatistics
+ *
+ * @brief Summarizes a set of timing samples (e.g., gaps between
+ *        ping/pong iterations or run times) as a count, mean,
+ *        standard deviation, and percentiles.
+ */
+public class SampleStatistics
+{
+    /** The samples in ascending order. */
+    private final long[] mSorted;
+
+    /**
+     * Ctor copies and sorts the first @a count entries of @a samples
+     * so the caller can keep reusing its array.
+     */
+    public SampleStatistics(long[] samples, int count)
+    {
+        mSorted = Arrays.copyOf(samples, count);
+        Arrays.sort(mSorted);
+    }
+
+    /** Number of samples. */
+    public int count()
+    {
+        return mSorted.length;
+    }
+
+    /** Smallest sample. */
+    public long min()
+    {
+        return mSorted.length == 0 ? 0 : mSorted[0];
+    }
+
+    /** Largest sample. */
+    public long max()
+    {
+        return mSorted.length == 0 ? 0 : mSorted[mSorted.length - 1];
+    }
+
+    /** Arithmetic mean of the samples. */
+    public double mean()
+    {
+        if (mSorted.length == 0)
+            return 0;
+
+        double sum = 0;
+        for (long sample : mSorted)
+            sum += sample;
+        return sum / mSorted.length;
+    }
+
+    /** Sample standard deviation. */
+    public double stddev()
+    {
+        if (mSorted.length < 2)
+            return 0;
+
+        double mean = mean();
+        double sumOfSquares = 0;
+        for (long sample : mSorted)
+            sumOfSquares += (sample - mean) * (sample - mean);
+        return Math.sqrt(sumOfSquares / (mSorted.length - 1));
+    }
+
+    /**
+     * The sample at the given percentile (0-100), using the
+     * nearest-rank method.
+     */
+    public long percentile(double percentile)
+    {
+        if (mSorted.length == 0)
+            return 0;
+
+        int rank = (int) Math.ceil(percentile / 100.0 * mSorted.length);
+        return mSorted[Math.max(0, Math.min(rank - 1, mSorted.length - 1))];
+    }
+
+    /** Human-readable summary with values in nanoseconds. */
+    public String toString()
+    {
+        return String.format("n=%d mean=%.0fns stddev=%.0fns min=%dns p50=%dns p90=%dns p99=%dns p99.9=%dns max=%dns",
+                             count(),
+                             mean(),
+                             stddev(),
+                             min(),
+                             percentile(50),
+                             percentile(90),
+                             percentile(99),
+                             percentile(99.9),
+                             max());
+    }
+}
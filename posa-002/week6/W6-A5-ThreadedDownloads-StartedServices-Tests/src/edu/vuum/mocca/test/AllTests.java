@@ -16,6 +16,13 @@ public class AllTests {
         suite.addTestSuite(DownloadUtilsTests.class);
         suite.addTestSuite(ThreadPoolDownloadServiceTests.class);
         suite.addTestSuite(DownloadActivityTests.class);
+        suite.addTestSuite(DownloadCacheTests.class);
+        suite.addTestSuite(DownloadSchedulerTests.class);
+        suite.addTestSuite(DownloadProgressTests.class);
+        suite.addTestSuite(BitmapDecoderTests.class);
+        suite.addTestSuite(BitmapCacheTests.class);
+        suite.addTestSuite(DownloadStatsTests.class);
+        suite.addTestSuite(LoadTests.class);
         //$JUnit-END$
         return suite;
     }
@@ -0,0 +1,110 @@
+package edu.vuum.mocca.test;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import edu.vuum.mocca.BitmapCache;
+
+/**
+ * @class BitmapCacheTests
+ *
+ * @brief Test that the BitmapCache counts the bytes of the bitmaps
+ *        it holds, stays within its budget by evicting the least
+ *        recently used bitmaps, keeps bitmaps decoded for different
+ *        sizes apart, and drops bitmaps once their files expire.
+ */
+public class BitmapCacheTests extends TestCase {
+    /**
+     * Width and height of the bitmaps cached in these tests.
+     */
+    static final int SIDE = 10;
+
+    /**
+     * Size of the screen the bitmaps are cached for.
+     */
+    static final int WIDTH = 1080;
+    static final int HEIGHT = 1920;
+
+    /**
+     * Time far enough away that nothing expires during a test.
+     */
+    static final long LATER = Long.MAX_VALUE;
+
+    /**
+     * The size is the number of bytes of the bitmaps cached, and
+     * replacing a bitmap doesn't count it twice.
+     */
+    public void test_size_counts_bytes_of_bitmaps () {
+        Bitmap bitmap = makeBitmap();
+        BitmapCache cache = new BitmapCache(10 * bitmap.getByteCount());
+
+        cache.put("http://host/a", WIDTH, HEIGHT, bitmap, LATER);
+        cache.put("http://host/b", WIDTH, HEIGHT, makeBitmap(), LATER);
+        assertEquals(2 * bitmap.getByteCount(), cache.size());
+
+        cache.put("http://host/a", WIDTH, HEIGHT, makeBitmap(), LATER);
+        assertEquals(2 * bitmap.getByteCount(), cache.size());
+    }
+
+    /**
+     * The least recently used bitmap is evicted once the cache holds
+     * more bytes than its budget.
+     */
+    public void test_least_recently_used_bitmap_is_evicted () {
+        int bytes = makeBitmap().getByteCount();
+        BitmapCache cache = new BitmapCache(2 * bytes + bytes / 2);
+
+        Bitmap first = makeBitmap();
+        cache.put("http://host/lru0", WIDTH, HEIGHT, first, LATER);
+        cache.put("http://host/lru1", WIDTH, HEIGHT, makeBitmap(), LATER);
+
+        // Use the first bitmap again so the second one is evicted.
+        assertSame(first, cache.get("http://host/lru0", WIDTH, HEIGHT));
+        cache.put("http://host/lru2", WIDTH, HEIGHT, makeBitmap(), LATER);
+
+        assertSame(first, cache.get("http://host/lru0", WIDTH, HEIGHT));
+        assertNull(cache.get("http://host/lru1", WIDTH, HEIGHT));
+        assertNotNull(cache.get("http://host/lru2", WIDTH, HEIGHT));
+        assertEquals(2 * bytes, cache.size());
+    }
+
+    /**
+     * A bitmap decoded for one screen size isn't returned for
+     * another.
+     */
+    public void test_bitmaps_are_kept_per_size () {
+        BitmapCache cache = new BitmapCache(10 * makeBitmap().getByteCount());
+        Bitmap bitmap = makeBitmap();
+
+        cache.put("http://host/sized", WIDTH, HEIGHT, bitmap, LATER);
+
+        assertSame(bitmap, cache.get("http://host/sized", WIDTH, HEIGHT));
+        assertNull(cache.get("http://host/sized", HEIGHT, WIDTH));
+    }
+
+    /**
+     * A bitmap whose file has expired is dropped rather than
+     * returned, and one that's already expired isn't cached at all.
+     */
+    public void test_expired_bitmap_is_dropped () throws InterruptedException {
+        BitmapCache cache = new BitmapCache(10 * makeBitmap().getByteCount());
+
+        cache.put("http://host/stale", WIDTH, HEIGHT, makeBitmap(),
+                  System.currentTimeMillis() - 1);
+        assertEquals(0, cache.size());
+
+        cache.put("http://host/expiring", WIDTH, HEIGHT, makeBitmap(),
+                  System.currentTimeMillis() + 50);
+        assertNotNull(cache.get("http://host/expiring", WIDTH, HEIGHT));
+
+        Thread.sleep(100);
+        assertNull(cache.get("http://host/expiring", WIDTH, HEIGHT));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Returns a new bitmap of the size cached in these tests.
+     */
+    private static Bitmap makeBitmap() {
+        return Bitmap.createBitmap(SIDE, SIDE, Bitmap.Config.ARGB_8888);
+    }
+}
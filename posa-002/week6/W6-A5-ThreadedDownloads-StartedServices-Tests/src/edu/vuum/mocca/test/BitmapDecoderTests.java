@@ -0,0 +1,44 @@
+package edu.vuum.mocca.test;
+
+import junit.framework.TestCase;
+import edu.vuum.mocca.BitmapDecoder;
+
+/**
+ * @class BitmapDecoderTests
+ *
+ * @brief Test that BitmapDecoder picks the largest inSampleSize that
+ *        keeps an image at least as big as the view it's shown in.
+ */
+public class BitmapDecoderTests extends TestCase {
+    /**
+     * An image no bigger than the target isn't downsampled.
+     */
+    public void test_small_image_is_decoded_at_full_size () {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(400, 300, 1080, 1920));
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(1080, 1920, 1080, 1920));
+    }
+
+    /**
+     * A large image is halved while both sides stay at least as big
+     * as the target.
+     */
+    public void test_large_image_is_downsampled () {
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(4000, 3000, 1920, 1080));
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(4000, 3000, 1000, 700));
+    }
+
+    /**
+     * The smaller side limits the sample size, so the image is never
+     * shown stretched.
+     */
+    public void test_smaller_side_limits_sample_size () {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(8000, 1000, 500, 600));
+    }
+
+    /**
+     * An unknown target size decodes at full size.
+     */
+    public void test_unknown_target_is_decoded_at_full_size () {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(4000, 3000, 0, 0));
+    }
+}
@@ -1,5 +1,8 @@
 package edu.vuum.mocca.test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -32,6 +35,13 @@ public class DownloadIntentServiceTests
      */
     static String mReceivedUri = null;
 
+    /**
+     * Stores the "what" and the pathnames list, if any, of the last
+     * Message received by the Handler.
+     */
+    static int mReceivedWhat;
+    static List<String> mReceivedPathnames;
+
     /**
      * The Handler that receives a Message reply from the
      * IntentService.
@@ -76,6 +86,9 @@ public class DownloadIntentServiceTests
             // We don't know what tag they'll use for the path, so we
             // have to search for it.
             mReceivedUri = Utilities.searchForPath(msg);
+            mReceivedWhat = msg.what;
+            mReceivedPathnames =
+                msg.getData().getStringArrayList(DownloadUtils.PATHNAMES_KEY);
 			
             // Let the unit test thread know we've gotten a message.
             mLatch.countDown();
@@ -159,4 +172,98 @@ public class DownloadIntentServiceTests
         // Check that the image actually downloaded.
         assertTrue(Utilities.checkDownloadedImage(mContext, mReceivedUri));
     }
+
+    /**
+     * Number of URIs in the batch test.
+     */
+    static final int BATCH_SIZE = 6;
+
+    /**
+     * Start the service with an aggregated batch and check that it
+     * answers with one Message holding every pathname in order.
+     */
+    public void test_aggregated_batch () throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            List<String> uris = new ArrayList<String>();
+            for (int i = 0; i < BATCH_SIZE; ++i) {
+                server.serve("/batch/" + i, new byte[1000 * (i + 1)], null, 0, -1);
+                uris.add(server.url("/batch/" + i));
+            }
+
+            mLatch = new CountDownLatch(1);
+
+            // Start a thread to handle the message when it's sent.
+            new Thread(new Runnable() {
+                    public void run() {
+                        Looper.prepare();
+                        mHandler = new MessageHandler(Looper.myLooper());
+                        Looper.loop();
+                    }
+                }).start();
+
+            // Wait for the handler to get instantiated
+            Thread.sleep(Options.SHORT_WAIT_TIME);
+
+            startService(DownloadIntentService.makeBatchIntent(getContext(),
+                                                               mHandler,
+                                                               uris,
+                                                               true));
+
+            assertTrue(mLatch.await(Options.LONG_WAIT_TIME,
+                                    TimeUnit.MILLISECONDS));
+            assertEquals(DownloadUtils.PATHNAMES, mReceivedWhat);
+            assertEquals(BATCH_SIZE, mReceivedPathnames.size());
+            for (int i = 0; i < BATCH_SIZE; ++i)
+                assertEquals(1000 * (i + 1),
+                             new File(mReceivedPathnames.get(i)).length());
+            assertEquals(BATCH_SIZE, server.bodyCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Number of requests in the concurrency test.
+     */
+    static final int CONCURRENT_REQUESTS = 4;
+
+    /**
+     * Start the service with several slow requests and check that
+     * they're downloaded at the same time rather than one by one.
+     */
+    public void test_requests_run_concurrently () throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            server.setLatency(Options.SHORT_WAIT_TIME / 10);
+
+            mLatch = new CountDownLatch(CONCURRENT_REQUESTS);
+
+            // Start a thread to handle the messages when they're sent.
+            new Thread(new Runnable() {
+                    public void run() {
+                        Looper.prepare();
+                        mHandler = new MessageHandler(Looper.myLooper());
+                        Looper.loop();
+                    }
+                }).start();
+
+            // Wait for the handler to get instantiated
+            Thread.sleep(Options.SHORT_WAIT_TIME);
+
+            for (int i = 0; i < CONCURRENT_REQUESTS; ++i) {
+                server.serve("/slow/" + i, new byte[10000], null, 0, -1);
+                startService(DownloadIntentService.makeIntent(getContext(),
+                                                              mHandler,
+                                                              server.url("/slow/" + i)));
+            }
+
+            assertTrue(mLatch.await(Options.LONG_WAIT_TIME,
+                                    TimeUnit.MILLISECONDS));
+            assertNotNull(mReceivedUri);
+            assertTrue(server.maxActiveRequests() > 1);
+        } finally {
+            server.shutdown();
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package edu.vuum.mocca.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import edu.vuum.mocca.DownloadScheduler;
+
+/**
+ * @class DownloadSchedulerTests
+ *
+ * @brief Test that the DownloadScheduler runs interactive downloads
+ *        while every prefetch thread is busy, drops the oldest
+ *        prefetch when its queue is full, and promotes a queued
+ *        prefetch that a user is waiting for.
+ */
+public class DownloadSchedulerTests extends TestCase {
+    /**
+     * Time in seconds to wait for a task to run.
+     */
+    static final long WAIT_SECONDS = 5;
+
+    /**
+     * @class LatchTask
+     *
+     * @brief A task that counts down a latch when it runs or is
+     *        dropped, and can be made to block until released.
+     */
+    static class LatchTask extends DownloadScheduler.Task {
+        final CountDownLatch mRan = new CountDownLatch(1);
+        final CountDownLatch mDropped = new CountDownLatch(1);
+        final CountDownLatch mRelease;
+
+        LatchTask(int priority, CountDownLatch release) {
+            super(priority);
+            mRelease = release;
+        }
+
+        @Override
+        protected long download() {
+            mRan.countDown();
+            try {
+                if (mRelease != null)
+                    mRelease.await();
+            } catch (InterruptedException e) {
+            }
+            return 0;
+        }
+
+        @Override
+        protected void dropped() {
+            mDropped.countDown();
+        }
+    }
+
+    /**
+     * The scheduler under test, with one thread per class and room
+     * for two queued prefetches.
+     */
+    DownloadScheduler mScheduler;
+
+    /**
+     * Released at the end of each test to unblock its tasks.
+     */
+    CountDownLatch mRelease;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new DownloadScheduler(1, 1, 1, 2);
+        mRelease = new CountDownLatch(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        mScheduler.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * An interactive download runs while a prefetch holds every
+     * prefetch thread.
+     */
+    public void test_interactive_is_not_delayed_by_prefetches () throws InterruptedException {
+        startBlockingPrefetch();
+        queuePrefetch();
+
+        LatchTask interactive =
+            new LatchTask(DownloadScheduler.PRIORITY_INTERACTIVE, null);
+        mScheduler.execute(interactive);
+
+        assertTrue(interactive.mRan.await(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Queuing a prefetch when the queue is full drops the oldest
+     * queued prefetch.
+     */
+    public void test_oldest_prefetch_is_dropped_when_queue_is_full () throws InterruptedException {
+        startBlockingPrefetch();
+
+        LatchTask oldest = queuePrefetch();
+        LatchTask middle = queuePrefetch();
+        LatchTask newest = queuePrefetch();
+
+        assertTrue(oldest.mDropped.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, middle.mDropped.getCount());
+        assertEquals(1, newest.mDropped.getCount());
+    }
+
+    /**
+     * Promoting a queued prefetch runs it on an interactive thread
+     * without waiting for the busy prefetch thread.
+     */
+    public void test_queued_prefetch_is_promoted () throws InterruptedException {
+        startBlockingPrefetch();
+        LatchTask queued = queuePrefetch();
+
+        assertTrue(mScheduler.promote(queued));
+        assertEquals(DownloadScheduler.PRIORITY_INTERACTIVE, queued.priority());
+        assertTrue(queued.mRan.await(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Start a prefetch that holds the only prefetch thread until the
+     * test ends.
+     */
+    private LatchTask startBlockingPrefetch() throws InterruptedException {
+        LatchTask prefetch =
+            new LatchTask(DownloadScheduler.PRIORITY_PREFETCH, mRelease);
+        mScheduler.execute(prefetch);
+        assertTrue(prefetch.mRan.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        return prefetch;
+    }
+
+    /**
+     * Queue a prefetch behind the blocking one.
+     */
+    private LatchTask queuePrefetch() {
+        LatchTask prefetch =
+            new LatchTask(DownloadScheduler.PRIORITY_PREFETCH, mRelease);
+        mScheduler.execute(prefetch);
+        return prefetch;
+    }
+}
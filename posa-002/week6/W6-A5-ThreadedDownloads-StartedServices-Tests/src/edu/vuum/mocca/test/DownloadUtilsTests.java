@@ -1,7 +1,14 @@
 package edu.vuum.mocca.test;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 import android.content.Intent;
@@ -12,6 +19,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
 import edu.vuum.mocca.DownloadActivity;
 import edu.vuum.mocca.DownloadUtils;
 
@@ -199,4 +207,164 @@ public class DownloadUtilsTests
         // Other tests use this
         mReceivedUri = null;
     }
+
+    /**
+     * Size of the file used to compare copy() with the original 1 KB
+     * read/write loop.
+     */
+    static final int LARGE_FILE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Compare the throughput of copy() with the original 1 KB
+     * read/write loop on a large file, copying both from a file and
+     * from a stream that isn't backed by a channel, and check that
+     * every copy has the length and checksum of the data.  The data
+     * is generated as it's read, so it's never held in memory.
+     */
+    public void test_copy_throughput () throws IOException {
+        File dir = getActivity().getCacheDir();
+        File source = new File(dir, "copy-source");
+        File target = new File(dir, "copy-target");
+
+        GeneratedInputStream data = new GeneratedInputStream(LARGE_FILE_SIZE);
+        OutputStream out = new FileOutputStream(source);
+        assertEquals(LARGE_FILE_SIZE, DownloadUtils.copy(data, out));
+        out.close();
+        long checksum = data.checksum();
+
+        long loopNanos = timeCopy(new FileInputStream(source), target, true);
+        assertCopied(checksum, target);
+
+        long fileNanos = timeCopy(new FileInputStream(source), target, false);
+        assertCopied(checksum, target);
+
+        long streamNanos =
+            timeCopy(new GeneratedInputStream(LARGE_FILE_SIZE), target, false);
+        assertCopied(checksum, target);
+
+        Log.d("DownloadUtilsTests",
+              String.format("copy() of %d bytes: 1 KB loop %.1f MB/s, "
+                            + "file %.1f MB/s, stream %.1f MB/s",
+                            LARGE_FILE_SIZE,
+                            megabytesPerSecond(loopNanos),
+                            megabytesPerSecond(fileNanos),
+                            megabytesPerSecond(streamNanos)));
+
+        source.delete();
+        target.delete();
+    }
+
+    /**
+     * @class GeneratedInputStream
+     *
+     * @brief A stream of pseudo-random bytes, the same ones each time
+     *        however it's read, that keeps the checksum of the bytes
+     *        read so far.  It isn't a file, so copy() reads it
+     *        through a channel.
+     */
+    static class GeneratedInputStream extends InputStream {
+        /**
+         * State of the linear congruential generator that makes the
+         * bytes.
+         */
+        private int mState;
+
+        /**
+         * Checksum of the bytes read so far.
+         */
+        private final CRC32 mChecksum = new CRC32();
+
+        /**
+         * Number of bytes left to read.
+         */
+        private int mRemaining;
+
+        /**
+         * Constructor creates a stream of @a size bytes.
+         */
+        GeneratedInputStream(int size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mRemaining == 0)
+                return -1;
+
+            int count = Math.min(len, mRemaining);
+            for (int i = off; i < off + count; ++i) {
+                mState = mState * 1103515245 + 12345;
+                b[i] = (byte) (mState >>> 16);
+            }
+            mChecksum.update(b, off, count);
+            mRemaining -= count;
+            return count;
+        }
+
+        /**
+         * Returns the checksum of the bytes read so far.
+         */
+        long checksum() {
+            return mChecksum.getValue();
+        }
+    }
+
+    /**
+     * Check that @a file holds LARGE_FILE_SIZE bytes whose checksum
+     * is @a checksum.
+     */
+    private static void assertCopied(long checksum,
+                                     File file) throws IOException {
+        assertEquals(LARGE_FILE_SIZE, file.length());
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                crc.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        assertEquals(checksum, crc.getValue());
+    }
+
+    /**
+     * Copy in to target, either with the original 1 KB loop or with
+     * DownloadUtils.copy(), and return how long it took.
+     */
+    private static long timeCopy(InputStream in,
+                                 File target,
+                                 boolean useLoop) throws IOException {
+        OutputStream out = new FileOutputStream(target);
+        long start = System.nanoTime();
+
+        if (useLoop) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } else
+            assertEquals(LARGE_FILE_SIZE, DownloadUtils.copy(in, out));
+
+        out.close();
+        long elapsed = System.nanoTime() - start;
+        in.close();
+        return elapsed;
+    }
+
+    /**
+     * Returns the throughput of copying the large file in the given
+     * time.
+     */
+    private static double megabytesPerSecond(long nanos) {
+        return LARGE_FILE_SIZE / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
 }
@@ -0,0 +1,323 @@
+package edu.vuum.mocca.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * @class LoadHarness
+ *
+ * @brief Drives many concurrent downloads through one of the
+ *        download services and measures how it copes.  Each run
+ *        serves a fresh set of files of a given size from a
+ *        LocalHttpServer that waits a given latency before each
+ *        response, issues one request per file with at most a given
+ *        number outstanding, and reports the throughput in bytes and
+ *        requests per second and the percentiles of the time each
+ *        request took to be answered.
+ *
+ *        The service is reached through a Client, so the same run can
+ *        be made against the started services and the bound ones, and
+ *        their reports, which are also logged under the "LoadHarness"
+ *        tag, compared.
+ */
+public class LoadHarness {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "LoadHarness";
+
+    /**
+     * @class Client
+     *
+     * @brief Sends requests to the service under test.
+     */
+    public interface Client {
+        /**
+         * Ask the service to download @a url, and call
+         * reply.done() with the pathname it answers with, from any
+         * thread, once it does.  Must not wait for the download.
+         */
+        void request(String url, Reply reply) throws Exception;
+    }
+
+    /**
+     * @class Reply
+     *
+     * @brief Records the answer to one request.
+     */
+    public static class Reply {
+        /**
+         * The run the request belongs to.
+         */
+        private final Run mRun;
+
+        /**
+         * When the request was made.
+         */
+        private final long mStartNanos = System.nanoTime();
+
+        /**
+         * True once done() has been called.
+         */
+        private boolean mDone;
+
+        Reply(Run run) {
+            mRun = run;
+        }
+
+        /**
+         * Record that the service answered with @a pathname, which is
+         * null if the download failed.  Later calls are ignored.
+         */
+        public void done(String pathname) {
+            synchronized (this) {
+                if (mDone)
+                    return;
+                mDone = true;
+            }
+
+            mRun.answered(System.nanoTime() - mStartNanos,
+                          pathname == null ? -1 : new File(pathname).length());
+        }
+    }
+
+    /**
+     * @class Run
+     *
+     * @brief The measurements of one run.
+     */
+    private static class Run {
+        final int mFileBytes;
+        final Semaphore mOutstanding;
+        final CountDownLatch mAnswered;
+        final long[] mLatencies;
+        int mCompleted;
+        int mFailures;
+        long mBytes;
+
+        Run(int requests, int concurrency, int fileBytes) {
+            mFileBytes = fileBytes;
+            mOutstanding = new Semaphore(concurrency);
+            mAnswered = new CountDownLatch(requests);
+            mLatencies = new long[requests];
+        }
+
+        /**
+         * Record a request answered after @a latencyNanos with a file
+         * of @a length bytes, or -1 if there was no file.
+         */
+        void answered(long latencyNanos, long length) {
+            synchronized (this) {
+                if (length == mFileBytes) {
+                    mLatencies[mCompleted++] = latencyNanos;
+                    mBytes += length;
+                } else
+                    ++mFailures;
+            }
+
+            mOutstanding.release();
+            mAnswered.countDown();
+        }
+
+        /**
+         * Returns the report of the requests answered so far, labelled
+         * with @a name, if the run took @a elapsedNanos.
+         */
+        synchronized Report report(String name, long elapsedNanos) {
+            return new Report(name,
+                              mLatencies.length,
+                              mCompleted,
+                              mFailures,
+                              mBytes,
+                              elapsedNanos,
+                              Arrays.copyOf(mLatencies, mCompleted));
+        }
+    }
+
+    /**
+     * @class Report
+     *
+     * @brief The results of one run.
+     */
+    public static class Report {
+        final String mName;
+        final int mRequests;
+        final int mCompleted;
+        final int mFailures;
+        final long mBytes;
+        final long mElapsedNanos;
+        final long[] mLatencies;
+
+        Report(String name,
+               int requests,
+               int completed,
+               int failures,
+               long bytes,
+               long elapsedNanos,
+               long[] latencies) {
+            mName = name;
+            mRequests = requests;
+            mCompleted = completed;
+            mFailures = failures;
+            mBytes = bytes;
+            mElapsedNanos = elapsedNanos;
+            mLatencies = latencies;
+            Arrays.sort(mLatencies);
+        }
+
+        /**
+         * Returns the number of requests that weren't answered with
+         * the whole file, including those that timed out.
+         */
+        public int failures() {
+            return mRequests - mCompleted;
+        }
+
+        /**
+         * Returns the bytes downloaded per second.
+         */
+        public double bytesPerSecond() {
+            return mBytes * 1e9 / Math.max(1, mElapsedNanos);
+        }
+
+        /**
+         * Returns the requests completed per second.
+         */
+        public double requestsPerSecond() {
+            return mCompleted * 1e9 / Math.max(1, mElapsedNanos);
+        }
+
+        /**
+         * Returns the latency in milliseconds that @a percent percent
+         * of the completed requests were answered within, or -1 if
+         * none were.
+         */
+        public double latencyMs(double percent) {
+            if (mLatencies.length == 0)
+                return -1;
+            return percentile(mLatencies, percent) / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                                 "%s: %d/%d requests in %d ms (%d failed, %d unanswered), "
+                                 + "%.1f KB/s, %.1f requests/s, "
+                                 + "latency p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms",
+                                 mName,
+                                 mCompleted,
+                                 mRequests,
+                                 mElapsedNanos / 1000000,
+                                 mFailures,
+                                 mRequests - mCompleted - mFailures,
+                                 bytesPerSecond() / 1024,
+                                 requestsPerSecond(),
+                                 latencyMs(50),
+                                 latencyMs(90),
+                                 latencyMs(99),
+                                 latencyMs(100));
+        }
+    }
+
+    /**
+     * Number of requests made in each run.
+     */
+    private final int mRequests;
+
+    /**
+     * Most requests outstanding at once.
+     */
+    private final int mConcurrency;
+
+    /**
+     * Size of each file served.
+     */
+    private final int mFileBytes;
+
+    /**
+     * Milliseconds the server waits before each response.
+     */
+    private final long mLatencyMs;
+
+    /**
+     * Constructor sets the shape of the load.
+     *
+     * @param requests		number of requests made in each run
+     * @param concurrency	most requests outstanding at once
+     * @param fileBytes		size of each file served
+     * @param latencyMs		milliseconds the server waits before each response
+     */
+    public LoadHarness(int requests,
+                       int concurrency,
+                       int fileBytes,
+                       long latencyMs) {
+        mRequests = requests;
+        mConcurrency = concurrency;
+        mFileBytes = fileBytes;
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Make every request through @a client, wait at most
+     * @a timeoutMs milliseconds for the answers, and return and log
+     * the report, which is labelled with @a name.
+     */
+    public Report run(String name,
+                      Client client,
+                      long timeoutMs) throws Exception {
+        Run run = new Run(mRequests, mConcurrency, mFileBytes);
+
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            // Files with no caching headers and a path of their own,
+            // so every request is a real download and none of them
+            // are coalesced.
+            String[] urls = new String[mRequests];
+            for (int i = 0; i < mRequests; ++i) {
+                String path = "/load/" + i;
+                server.serve(path, new byte[mFileBytes], null, 0, -1);
+                urls[i] = server.url(path);
+            }
+            server.setLatency(mLatencyMs);
+
+            final long deadline =
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            final long start = System.nanoTime();
+
+            for (String url : urls) {
+                if (!run.mOutstanding.tryAcquire(deadline - System.nanoTime(),
+                                                 TimeUnit.NANOSECONDS))
+                    break;
+                client.request(url, new Reply(run));
+            }
+
+            run.mAnswered.await(deadline - System.nanoTime(),
+                                TimeUnit.NANOSECONDS);
+
+            Report report = run.report(name, System.nanoTime() - start);
+            Log.i(TAG, report.toString());
+            return report;
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Returns the value that @a percent percent of the @a sorted
+     * values are no greater than, by the nearest-rank method, or -1
+     * if there are no values.
+     */
+    static long percentile(long[] sorted, double percent) {
+        if (sorted.length == 0)
+            return -1;
+
+        int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
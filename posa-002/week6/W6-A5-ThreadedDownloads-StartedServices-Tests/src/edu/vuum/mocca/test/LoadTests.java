@@ -0,0 +1,155 @@
+package edu.vuum.mocca.test;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.InstrumentationTestCase;
+import edu.vuum.mocca.DownloadIntentService;
+import edu.vuum.mocca.ThreadPoolDownloadService;
+
+/**
+ * @class LoadTests
+ *
+ * @brief Drive many concurrent downloads through the
+ *        DownloadIntentService and the ThreadPoolDownloadService with
+ *        a LoadHarness, and check that every request is answered.
+ *        Each test logs its service's throughput and latency
+ *        percentiles under the "LoadHarness" tag, so the two service
+ *        models can be compared for a given load.
+ *
+ *        The services are started through the target application's
+ *        Context, so they run in their own processes and the
+ *        measurements include the cost of the Intents and Messenger
+ *        replies.
+ */
+public class LoadTests extends InstrumentationTestCase {
+    /**
+     * Number of requests made in each run.
+     */
+    static final int REQUESTS = 50;
+
+    /**
+     * Most requests outstanding at once.
+     */
+    static final int CONCURRENCY = 8;
+
+    /**
+     * Size of each file served.
+     */
+    static final int FILE_BYTES = 64 * 1024;
+
+    /**
+     * Milliseconds the server waits before each response.
+     */
+    static final long LATENCY_MS = 50;
+
+    /**
+     * Milliseconds a run may take before its unanswered requests
+     * count as failures.
+     */
+    static final long RUN_TIMEOUT_MS = 4 * Options.LONG_WAIT_TIME;
+
+    /**
+     * The harness that makes the requests.
+     */
+    LoadHarness mHarness;
+
+    /**
+     * The context the services are started in.
+     */
+    Context mContext;
+
+    /**
+     * The Looper of the thread the services' replies are handled on.
+     */
+    volatile Looper mLooper;
+
+    /**
+     * This is called once before each test is run.
+     */
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mHarness = new LoadHarness(REQUESTS, CONCURRENCY, FILE_BYTES, LATENCY_MS);
+        mContext = getInstrumentation().getTargetContext();
+
+        // Start a thread to handle the replies when they're sent.
+        new Thread(new Runnable() {
+                public void run() {
+                    Looper.prepare();
+                    mLooper = Looper.myLooper();
+                    Looper.loop();
+                }
+            }).start();
+
+        // Wait for the Looper to get instantiated
+        while (mLooper == null)
+            Thread.sleep(10);
+    }
+
+    /**
+     * This is called once after each test is run.
+     */
+    public void tearDown() throws Exception {
+        mLooper.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Returns a Handler that passes the pathname of the reply it
+     * receives to @a reply.
+     */
+    Handler makeHandler(final LoadHarness.Reply reply) {
+        return new Handler(mLooper) {
+            public void handleMessage(Message msg) {
+                reply.done(Utilities.searchForPath(msg));
+            }
+        };
+    }
+
+    /**
+     * Load the DownloadIntentService, which downloads a few files at
+     * a time on the workers of its ParallelIntentService.
+     */
+    public void test_intent_service_load () throws Exception {
+        LoadHarness.Report report =
+            mHarness.run("DownloadIntentService",
+                         new LoadHarness.Client() {
+                             public void request(String url,
+                                                 LoadHarness.Reply reply) {
+                                 Intent intent =
+                                     DownloadIntentService.makeIntent(mContext,
+                                                                      makeHandler(reply),
+                                                                      url);
+                                 mContext.startService(intent);
+                             }
+                         },
+                         RUN_TIMEOUT_MS);
+
+        assertEquals(report.toString(), 0, report.failures());
+    }
+
+    /**
+     * Load the ThreadPoolDownloadService, which downloads several
+     * files at once.
+     */
+    public void test_thread_pool_service_load () throws Exception {
+        LoadHarness.Report report =
+            mHarness.run("ThreadPoolDownloadService",
+                         new LoadHarness.Client() {
+                             public void request(String url,
+                                                 LoadHarness.Reply reply) {
+                                 Intent intent =
+                                     ThreadPoolDownloadService.makeIntent(mContext,
+                                                                          makeHandler(reply),
+                                                                          url);
+                                 mContext.startService(intent);
+                             }
+                         },
+                         RUN_TIMEOUT_MS);
+
+        assertEquals(report.toString(), 0, report.failures());
+    }
+}
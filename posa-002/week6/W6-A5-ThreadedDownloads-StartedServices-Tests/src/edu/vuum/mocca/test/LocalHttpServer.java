@@ -0,0 +1,597 @@
+package edu.vuum.mocca.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @class LocalHttpServer
+ *
+ * @brief A small HTTP/1.1 server that runs in the test process and
+ *        serves in-memory files from 127.0.0.1, so the download code
+ *        can be tested without an Internet connection.  It answers
+ *        GET and HEAD requests, honors If-None-Match,
+ *        If-Modified-Since, Range, and If-Range, keeps connections
+ *        alive between requests, gzips whole files for clients that
+ *        accept it if asked to, ignoring their Range headers as many
+ *        compressing servers do, can delay each response
+ *        to simulate a slow link or cut responses short to simulate a
+ *        dropped connection, can forbid caching with no-store, and
+ *        counts the connections it accepts,
+ *        the requests it receives, and the response bodies it sends.
+ */
+public class LocalHttpServer {
+    /**
+     * @class Resource
+     *
+     * @brief A file served by the server, along with the caching
+     *        headers it's served with.
+     */
+    static class Resource {
+        /** Contents of the file. */
+        final byte[] mBody;
+
+        /** ETag header, or null to send none. */
+        final String mETag;
+
+        /** Last-Modified time, or 0 to send none. */
+        final long mLastModified;
+
+        /** Cache-Control max-age in seconds, or -1 to send none. */
+        final int mMaxAge;
+
+        Resource(byte[] body, String eTag, long lastModified, int maxAge) {
+            mBody = body;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mMaxAge = maxAge;
+        }
+    }
+
+    /**
+     * Socket the server accepts connections on.
+     */
+    private final ServerSocket mServerSocket;
+
+    /**
+     * Threads that handle the connections.
+     */
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * The files served, keyed by path.
+     */
+    private final Map<String, Resource> mResources =
+        new ConcurrentHashMap<String, Resource>();
+
+    /**
+     * Milliseconds to wait before sending each response.
+     */
+    private volatile long mLatencyMs = 0;
+
+    /**
+     * The open connections, which shutdown() closes.
+     */
+    private final Set<Socket> mSockets =
+        Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    /**
+     * Number of connections accepted.
+     */
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+    /**
+     * Number of requests received.
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    /**
+     * Number of requests being answered, and the most that have been
+     * at once.
+     */
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+    private final AtomicInteger mMaxActiveRequests = new AtomicInteger();
+
+    /**
+     * True if whole-file responses are gzipped for clients that
+     * accept it.
+     */
+    private volatile boolean mCompression = false;
+
+    /**
+     * True if every response says Cache-Control: no-store instead of
+     * sending the file's max-age.
+     */
+    private volatile boolean mNoStore = false;
+
+    /**
+     * Number of responses whose body was gzipped.
+     */
+    private final AtomicInteger mCompressedCount = new AtomicInteger();
+
+    /**
+     * Number of responses that included all or part of a file's
+     * contents.
+     */
+    private final AtomicInteger mBodyCount = new AtomicInteger();
+
+    /**
+     * Number of responses that included part of a file's contents.
+     */
+    private final AtomicInteger mRangeCount = new AtomicInteger();
+
+    /**
+     * True if Range requests are honored rather than ignored.
+     */
+    private volatile boolean mRangesSupported = true;
+
+    /**
+     * Number of responses still to be cut short, and the number of
+     * bytes of body each of them sends first.
+     */
+    private final AtomicInteger mInterruptions = new AtomicInteger();
+    private volatile int mInterruptAfterBytes;
+
+    /**
+     * Constructor starts the server on an unused port.
+     */
+    public LocalHttpServer() throws IOException {
+        mServerSocket =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        for (;;) {
+                            final Socket socket = mServerSocket.accept();
+                            mSockets.add(socket);
+                            mConnectionCount.incrementAndGet();
+                            mExecutor.execute(new Runnable() {
+                                    public void run() {
+                                        handle(socket);
+                                    }
+                                });
+                        }
+                    } catch (IOException e) {
+                        // The server socket was closed by shutdown().
+                    }
+                }
+            });
+    }
+
+    /**
+     * Returns the URL of the given path on this server.
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Serve @a body at @a path with the given caching headers.
+     */
+    public void serve(String path,
+                      byte[] body,
+                      String eTag,
+                      long lastModified,
+                      int maxAge) {
+        mResources.put(path, new Resource(body, eTag, lastModified, maxAge));
+    }
+
+    /**
+     * Wait @a latencyMs milliseconds before sending each response.
+     */
+    public void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Honor Range requests if @a rangesSupported is true, or ignore
+     * them and send the whole file if it's false.
+     */
+    public void setRangesSupported(boolean rangesSupported) {
+        mRangesSupported = rangesSupported;
+    }
+
+    /**
+     * Close the connection after sending @a afterBytes bytes of the
+     * body of each of the next @a count responses.
+     */
+    public void interruptResponses(int count, int afterBytes) {
+        mInterruptAfterBytes = afterBytes;
+        mInterruptions.set(count);
+    }
+
+    /**
+     * Gzip whole-file responses to clients that accept it if
+     * @a compression is true.
+     */
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Send Cache-Control: no-store with every response if @a noStore
+     * is true.
+     */
+    public void setNoStore(boolean noStore) {
+        mNoStore = noStore;
+    }
+
+    /**
+     * Returns the number of connections accepted.
+     */
+    public int connectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /**
+     * Returns the most requests that were being answered at once.
+     */
+    public int maxActiveRequests() {
+        return mMaxActiveRequests.get();
+    }
+
+    /**
+     * Returns the number of responses whose body was gzipped.
+     */
+    public int compressedCount() {
+        return mCompressedCount.get();
+    }
+
+    /**
+     * Returns the number of requests received.
+     */
+    public int requestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of responses that included all or part of a
+     * file's contents.
+     */
+    public int bodyCount() {
+        return mBodyCount.get();
+    }
+
+    /**
+     * Returns the number of responses that included part of a file's
+     * contents.
+     */
+    public int rangeCount() {
+        return mRangeCount.get();
+    }
+
+    /**
+     * Stop accepting connections and release the server's threads.
+     */
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        for (Socket socket : mSockets)
+            socket.close();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Answer the requests sent over the socket until the client
+     * closes the connection or asks for it to be closed.
+     */
+    private void handle(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out =
+                new BufferedOutputStream(socket.getOutputStream());
+
+            while (handleRequest(in, out))
+                continue;
+        } catch (IOException e) {
+            // The client went away.
+        } catch (InterruptedException e) {
+            // The server was shut down.
+        } finally {
+            mSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Read one request from the stream and send the response.
+     * Returns false if the connection should be closed.
+     */
+    private boolean handleRequest(InputStream in,
+                                  OutputStream out) throws IOException,
+                                                           InterruptedException {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+            return false;
+
+        Map<String, String> headers = new HashMap<String, String>();
+        for (String line; (line = readLine(in)) != null
+                 && line.length() > 0; ) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+        }
+
+        mRequestCount.incrementAndGet();
+        final int active = mActiveRequests.incrementAndGet();
+        for (int max; (max = mMaxActiveRequests.get()) < active
+                 && !mMaxActiveRequests.compareAndSet(max, active); )
+            continue;
+
+        try {
+            if (mLatencyMs > 0)
+                Thread.sleep(mLatencyMs);
+
+            respond(requestLine, headers, out);
+            out.flush();
+        } finally {
+            mActiveRequests.decrementAndGet();
+        }
+
+        return !"close".equalsIgnoreCase(headers.get("connection"));
+    }
+
+    /**
+     * Send the response to a request.
+     */
+    private void respond(String requestLine,
+                         Map<String, String> headers,
+                         OutputStream out) throws IOException {
+        String[] parts = requestLine.split(" ");
+        Resource resource =
+            parts.length > 1 ? mResources.get(parts[1]) : null;
+
+        long[] range = resource == null ? null : range(resource, headers);
+
+        if (resource == null)
+            writeHead(out, "404 Not Found", 0, null, null);
+        else if (notModified(resource, headers))
+            writeHead(out, "304 Not Modified", -1, null, resource);
+        else if (range != null && range[0] >= resource.mBody.length)
+            writeHead(out,
+                      "416 Range Not Satisfiable",
+                      0,
+                      "bytes */" + resource.mBody.length,
+                      null);
+        else if (range != null) {
+            int first = (int) range[0];
+            int last = (int) Math.min(range[1], resource.mBody.length - 1);
+            writeHead(out,
+                      "206 Partial Content",
+                      last - first + 1,
+                      "bytes " + first + "-" + last + "/" + resource.mBody.length,
+                      resource);
+            if (!"HEAD".equals(parts[0])) {
+                writeBody(out, resource.mBody, first, last - first + 1);
+                mBodyCount.incrementAndGet();
+                mRangeCount.incrementAndGet();
+            }
+        }
+        else if (mCompression && acceptsGzip(headers)) {
+            byte[] body = gzip(resource.mBody);
+            writeHead(out, "200 OK", body.length, null, resource,
+                      "Content-Encoding: gzip\r\n");
+            if (!"HEAD".equals(parts[0])) {
+                writeBody(out, body, 0, body.length);
+                mBodyCount.incrementAndGet();
+                mCompressedCount.incrementAndGet();
+            }
+        }
+        else {
+            writeHead(out, "200 OK", resource.mBody.length, null, resource);
+            if (!"HEAD".equals(parts[0])) {
+                writeBody(out, resource.mBody, 0, resource.mBody.length);
+                mBodyCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the request's Accept-Encoding includes gzip.
+     */
+    private static boolean acceptsGzip(Map<String, String> headers) {
+        String acceptEncoding = headers.get("accept-encoding");
+        if (acceptEncoding == null)
+            return false;
+
+        for (String coding : acceptEncoding.split(","))
+            if (coding.trim().toLowerCase(Locale.US).startsWith("gzip"))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns @a body gzipped.
+     */
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns true if the request's validators match the resource.
+     */
+    private static boolean notModified(Resource resource,
+                                       Map<String, String> headers) {
+        String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null)
+            return ifNoneMatch.equals(resource.mETag);
+
+        String ifModifiedSince = headers.get("if-modified-since");
+        if (ifModifiedSince != null && resource.mLastModified != 0)
+            try {
+                // HTTP dates only have one-second resolution.
+                return resource.mLastModified / 1000
+                    <= httpDateFormat().parse(ifModifiedSince).getTime() / 1000;
+            } catch (ParseException e) {
+            }
+
+        return false;
+    }
+
+    /**
+     * Returns the first and last byte of the range requested, with a
+     * last byte of Long.MAX_VALUE if it's open-ended, or null if the
+     * whole file should be sent.  A Range whose If-Range doesn't
+     * match the resource's ETag or Last-Modified date is ignored, as
+     * is a Range from a client that's sent the file gzipped.
+     */
+    private long[] range(Resource resource,
+                         Map<String, String> headers) {
+        String range = headers.get("range");
+        if (!mRangesSupported
+            || (mCompression && acceptsGzip(headers))
+            || range == null
+            || !range.startsWith("bytes=")
+            || range.indexOf(',') >= 0)
+            return null;
+
+        String ifRange = headers.get("if-range");
+        if (ifRange != null
+            && !ifRange.equals(resource.mETag)
+            && !(resource.mLastModified != 0
+                 && ifRange.equals(httpDateFormat().format(new Date(resource.mLastModified)))))
+            return null;
+
+        int dash = range.indexOf('-');
+        try {
+            long first = Long.parseLong(range.substring(6, dash).trim());
+            String last = range.substring(dash + 1).trim();
+            return new long[] {
+                first,
+                last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last)
+            };
+        } catch (RuntimeException e) {
+            // Suffix ranges and malformed ones get the whole file.
+            return null;
+        }
+    }
+
+    /**
+     * Write @a length bytes of @a body starting at @a offset, unless
+     * the response is to be cut short.
+     */
+    private void writeBody(OutputStream out,
+                           byte[] body,
+                           int offset,
+                           int length) throws IOException {
+        for (int count; (count = mInterruptions.get()) > 0; )
+            if (mInterruptions.compareAndSet(count, count - 1)) {
+                out.write(body, offset, Math.min(length, mInterruptAfterBytes));
+                out.flush();
+                throw new IOException("Interrupted the response");
+            }
+
+        out.write(body, offset, length);
+    }
+
+    /**
+     * Write the status line and headers of a response.  A negative
+     * @a contentLength sends no Content-Length header, and a null
+     * @a contentRange sends no Content-Range header.
+     */
+    private void writeHead(OutputStream out,
+                           String status,
+                           long contentLength,
+                           String contentRange,
+                           Resource resource) throws IOException {
+        writeHead(out, status, contentLength, contentRange, resource, "");
+    }
+
+    /**
+     * Write the status line and headers of a response as
+     * writeHead(out, status, contentLength, contentRange, resource)
+     * does, followed by the CRLF-terminated @a extraHeaders.
+     */
+    private void writeHead(OutputStream out,
+                           String status,
+                           long contentLength,
+                           String contentRange,
+                           Resource resource,
+                           String extraHeaders) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append(extraHeaders);
+        if (contentLength >= 0)
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (contentRange != null)
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        if (mRangesSupported)
+            head.append("Accept-Ranges: bytes\r\n");
+
+        if (resource != null) {
+            if (resource.mETag != null)
+                head.append("ETag: ").append(resource.mETag).append("\r\n");
+            if (resource.mLastModified != 0)
+                head.append("Last-Modified: ")
+                    .append(httpDateFormat().format(new Date(resource.mLastModified)))
+                    .append("\r\n");
+            if (mNoStore)
+                head.append("Cache-Control: no-store\r\n");
+            else if (resource.mMaxAge >= 0)
+                head.append("Cache-Control: max-age=")
+                    .append(resource.mMaxAge)
+                    .append("\r\n");
+        }
+
+        head.append("\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * Returns a formatter for dates in HTTP headers.
+     */
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Read a CRLF-terminated line, or return null at the end of the
+     * stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        for (int c; (c = in.read()) != -1; ) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
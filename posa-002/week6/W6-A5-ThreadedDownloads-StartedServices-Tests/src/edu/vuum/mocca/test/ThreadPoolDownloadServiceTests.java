@@ -1,5 +1,7 @@
 package edu.vuum.mocca.test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -163,6 +165,101 @@ public class ThreadPoolDownloadServiceTests
         // Check that the file downloaded correctly
         assertTrue(Utilities.checkDownloadedImage(context, mReceivedUri));
     }
-}
 
+    /**
+     * Number of requests for the same URI made while its download is
+     * in flight.
+     */
+    static final int DUPLICATE_REQUESTS = 5;
+
+    /**
+     * Start the service several times for the same URI while the
+     * first download is still in flight, and check that every request
+     * gets the pathname but the file is only downloaded once.
+     */
+    public void test_duplicate_requests_share_one_download () throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            // No caching headers, so the DownloadCache can't satisfy
+            // the requests by itself.
+            server.serve("/slow", new byte[100000], null, 0, -1);
+            server.setLatency(Options.SHORT_WAIT_TIME / 5);
+
+            mLatch = new CountDownLatch(DUPLICATE_REQUESTS);
+
+            // Start a thread to handle the messages when they're sent.
+            new Thread(new Runnable() {
+                    public void run() {
+                        Looper.prepare();
+                        mHandler = new MessageHandler(Looper.myLooper());
+                        Looper.loop();
+                    }
+                }).start();
+
+            // Wait for the handler to get instantiated
+            Thread.sleep(Options.SHORT_WAIT_TIME);
+
+            for (int i = 0; i < DUPLICATE_REQUESTS; ++i)
+                startService(ThreadPoolDownloadService.makeIntent(getContext(),
+                                                                  mHandler,
+                                                                  server.url("/slow")));
+
+            // Every request should get a reply.
+            assertTrue(mLatch.await(Options.LONG_WAIT_TIME,
+                                    TimeUnit.MILLISECONDS));
+            assertNotNull(mReceivedUri);
+
+            // But the file should only have been sent once.
+            assertEquals(1, server.bodyCount());
+        } finally {
+            server.shutdown();
+        }
+    }
 
+    /**
+     * Number of URIs in the batch test.
+     */
+    static final int BATCH_SIZE = 6;
+
+    /**
+     * Start the service with a progressive batch and check that every
+     * URI is downloaded and answered with a Message of its own.
+     */
+    public void test_progressive_batch () throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            List<String> uris = new ArrayList<String>();
+            for (int i = 0; i < BATCH_SIZE; ++i) {
+                server.serve("/batch/" + i, new byte[10000], null, 0, -1);
+                uris.add(server.url("/batch/" + i));
+            }
+
+            mLatch = new CountDownLatch(BATCH_SIZE);
+
+            // Start a thread to handle the messages when they're sent.
+            new Thread(new Runnable() {
+                    public void run() {
+                        Looper.prepare();
+                        mHandler = new MessageHandler(Looper.myLooper());
+                        Looper.loop();
+                    }
+                }).start();
+
+            // Wait for the handler to get instantiated
+            Thread.sleep(Options.SHORT_WAIT_TIME);
+
+            startService(ThreadPoolDownloadService.makeBatchIntent(getContext(),
+                                                                   mHandler,
+                                                                   uris,
+                                                                   false));
+
+            // Every URI should get a reply.
+            assertTrue(mLatch.await(Options.LONG_WAIT_TIME,
+                                    TimeUnit.MILLISECONDS));
+            assertNotNull(mReceivedUri);
+            assertEquals(BATCH_SIZE, server.bodyCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
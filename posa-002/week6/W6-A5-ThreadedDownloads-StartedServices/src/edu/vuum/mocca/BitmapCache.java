@@ -0,0 +1,141 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * @class BitmapCache
+ *
+ * @brief Keeps decoded bitmaps in memory so an image that's shown
+ *        again is displayed without reading or decoding its file.
+ *        Bitmaps are kept by URL and the size they were decoded for,
+ *        and the cache holds at most a configurable number of bytes
+ *        of them, dropping the least recently used first.  Each
+ *        bitmap is kept only until its file expires in the
+ *        DownloadCache, after which get() drops it so the image is
+ *        revalidated with the server.
+ *
+ *        When the system runs low on memory, trimMemory() shrinks the
+ *        cache on a background thread, so the UI thread that's told
+ *        about the shortage never waits for the eviction.
+ */
+public class BitmapCache {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "BitmapCache";
+
+    /**
+     * @class Entry
+     *
+     * @brief A cached bitmap and the time until which it's fresh.
+     */
+    static class Entry {
+        /** The decoded bitmap. */
+        final Bitmap mBitmap;
+
+        /** Time until which the bitmap may be shown. */
+        final long mExpires;
+
+        Entry(Bitmap bitmap, long expires) {
+            mBitmap = bitmap;
+            mExpires = expires;
+        }
+    }
+
+    /**
+     * The cached bitmaps, keyed by key() and sized in bytes.
+     */
+    private final LruCache<String, Entry> mBitmaps;
+
+    /**
+     * Shrinks the cache when memory runs low.
+     */
+    private final ExecutorService mTrimExecutor =
+        Executors.newSingleThreadExecutor(
+            DownloadUtils.makeThreadFactory(TAG,
+                                            Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * Constructor creates a cache that holds at most @a maxBytes
+     * bytes of bitmaps.
+     */
+    public BitmapCache(int maxBytes) {
+        mBitmaps = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.mBitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the bitmap of @a url decoded for @a width by
+     * @a height, or null if it isn't cached or has expired.
+     */
+    public Bitmap get(String url, int width, int height) {
+        String key = key(url, width, height);
+        Entry entry = mBitmaps.get(key);
+        if (entry == null)
+            return null;
+
+        if (System.currentTimeMillis() >= entry.mExpires) {
+            mBitmaps.remove(key);
+            return null;
+        }
+        return entry.mBitmap;
+    }
+
+    /**
+     * Cache @a bitmap as @a url decoded for @a width by @a height
+     * until @a expires.  A bitmap that has already expired isn't
+     * cached.
+     */
+    public void put(String url, int width, int height, Bitmap bitmap,
+                    long expires) {
+        if (System.currentTimeMillis() < expires)
+            mBitmaps.put(key(url, width, height), new Entry(bitmap, expires));
+    }
+
+    /**
+     * Returns the number of bytes of bitmaps in the cache.
+     */
+    public int size() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * Shrink the cache in the background according to @a level, one
+     * of the ComponentCallbacks2.TRIM_MEMORY constants: everything is
+     * dropped once the process is likely to be killed, and half the
+     * cache is dropped when memory is merely getting low.
+     */
+    public void trimMemory(final int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return;
+
+        mTrimExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "trimming for memory level " + level);
+                    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+                        mBitmaps.evictAll();
+                    else
+                        mBitmaps.trimToSize(mBitmaps.maxSize() / 2);
+                }
+            });
+    }
+
+    /**
+     * Returns the key of @a url decoded for @a width by @a height.
+     */
+    private static String key(String url, int width, int height) {
+        return width + "x" + height + ":" + url;
+    }
+}
@@ -0,0 +1,277 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @class BitmapDecoder
+ *
+ * @brief Decodes image files on a background thread at the size
+ *        they'll be displayed at, rather than at full resolution on
+ *        the UI thread.  Each decode reads the image's bounds first,
+ *        picks the largest power-of-two inSampleSize that keeps the
+ *        image at least as big as the target, and decodes into a
+ *        bitmap from its BitmapPool when one of the right size is
+ *        free and the platform can decode a sampled image into it.
+ *        Only the finished bitmap is posted to the UI thread.
+ *        A small image that arrived in memory is decoded straight
+ *        from its bytes.
+ *
+ *        This class implements the Half-Sync/Half-Async pattern: the
+ *        decode thread is the synchronous layer and the Handler of
+ *        the UI thread's Looper is the queueing layer.
+ */
+public class BitmapDecoder {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "BitmapDecoder";
+
+    /**
+     * First API level (KitKat) whose decoder can reuse a bitmap for
+     * an image it samples down.  Before that inBitmap only works
+     * with an inSampleSize of 1.
+     */
+    static final int SAMPLED_REUSE_SDK = 19;
+
+    /**
+     * @class Callback
+     *
+     * @brief Told on the UI thread about a finished decode.
+     */
+    public interface Callback {
+        /**
+         * Called with the decoded bitmap, or null if the file
+         * couldn't be decoded.
+         */
+        void onDecoded(Bitmap bitmap);
+    }
+
+    /**
+     * Decodes one image at a time, so decoding never needs memory for
+     * more than one image beyond what's displayed.
+     */
+    private final ExecutorService mExecutor =
+        Executors.newSingleThreadExecutor(
+            DownloadUtils.makeThreadFactory(TAG,
+                                            Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * Posts finished decodes to the UI thread.
+     */
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Bitmaps that can be decoded into.
+     */
+    private final BitmapPool mPool;
+
+    /**
+     * Constructor creates a decoder that pools at most
+     * @a poolBytes bytes of bitmaps.
+     */
+    public BitmapDecoder(long poolBytes) {
+        mPool = new BitmapPool(poolBytes);
+    }
+
+    /**
+     * Returns the pool of bitmaps that can be decoded into.
+     */
+    public BitmapPool pool() {
+        return mPool;
+    }
+
+    /**
+     * Decode @a pathname in the background at no less than
+     * @a reqWidth by @a reqHeight, if it's that big, and pass the
+     * bitmap to @a callback on the UI thread.
+     */
+    public void decode(String pathname,
+                       int reqWidth,
+                       int reqHeight,
+                       Callback callback) {
+        decode(pathname, null, reqWidth, reqHeight, callback);
+    }
+
+    /**
+     * Decode the image held in @a contents as decode(pathname, ...)
+     * does.
+     */
+    public void decode(byte[] contents,
+                       int reqWidth,
+                       int reqHeight,
+                       Callback callback) {
+        decode(null, contents, reqWidth, reqHeight, callback);
+    }
+
+    /**
+     * Decode @a pathname, or @a contents if it's null, in the
+     * background and pass the bitmap to @a callback on the UI thread.
+     */
+    private void decode(final String pathname,
+                        final byte[] contents,
+                        final int reqWidth,
+                        final int reqHeight,
+                        final Callback callback) {
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Bitmap bitmap = pathname != null
+                        ? decodeFile(pathname, reqWidth, reqHeight)
+                        : decodeByteArray(contents, reqWidth, reqHeight);
+
+                    final long posted = System.nanoTime();
+                    mUiHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                DownloadStats.instance().record(DownloadStats.UI_POST,
+                                                                System.nanoTime() - posted);
+                                callback.onDecoded(bitmap);
+                            }
+                        });
+                }
+            });
+    }
+
+    /**
+     * Run @a task on the decode thread, after the decodes already
+     * requested.  Used for other disk reads that go with a decode.
+     */
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Give a bitmap that's no longer displayed back to the pool.
+     */
+    public void recycle(Bitmap bitmap) {
+        mPool.put(bitmap);
+    }
+
+    /**
+     * Decode @a pathname on the calling thread at no less than
+     * @a reqWidth by @a reqHeight, if it's that big.  Returns null if
+     * the file can't be decoded.  The time taken is recorded in the
+     * DownloadStats as the decode phase.
+     */
+    public Bitmap decodeFile(String pathname,
+                             int reqWidth,
+                             int reqHeight) {
+        if (pathname == null)
+            return null;
+
+        final long start = System.nanoTime();
+        try {
+            return decodeSampled(pathname, null, reqWidth, reqHeight);
+        } finally {
+            DownloadStats.instance().record(DownloadStats.DECODE,
+                                            System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decode the image held in @a contents as decodeFile() does.
+     * Returns null if it can't be decoded.
+     */
+    public Bitmap decodeByteArray(byte[] contents,
+                                  int reqWidth,
+                                  int reqHeight) {
+        if (contents == null)
+            return null;
+
+        final long start = System.nanoTime();
+        try {
+            return decodeSampled(null, contents, reqWidth, reqHeight);
+        } finally {
+            DownloadStats.instance().record(DownloadStats.DECODE,
+                                            System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decode @a pathname, or @a contents if it's null, as
+     * decodeFile() describes.
+     */
+    private Bitmap decodeSampled(String pathname,
+                                 byte[] contents,
+                                 int reqWidth,
+                                 int reqHeight) {
+        // Read just the size of the image.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(pathname, contents, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth,
+                                                     options.outHeight,
+                                                     reqWidth,
+                                                     reqHeight);
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT >= SAMPLED_REUSE_SDK
+            || options.inSampleSize == 1)
+            options.inBitmap =
+                mPool.get(sampledSize(options.outWidth, options.inSampleSize),
+                          sampledSize(options.outHeight, options.inSampleSize),
+                          options.inPreferredConfig);
+
+        try {
+            return decode(pathname, contents, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder couldn't reuse the pooled bitmap, so give
+            // it back and allocate a new one.
+            Log.d(TAG, "couldn't reuse a pooled bitmap: " + e);
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(pathname, contents, options);
+        }
+    }
+
+    /**
+     * Decode @a pathname, or @a contents if it's null, with
+     * @a options.
+     */
+    private static Bitmap decode(String pathname,
+                                 byte[] contents,
+                                 BitmapFactory.Options options) {
+        return pathname != null
+            ? BitmapFactory.decodeFile(pathname, options)
+            : BitmapFactory.decodeByteArray(contents, 0, contents.length, options);
+    }
+
+    /**
+     * Returns the largest power of two that @a width by @a height can
+     * be divided by while staying at least @a reqWidth by
+     * @a reqHeight.
+     */
+    public static int calculateInSampleSize(int width,
+                                            int height,
+                                            int reqWidth,
+                                            int reqHeight) {
+        int inSampleSize = 1;
+
+        if (reqWidth > 0 && reqHeight > 0)
+            while (width / (inSampleSize * 2) >= reqWidth
+                   && height / (inSampleSize * 2) >= reqHeight)
+                inSampleSize *= 2;
+
+        return inSampleSize;
+    }
+
+    /**
+     * Returns the length of a side of @a length pixels after it's
+     * decoded with @a inSampleSize.
+     */
+    private static int sampledSize(int length, int inSampleSize) {
+        return (length + inSampleSize - 1) / inSampleSize;
+    }
+}
@@ -0,0 +1,131 @@
+package edu.vuum.mocca;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * @class BitmapPool
+ *
+ * @brief Holds bitmaps that are no longer displayed so BitmapDecoder
+ *        can decode into them through BitmapFactory.Options.inBitmap
+ *        instead of allocating new ones.  Bitmaps are kept by width,
+ *        height, and config, since reusing one requires an exact
+ *        match on older platforms, and the pool holds at most a
+ *        configurable number of bytes, dropping the oldest first.
+ */
+public class BitmapPool {
+    /**
+     * The pooled bitmaps of each size, keyed by key().
+     */
+    private final HashMap<String, ArrayDeque<Bitmap>> mBitmaps =
+        new HashMap<String, ArrayDeque<Bitmap>>();
+
+    /**
+     * Every pooled bitmap, oldest first.
+     */
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<Bitmap>();
+
+    /**
+     * Maximum number of bytes of bitmaps the pool holds.
+     */
+    private long mMaxBytes;
+
+    /**
+     * Number of bytes of bitmaps the pool holds.
+     */
+    private long mBytes;
+
+    /**
+     * Constructor sets the maximum number of bytes the pool holds.
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Add a bitmap that's no longer used to the pool.  Bitmaps that
+     * can't be decoded into, i.e., immutable or recycled ones, are
+     * ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null
+            || bitmap.isRecycled()
+            || !bitmap.isMutable()
+            || bitmap.getByteCount() > mMaxBytes
+            || mOrder.contains(bitmap))
+            return;
+
+        String key = key(bitmap.getWidth(),
+                         bitmap.getHeight(),
+                         bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<Bitmap>();
+            mBitmaps.put(key, bitmaps);
+        }
+
+        bitmaps.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mBytes += bitmap.getByteCount();
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Remove and return a pooled bitmap of the given size and config,
+     * or return null if there isn't one.
+     */
+    public synchronized Bitmap get(int width,
+                                   int height,
+                                   Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key(width, height, config));
+        if (bitmaps == null)
+            return null;
+
+        Bitmap bitmap = bitmaps.pollLast();
+        if (bitmaps.isEmpty())
+            mBitmaps.remove(key(width, height, config));
+
+        mOrder.remove(bitmap);
+        mBytes -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Drop the oldest bitmaps until the pool holds at most
+     * @a maxBytes bytes.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mOrder.isEmpty()) {
+            Bitmap oldest = mOrder.pollFirst();
+            String key = key(oldest.getWidth(),
+                             oldest.getHeight(),
+                             oldest.getConfig());
+            ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+            bitmaps.remove(oldest);
+            if (bitmaps.isEmpty())
+                mBitmaps.remove(key);
+            mBytes -= oldest.getByteCount();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of bitmaps in the pool.
+     */
+    public synchronized long size() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the key of bitmaps of the given size and config.  A
+     * null config, which is what BitmapFactory decodes JPEGs to by
+     * default, means ARGB_8888.
+     */
+    private static String key(int width,
+                              int height,
+                              Bitmap.Config config) {
+        return width + "x" + height + ":"
+            + (config == null ? Bitmap.Config.ARGB_8888 : config);
+    }
+}
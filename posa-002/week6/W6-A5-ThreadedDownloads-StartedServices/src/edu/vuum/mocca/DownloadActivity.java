@@ -4,6 +4,8 @@ import java.lang.ref.WeakReference;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.view.View;
@@ -43,7 +45,8 @@ public class DownloadActivity extends DownloadBase {
     /**
      * This is the handler used for handling messages sent by a
      * Messenger.  It receives a message containing a pathname to an
-     * image and displays that image in the ImageView.
+     * image and displays that image in the ImageView, along with
+     * progress messages while the image downloads.
      *
      * The handler plays several roles in the Active Object pattern,
      * including Proxy, Future, and Servant.
@@ -76,8 +79,29 @@ public class DownloadActivity extends DownloadBase {
             // If DownloadActivity hasn't been garbage collected
             // (closed by user), display the sent image.
             if (activity != null) {
-                String url = msg.getData().getString(DownloadUtils.PATHNAME_KEY);
-                activity.displayBitmap(url);
+                if (msg.what == DownloadUtils.PROGRESS) {
+                    Bundle data = msg.getData();
+                    activity.displayProgress(data.getLong(DownloadUtils.BYTES_DONE_KEY),
+                                             data.getLong(DownloadUtils.BYTES_TOTAL_KEY),
+                                             data.getLong(DownloadUtils.BYTES_PER_SECOND_KEY));
+                    return;
+                }
+
+                // The service sends the Uri it downloaded along with
+                // the pathname, so the decoded bitmap can be cached.
+                // A small file's contents may come in place of its
+                // pathname, with when they expire, and are decoded
+                // straight from memory.
+                Uri uri = (Uri) msg.obj;
+                String url = uri == null ? null : uri.toString();
+                byte[] contents = msg.getData().getByteArray(DownloadUtils.CONTENTS_KEY);
+                if (contents != null)
+                    activity.displayContents(url,
+                                             contents,
+                                             msg.getData().getLong(DownloadUtils.EXPIRES_KEY));
+                else
+                    activity.displayBitmap(url,
+                                           msg.getData().getString(DownloadUtils.PATHNAME_KEY));
             }
     	}
     }
@@ -97,20 +121,32 @@ public class DownloadActivity extends DownloadBase {
      * on the button pressed.
      * 
      * To get the URL from the EditText, please use getUrlString()
-     * defined in DownloadBase.
+     * defined in DownloadBase.  Neither service is used if the image
+     * is in the BitmapCache.
      */
     public void runService(View view) {
     	String which = "";
 
+        // An image that's already been displayed is shown again
+        // straight from memory, whichever service downloaded it.
+        if (displayCachedBitmap(getUrlString())) {
+            Toast.makeText(this, "Displaying cached image", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
     	switch (view.getId()) {
         case R.id.intent_service_button:
             Intent downloadIntentService = DownloadIntentService.makeIntent(this, handler, mEditText.getText().toString());
+            downloadIntentService.putExtra(DownloadUtils.PROGRESS_INTERVAL_KEY, DownloadUtils.DEFAULT_PROGRESS_INTERVAL_MS);
+            downloadIntentService.putExtra(DownloadUtils.MAX_BYTES_IN_MEMORY_KEY, DownloadUtils.DEFAULT_MAX_BYTES_IN_MEMORY);
             startService(downloadIntentService);
             which = "Starting DownloadIntentService";
             break;
         
         case R.id.thread_pool_button:
             Intent threadPoolDownloadService = ThreadPoolDownloadService.makeIntent(this, handler, mEditText.getText().toString());
+            threadPoolDownloadService.putExtra(DownloadUtils.PROGRESS_INTERVAL_KEY, DownloadUtils.DEFAULT_PROGRESS_INTERVAL_MS);
+            threadPoolDownloadService.putExtra(DownloadUtils.MAX_BYTES_IN_MEMORY_KEY, DownloadUtils.DEFAULT_MAX_BYTES_IN_MEMORY);
             startService(threadPoolDownloadService);
             which = "Starting ThreadPoolDownloadService";
             break;
@@ -1,10 +1,17 @@
 package edu.vuum.mocca;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.widget.EditText;
@@ -54,16 +61,262 @@ public class DownloadBase extends Activity {
      * Store the current bitmap for testing purposes.
      */
     public Bitmap mCurrentBitmap;
+
+    /**
+     * Most bytes of bitmaps kept for decoding into once they're no
+     * longer displayed.
+     */
+    static final long BITMAP_POOL_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Decodes images off the UI thread.  Shared by every instance so
+     * a recreated Activity reuses the same pool.
+     */
+    private static BitmapDecoder mDecoder;
+
+    /**
+     * Bitmaps that have been displayed, kept so showing one again
+     * needs neither a disk read nor a decode.  Shared by every
+     * instance, whichever service downloaded the image.
+     */
+    private static BitmapCache mCache;
+
+    /**
+     * True if mCurrentBitmap was put in the BitmapCache.  Such a bitmap
+     * may be shown by another instance too, so it's left to the
+     * garbage collector rather than given back to the pool.
+     */
+    private boolean mCurrentIsCached;
+
+    /**
+     * Incremented by each call to displayBitmap(), so a decode that
+     * finishes after a later one was requested is discarded.
+     */
+    private int mDisplayGeneration;
     
     /**
-     * Display the given file in the ImageView.  Use
-     * BitmapFactory.decodeFile().  Store the bitmap used to update
-     * the file to make testing easier.
+     * Display the given file in the ImageView.  The file is decoded
+     * on a background thread by the BitmapDecoder, at no more than
+     * the resolution of the screen, and only the finished bitmap is
+     * set on the UI thread.  Store the bitmap used to update the
+     * file to make testing easier.
      */
     void displayBitmap (String pathname) {
-    	mCurrentBitmap = BitmapFactory.decodeFile(pathname);
-    	
-    	mImageView.setImageBitmap(mCurrentBitmap);
+        displayBitmap(null, pathname);
+    }
+
+    /**
+     * Display the given file, downloaded from @a url, as
+     * displayBitmap(pathname) does, and keep the decoded bitmap in
+     * the BitmapCache so displayCachedBitmap() can show it again.  A
+     * null @a url means the bitmap isn't cached.
+     */
+    void displayBitmap (String url,
+                        String pathname) {
+        display(url, pathname, null, 0);
+    }
+
+    /**
+     * Display the image downloaded from @a url whose file @a contents
+     * the service replied with, as displayBitmap(url, pathname) does
+     * but without reading the file back from the cache.  The bitmap
+     * is cached until the file @a expires, which the reply says
+     * since the file may not be in the DownloadCache's index yet.
+     */
+    void displayContents (String url,
+                          byte[] contents,
+                          long expires) {
+        display(url, null, contents, expires);
+    }
+
+    /**
+     * Decode the image in the file @a pathname, or in @a contents if
+     * it's null, and display it as displayBitmap(url, pathname) does.
+     * A bitmap decoded from @a contents is cached until
+     * @a fileExpires; one decoded from a file is cached until the
+     * file expires in the DownloadCache.
+     */
+    private void display (final String url,
+                          String pathname,
+                          byte[] contents,
+                          long fileExpires) {
+        final int generation = ++mDisplayGeneration;
+
+        // The ImageView wraps its content, so the most it can show
+        // is the whole screen.
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+
+        // When the file expires is read on the decode thread before
+        // the decode, so it's known by the time the bitmap is.
+        final AtomicLong expires = new AtomicLong(fileExpires);
+        if (url != null && contents == null)
+            readExpiry(url, expires);
+
+        BitmapDecoder.Callback callback =
+                         new BitmapDecoder.Callback() {
+                             @Override
+                             public void onDecoded(Bitmap bitmap) {
+                                 final boolean cached =
+                                     url != null && bitmap != null;
+                                 if (cached)
+                                     cache().put(url,
+                                                 metrics.widthPixels,
+                                                 metrics.heightPixels,
+                                                 bitmap,
+                                                 expires.get());
+
+                                 if (generation == mDisplayGeneration)
+                                     showBitmap(bitmap, cached);
+                                 else if (!cached)
+                                     decoder().recycle(bitmap);
+                             }
+                         };
+
+        if (pathname != null)
+            decoder().decode(pathname,
+                             metrics.widthPixels,
+                             metrics.heightPixels,
+                             callback);
+        else
+            decoder().decode(contents,
+                             metrics.widthPixels,
+                             metrics.heightPixels,
+                             callback);
+    }
+
+    /**
+     * Read when the file downloaded from @a url expires in the
+     * DownloadCache into @a expires, on the decode thread so the UI
+     * thread never waits for the disk.  A file whose expiry can't be
+     * read is treated as already expired.
+     */
+    private void readExpiry (final String url,
+                             final AtomicLong expires) {
+        final Context context = getApplicationContext();
+        decoder().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        expires.set(DownloadCache.instance(context).expiry(url));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Couldn't read when " + url + " expires: " + e);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Display the image downloaded from @a url straight from the
+     * BitmapCache.  Returns false, leaving the display alone, if it
+     * isn't cached at the size of this screen or its file has
+     * expired, in which case the service revalidates it.
+     */
+    boolean displayCachedBitmap (String url) {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        Bitmap bitmap = cache().get(url,
+                                    metrics.widthPixels,
+                                    metrics.heightPixels);
+        if (bitmap == null)
+            return false;
+
+        Log.d(TAG, "displaying cached " + url);
+        ++mDisplayGeneration;
+        showBitmap(bitmap, true);
+        return true;
+    }
+
+    /**
+     * Set @a bitmap on the ImageView and give the bitmap it replaces
+     * back to the BitmapDecoder's pool, unless it's cached.
+     */
+    private void showBitmap (Bitmap bitmap,
+                             boolean cached) {
+        Bitmap previous = mCurrentBitmap;
+        boolean previousIsCached = mCurrentIsCached;
+
+        mCurrentBitmap = bitmap;
+        mCurrentIsCached = cached;
+        mImageView.setImageBitmap(bitmap);
+
+        if (previous != mDefaultBitmap
+            && previous != bitmap
+            && !previousIsCached)
+            decoder().recycle(previous);
+    }
+
+    /**
+     * Returns the BitmapDecoder shared by every instance.
+     */
+    private static synchronized BitmapDecoder decoder () {
+        if (mDecoder == null)
+            mDecoder = new BitmapDecoder(BITMAP_POOL_BYTES);
+        return mDecoder;
+    }
+
+    /**
+     * Returns the BitmapCache shared by every instance, which may
+     * use up to an eighth of the heap.
+     */
+    private static synchronized BitmapCache cache () {
+        if (mCache == null)
+            mCache = new BitmapCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                                                    Integer.MAX_VALUE));
+        return mCache;
+    }
+
+    /**
+     * Hook method called when the system wants memory back.  The
+     * BitmapCache is shrunk in the background, and pooled bitmaps
+     * are dropped once memory is running low.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        cache().trimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            decoder().pool().trimToSize(0);
+    }
+
+    /**
+     * Hook method called on older platforms when memory is nearly
+     * exhausted, which drops every cached and pooled bitmap.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        cache().trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        decoder().pool().trimToSize(0);
+    }
+
+    /**
+     * Hook method called by "adb shell dumpsys activity", which also
+     * prints the DownloadStats of this process, i.e., the decode and
+     * UI post times.
+     */
+    @Override
+    public void dump(String prefix,
+                     FileDescriptor fd,
+                     PrintWriter writer,
+                     String[] args) {
+        super.dump(prefix, fd, writer, args);
+        DownloadStats.instance().dump(writer);
+    }
+    
+    /**
+     * Show how far the current download has got in the title bar.
+     * A @a bytesTotal of -1 means the size of the file isn't known.
+     */
+    void displayProgress (long bytesDone,
+                          long bytesTotal,
+                          long bytesPerSecond) {
+        if (bytesTotal > 0)
+            setTitle(String.format("%d%% at %d KB/s",
+                                   bytesDone * 100 / bytesTotal,
+                                   bytesPerSecond / 1024));
+        else
+            setTitle(String.format("%d KB at %d KB/s",
+                                   bytesDone / 1024,
+                                   bytesPerSecond / 1024));
     }
     
     /**
@@ -78,8 +331,8 @@ public class DownloadBase extends Activity {
      * reset the image default URL.
      */
     public void resetImage(View view) {
-    	mImageView.setImageBitmap(mDefaultBitmap);
-    	mCurrentBitmap = mDefaultBitmap;
+        ++mDisplayGeneration;
+        showBitmap(mDefaultBitmap, false);
         mEditText.setText(getResources().getString(R.string.default_url));
         Log.d(TAG, "reset Image");
     }
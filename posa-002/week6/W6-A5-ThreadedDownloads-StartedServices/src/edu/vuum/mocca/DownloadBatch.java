@@ -0,0 +1,311 @@
+package edu.vuum.mocca;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Messenger;
+import android.util.Log;
+
+/**
+ * @class DownloadBatch
+ *
+ * @brief The URIs of one request and the Messenger their pathnames go
+ *        back to, so a gallery of images costs one Intent, one
+ *        dispatch, and, if the requester wants, one reply.
+ *
+ *        A progressive batch replies to each URI as its download
+ *        finishes, with the same PATHNAME Message a single request
+ *        gets.  An aggregated batch waits for every URI and replies
+ *        once with a PATHNAMES Message whose Bundle holds the URIs and
+ *        their pathnames, in the order they were asked for, or at once
+ *        if it has no URIs.  A request for a single URI is a
+ *        progressive batch of one, which may also ask for a small
+ *        file's contents in place of its pathname.
+ *
+ *        A batch may ask to preview its images, in which case the
+ *        pathnames of their thumbnails are sent in place of the
+ *        images wherever the thumbnails have been made.
+ *
+ *        downloadAll() runs the download of each URI as a task of its
+ *        own on the Executor it's given, e.g., the workers of the
+ *        DownloadIntentService, and returns without waiting for them.
+ */
+public class DownloadBatch {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "DownloadBatch";
+
+    /**
+     * @class Item
+     *
+     * @brief One URI of a batch, which is told its pathname once.
+     */
+    public class Item {
+        /**
+         * Position of the URI in the batch.
+         */
+        private final int mIndex;
+
+        Item(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * Returns the URI to download.
+         */
+        public Uri uri() {
+            return Uri.parse(mUris.get(mIndex));
+        }
+
+        /**
+         * Returns the Messenger of the batch's requester.
+         */
+        public Messenger messenger() {
+            return mMessenger;
+        }
+
+        /**
+         * Returns the most bytes a file may have for the reply to
+         * hold its contents, or 0 if it mustn't.
+         */
+        public int maxBytesInMemory() {
+            return mMaxBytesInMemory;
+        }
+
+        /**
+         * Returns the size of the square the requester previews the
+         * image in, or 0 if it wants the image itself.
+         */
+        public int previewSize() {
+            return mPreviewSize;
+        }
+
+        /**
+         * Reply with the pathname of a thumbnail that previews the
+         * URI, if the requester asked for a preview and one has been
+         * made.  Returns true if it replied.
+         */
+        public boolean donePreview(Context context) {
+            String preview = DownloadUtils.preview(context,
+                                                   uri(),
+                                                   mPreviewSize);
+            if (preview == null)
+                return false;
+
+            done(preview);
+            return true;
+        }
+
+        /**
+         * Reply with the @a pathname of the URI, which is null if it
+         * couldn't be downloaded.
+         */
+        public void done(String pathname) {
+            DownloadBatch.this.done(mIndex, pathname, null, 0);
+        }
+
+        /**
+         * Reply with the @a contents of the URI if they're in memory
+         * and small enough for a requester that asked for contents,
+         * or with the pathname of the cached file otherwise.  A null @a contents means the URI couldn't be
+         * downloaded.
+         */
+        public void done(DownloadCache.Contents contents) {
+            if (contents != null
+                && contents.bytes() != null
+                && mMaxBytesInMemory > 0
+                && contents.length() <= mMaxBytesInMemory)
+                DownloadBatch.this.done(mIndex,
+                                        null,
+                                        contents.bytes(),
+                                        contents.expires());
+            else
+                done(DownloadUtils.pathname(contents));
+        }
+    }
+
+    /**
+     * The URIs to download.
+     */
+    private final List<String> mUris;
+
+    /**
+     * The Messenger the pathnames are sent to.
+     */
+    private final Messenger mMessenger;
+
+    /**
+     * True if the pathnames are sent in one Message once they're all
+     * known.
+     */
+    private final boolean mAggregate;
+
+    /**
+     * Most bytes a file may have for its reply to hold its contents.
+     */
+    private final int mMaxBytesInMemory;
+
+    /**
+     * Size of the square the requester previews the images in, or 0
+     * if it wants the images themselves.
+     */
+    private final int mPreviewSize;
+
+    /**
+     * The pathname of each URI, once it's known.
+     */
+    private final String[] mPathnames;
+
+    /**
+     * Number of URIs whose pathname isn't known yet.
+     */
+    private int mRemaining;
+
+    /**
+     * Constructor creates a batch of @a uris whose pathnames are sent
+     * to @a messenger, all at once if @a aggregate is true.
+     */
+    public DownloadBatch(List<String> uris,
+                         Messenger messenger,
+                         boolean aggregate) {
+        this(uris, messenger, aggregate, 0, 0);
+    }
+
+    /**
+     * Constructor creates a batch as above whose progressive replies
+     * hold the contents of files of at most @a maxBytesInMemory
+     * bytes rather than their pathnames.  If @a previewSize isn't 0,
+     * the pathnames of thumbnails that preview the images in a square
+     * that big are sent instead of the images, where they've been
+     * made.
+     */
+    public DownloadBatch(List<String> uris,
+                         Messenger messenger,
+                         boolean aggregate,
+                         int maxBytesInMemory,
+                         int previewSize) {
+        mUris = new ArrayList<String>(uris);
+        mMessenger = messenger;
+        mAggregate = aggregate;
+        mMaxBytesInMemory = aggregate ? 0 : maxBytesInMemory;
+        mPreviewSize = previewSize;
+        mPathnames = new String[mUris.size()];
+        mRemaining = mUris.size();
+    }
+
+    /**
+     * Returns the batch that @a intent asks for, i.e., the URIs of a
+     * batch Intent or the data of any other Intent, replied to with
+     * its Messenger.
+     */
+    public static DownloadBatch fromIntent(Intent intent) {
+        Messenger messenger =
+            (Messenger) intent.getExtras().get(DownloadUtils.MESSENGER_KEY);
+
+        if (DownloadUtils.isBatch(intent))
+            return new DownloadBatch(intent.getStringArrayListExtra(DownloadUtils.URIS_KEY),
+                                     messenger,
+                                     intent.getBooleanExtra(DownloadUtils.AGGREGATE_KEY,
+                                                            false),
+                                     0,
+                                     DownloadUtils.previewSize(intent));
+        else
+            return new DownloadBatch(Arrays.asList(intent.getData().toString()),
+                                     messenger,
+                                     false,
+                                     DownloadUtils.maxBytesInMemory(intent),
+                                     DownloadUtils.previewSize(intent));
+    }
+
+    /**
+     * Returns the URIs of the batch, each of which must be told its
+     * pathname.  An aggregated batch with no URIs has nothing to wait
+     * for, so it replies at once.
+     */
+    public List<Item> items() {
+        if (mAggregate && mUris.isEmpty())
+            sendPaths();
+
+        List<Item> items = new ArrayList<Item>(mUris.size());
+        for (int i = 0; i < mUris.size(); ++i)
+            items.add(new Item(i));
+        return items;
+    }
+
+    /**
+     * Download every URI of the batch into @a context's cache, each
+     * as a task of its own on @a executor, and reply with their
+     * pathnames as they finish.  Returns without waiting for them.
+     */
+    public void downloadAll(final Context context,
+                            Executor executor) {
+        for (final Item item : items()) {
+            final long queued = System.nanoTime();
+            executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        DownloadStats.Trace trace = DownloadStats.begin();
+                        trace.add(DownloadStats.QUEUE_WAIT,
+                                  System.nanoTime() - queued);
+                        try {
+                            if (item.donePreview(context))
+                                return;
+
+                            String pathname =
+                                DownloadUtils.downloadFile(context,
+                                                           item.uri());
+                            item.done(pathname);
+                            if (pathname != null)
+                                DownloadUtils.makeThumbnails(context,
+                                                             item.uri(),
+                                                             DownloadCache.Contents.onDisk(new File(pathname)));
+                        } finally {
+                            trace.finish();
+                        }
+                    }
+                });
+        }
+    }
+
+    /**
+     * Record the @a pathname of the URI at @a index, or its
+     * @a contents and when they @a expires, and send whatever reply
+     * is now due.
+     */
+    private void done(int index,
+                      String pathname,
+                      byte[] contents,
+                      long expires) {
+        boolean last;
+        synchronized (this) {
+            mPathnames[index] = pathname;
+            last = --mRemaining == 0;
+        }
+
+        if (!mAggregate)
+            DownloadUtils.sendPath(Uri.parse(mUris.get(index)),
+                                   pathname,
+                                   contents,
+                                   expires,
+                                   mMessenger);
+        else if (last)
+            sendPaths();
+    }
+
+    /**
+     * Send the aggregated reply with every URI's pathname.
+     */
+    private void sendPaths() {
+        Log.d(TAG, "replying with " + mUris.size() + " pathnames");
+        DownloadUtils.sendPaths(new ArrayList<String>(mUris),
+                                new ArrayList<String>(Arrays.asList(mPathnames)),
+                                mMessenger);
+    }
+}
@@ -1,6 +1,14 @@
 package edu.vuum.mocca;
 
-import android.app.IntentService;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
@@ -10,9 +18,11 @@ import android.os.Messenger;
 /**
  * @class DownloadIntentService
  *
- * @brief This class extends the IntentService, which provides a
- *        framework that simplifies programming and processing Android
- *        Started Services concurrently.
+ * @brief This class extends the ParallelIntentService, which, like
+ *        IntentService, provides a framework that simplifies
+ *        programming and processing Android Started Services
+ *        concurrently, but handles several Intents at once, so one
+ *        slow download doesn't hold up the others.
  * 
  *        DownloadIntentService receives an Intent containing a URL
  *        (which is a type of URI) and a Messenger (which is an IPC
@@ -20,15 +30,77 @@ import android.os.Messenger;
  *        the file system, then returns the path name to the caller
  *        using the supplied Messenger.
  * 
- *        The IntentService class implements the CommandProcessor
+ *        An Intent made by DownloadUtils.makeCancelIntent() cancels
+ *        the downloads of its URI that are running, along with any
+ *        requests for the URI that arrived before it.
+ *
+ *        An Intent made by makeBatchIntent() asks for a list of URIs
+ *        at once.  DownloadBatch.downloadAll() queues each URI's
+ *        download for the workers as a task of its own, so a batch
+ *        doesn't hold a worker while its downloads run.  A batch's
+ *        downloads can't be cancelled one URI at a time.
+ *
+ *        A requester whose Intent has a MAX_BYTES_IN_MEMORY_KEY extra
+ *        is sent the contents of a small file rather than its
+ *        pathname, and the file is written to the cache afterwards.
+ *        One whose Intent has a PREVIEW_SIZE_KEY extra is sent the
+ *        pathname of a thumbnail instead, if it's been made, and
+ *        nothing is downloaded.  Thumbnails of each download are made
+ *        by the ThumbnailMaker once it's been replied to.
+ *
+ *        The phases of each download are recorded in the
+ *        DownloadStats of the Service's process, which "adb shell
+ *        dumpsys activity service DownloadIntentService" prints.
+ * 
+ *        The ParallelIntentService class implements the CommandProcessor
  *        pattern and the Template Method Pattern.  The Messenger is
  *        used as part of the Active Object pattern.
  */
-public class DownloadIntentService extends IntentService {
+public class DownloadIntentService extends ParallelIntentService {
+    /**
+     * The key of the extra that onStartCommand() stamps each Intent
+     * with the time it was queued at, in System.nanoTime() units.
+     */
+    private static final String QUEUED_AT_KEY = "QUEUED_AT";
+
+    /**
+     * The key of the extra that onStartCommand() stamps each Intent
+     * with its place in the order the Intents arrived in.
+     */
+    private static final String SEQUENCE_KEY = "SEQUENCE";
+
+    /**
+     * The DownloadProgress of each download that's running, with its
+     * URI, which a cancel Intent uses to stop it.  Also guards
+     * mCancelledBefore, mUnchecked, and mSequence.
+     */
+    private final HashMap<DownloadProgress, String> mRunning =
+        new HashMap<DownloadProgress, String>();
+
+    /**
+     * The place of the newest cancel Intent for each URI.  A request
+     * for a URI that arrived before its cancel is skipped.  A cancel
+     * is forgotten once every Intent that arrived before it has been
+     * checked.
+     */
+    private final HashMap<String, Long> mCancelledBefore =
+        new HashMap<String, Long>();
+
+    /**
+     * Places of the Intents that have arrived but haven't been
+     * checked against mCancelledBefore yet.
+     */
+    private final TreeSet<Long> mUnchecked = new TreeSet<Long>();
+
+    /**
+     * Number of Intents that have arrived.
+     */
+    private long mSequence;
+
     /**
      * The default constructor for this service. Simply forwards
-     * construction to IntentService, passing in a name for the Thread
-     * that the service runs in.
+     * construction to ParallelIntentService, passing in a name for
+     * the Threads that the service runs in.
      */
     public DownloadIntentService() { 
         super("IntentService Worker Thread"); 
@@ -36,7 +108,7 @@ public class DownloadIntentService extends IntentService {
 
     /**
      * Optionally allow the instantiator to specify the name of the
-     * thread this service runs in.
+     * threads this service runs in.
      */
     public DownloadIntentService(String name) {
         super(name);
@@ -74,6 +146,55 @@ public class DownloadIntentService extends IntentService {
         return intent;
     }
 
+    /**
+     * Make an intent that will start this service downloading every
+     * URI in @a uris, replying to @a handler as
+     * DownloadUtils.makeBatchIntent() describes.
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         Handler handler,
+                                         List<String> uris,
+                                         boolean aggregate) {
+        return DownloadUtils.makeBatchIntent(context,
+                                             DownloadIntentService.class,
+                                             handler,
+                                             uris,
+                                             aggregate);
+    }
+
+    /**
+     * Hook method called on the main thread for each Intent before
+     * it's queued.  A cancel Intent stops the running downloads of
+     * its URI right away rather than waiting its turn in the queue.
+     */
+    @Override
+    public int onStartCommand(Intent intent,
+                              int flags,
+                              int startId) {
+        if (intent != null) {
+            intent.putExtra(QUEUED_AT_KEY, System.nanoTime());
+
+            synchronized (mRunning) {
+                intent.putExtra(SEQUENCE_KEY, ++mSequence);
+                mUnchecked.add(mSequence);
+
+                if (DownloadUtils.ACTION_CANCEL.equals(intent.getAction())) {
+                    String uri = intent.getData().toString();
+                    mCancelledBefore.put(uri, mSequence);
+
+                    for (Map.Entry<DownloadProgress, String> running
+                             : mRunning.entrySet())
+                        if (uri.equals(running.getValue()))
+                            running.getKey().cancel();
+                }
+            }
+        }
+
+        // The cancel Intent is queued as well, so the Service only
+        // stops once it's been handled.
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     /**
      * Hook method called when a component calls startService() with
      * the proper intent.  This method serves as the Executor in the
@@ -90,6 +211,107 @@ public class DownloadIntentService extends IntentService {
      */
     @Override
     protected void onHandleIntent (Intent intent) {
-        DownloadUtils.downloadAndRespond(getApplicationContext(), intent.getData(), (Messenger) intent.getExtras().get(DownloadUtils.MESSENGER_KEY));
+        long sequence = intent.getLongExtra(SEQUENCE_KEY, 0);
+
+        if (DownloadUtils.isBatch(intent)) {
+            synchronized (mRunning) {
+                checked(sequence);
+            }
+            DownloadBatch.fromIntent(intent).downloadAll(getApplicationContext(),
+                                                         new Executor() {
+                                                             @Override
+                                                             public void execute(Runnable task) {
+                                                                 DownloadIntentService.this.execute(task);
+                                                             }
+                                                         });
+            return;
+        }
+
+        // onStartCommand() has already acted on a cancel.
+        if (DownloadUtils.ACTION_CANCEL.equals(intent.getAction())) {
+            synchronized (mRunning) {
+                checked(sequence);
+            }
+            return;
+        }
+
+        String uri = intent.getData().toString();
+
+        Messenger messenger =
+            (Messenger) intent.getExtras().get(DownloadUtils.MESSENGER_KEY);
+
+        DownloadProgress progress =
+            DownloadUtils.makeProgress(intent, messenger);
+
+        DownloadStats.Trace trace = DownloadStats.begin();
+        trace.add(DownloadStats.QUEUE_WAIT,
+                  System.nanoTime() - intent.getLongExtra(QUEUED_AT_KEY,
+                                                          System.nanoTime()));
+
+        // Publish the download while checking for a cancel, so a
+        // cancel either skips it or finds it running.
+        boolean cancelled;
+        synchronized (mRunning) {
+            Long cancelledBefore = mCancelledBefore.get(uri);
+            cancelled = cancelledBefore != null
+                && sequence < cancelledBefore;
+            if (!cancelled)
+                mRunning.put(progress, uri);
+            checked(sequence);
+        }
+
+        try {
+            String preview = cancelled
+                ? null
+                : DownloadUtils.preview(getApplicationContext(),
+                                        intent.getData(),
+                                        DownloadUtils.previewSize(intent));
+            if (cancelled)
+                DownloadUtils.sendPath(null, messenger);
+            else if (preview != null)
+                DownloadUtils.sendPath(intent.getData(), preview, messenger);
+            else
+                DownloadUtils.downloadAndRespond(getApplicationContext(),
+                                                 intent.getData(),
+                                                 DownloadUtils.maxBytesInMemory(intent),
+                                                 messenger,
+                                                 progress);
+        } finally {
+            synchronized (mRunning) {
+                mRunning.remove(progress);
+            }
+            trace.finish();
+        }
+    }
+
+    /**
+     * Record that the Intent at @a sequence has been checked against
+     * mCancelledBefore, and forget the cancels that no unchecked
+     * Intent arrived before, which is all of them once the Service
+     * is idle.  Must be called with mRunning locked.
+     */
+    private void checked(long sequence) {
+        mUnchecked.remove(sequence);
+        if (mUnchecked.isEmpty()) {
+            mCancelledBefore.clear();
+            return;
+        }
+
+        long oldest = mUnchecked.first();
+        for (Iterator<Long> i = mCancelledBefore.values().iterator();
+             i.hasNext(); )
+            if (i.next() < oldest)
+                i.remove();
+    }
+
+    /**
+     * Hook method called by "adb shell dumpsys", which prints the
+     * DownloadStats of this process.
+     */
+    @Override
+    protected void dump(FileDescriptor fd,
+                        PrintWriter writer,
+                        String[] args) {
+        DownloadStats.instance().dump(writer);
     }
 }
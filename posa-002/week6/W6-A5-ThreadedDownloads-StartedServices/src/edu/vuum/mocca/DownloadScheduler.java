@@ -0,0 +1,377 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @class DownloadScheduler
+ *
+ * @brief Runs downloads in two priority classes.  Interactive
+ *        downloads, i.e., the ones a user is waiting for, run on their
+ *        own threads, so a burst of prefetches never delays them.
+ *        Prefetches run on background-priority threads from a bounded
+ *        queue; when the queue is full the oldest prefetch is dropped,
+ *        since it's the one least likely to still be wanted.
+ *
+ *        The number of prefetch threads adapts to the link: after every
+ *        few prefetches the scheduler compares the throughput and
+ *        latency it measured with those of the previous window, and
+ *        keeps adding (or removing) threads while that helps, within
+ *        the limits it was constructed with.
+ *
+ *        Each task runs under a DownloadStats.Trace of its own, which
+ *        starts with the time the task spent queued.
+ */
+public class DownloadScheduler {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "DownloadScheduler";
+
+    /**
+     * Priority of a download a user is waiting for.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    /**
+     * Priority of a download that's only fetched ahead of time.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Number of prefetches measured before the number of prefetch
+     * threads is reconsidered.
+     */
+    static final int WINDOW_SIZE = 8;
+
+    /**
+     * Fraction by which throughput must rise for a change in the
+     * number of threads to count as an improvement.
+     */
+    static final double MIN_THROUGHPUT_GAIN = 0.05;
+
+    /**
+     * Factor by which mean latency may rise before a change in the
+     * number of threads counts as making things worse.
+     */
+    static final double MAX_LATENCY_GROWTH = 1.5;
+
+    /**
+     * Seconds an idle thread waits for work before it exits.
+     */
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * @class Task
+     *
+     * @brief A download run by the scheduler.  Subclasses perform the
+     *        download in download() and are told through dropped()
+     *        if a full prefetch queue discards them instead.
+     */
+    public static abstract class Task implements Runnable {
+        /**
+         * The scheduler the task was given to.
+         */
+        private volatile DownloadScheduler mScheduler;
+
+        /**
+         * Priority class of the task, which promote() can raise.
+         */
+        private volatile int mPriority;
+
+        /**
+         * When the task was given to the scheduler, in
+         * System.nanoTime() units.
+         */
+        private volatile long mQueuedNanos;
+
+        /**
+         * Constructor initializes the priority class.
+         */
+        protected Task(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Returns the priority class of the task.
+         */
+        public int priority() {
+            return mPriority;
+        }
+
+        /**
+         * Perform the download and return the number of bytes it
+         * transferred.
+         */
+        protected abstract long download();
+
+        /**
+         * Called instead of download() if the task is dropped to make
+         * room for a newer prefetch or is cancelled while queued.
+         */
+        protected abstract void dropped();
+
+        /**
+         * Run the download, tracing its phases and measuring it if
+         * it's a prefetch.
+         */
+        @Override
+        public final void run() {
+            final long start = System.nanoTime();
+            final DownloadStats.Trace trace = DownloadStats.begin();
+            trace.add(DownloadStats.QUEUE_WAIT, start - mQueuedNanos);
+
+            final long bytes;
+            try {
+                bytes = download();
+            } finally {
+                trace.finish();
+            }
+
+            if (mPriority == PRIORITY_PREFETCH)
+                mScheduler.record(bytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs interactive downloads.
+     */
+    private final ThreadPoolExecutor mInteractiveExecutor;
+
+    /**
+     * Runs prefetches.
+     */
+    private final ThreadPoolExecutor mPrefetchExecutor;
+
+    /**
+     * Fewest and most threads the prefetch executor may use.
+     */
+    private final int mMinPrefetchThreads;
+    private final int mMaxPrefetchThreads;
+
+    /**
+     * Direction of the last change to the number of prefetch threads,
+     * i.e., +1 or -1.
+     */
+    private int mStep = 1;
+
+    /**
+     * Bytes, downloads, and summed latency measured in the current
+     * window, and when it started.
+     */
+    private long mWindowBytes;
+    private int mWindowCount;
+    private long mWindowLatencyNanos;
+    private long mWindowStartNanos = System.nanoTime();
+
+    /**
+     * Throughput in bytes per second and mean latency in nanoseconds
+     * of the previous window, or negative if there wasn't one.
+     */
+    private double mLastThroughput = -1;
+    private double mLastLatency = -1;
+
+    /**
+     * Constructor creates the executors.
+     *
+     * @param interactiveThreads	threads that run interactive downloads
+     * @param minPrefetchThreads	fewest threads that run prefetches
+     * @param maxPrefetchThreads	most threads that run prefetches
+     * @param maxQueuedPrefetches	prefetches queued before the oldest is dropped
+     */
+    public DownloadScheduler(int interactiveThreads,
+                             int minPrefetchThreads,
+                             int maxPrefetchThreads,
+                             int maxQueuedPrefetches) {
+        if (interactiveThreads <= 0
+            || minPrefetchThreads <= 0
+            || maxPrefetchThreads < minPrefetchThreads
+            || maxQueuedPrefetches <= 0)
+            throw new IllegalArgumentException("invalid scheduler limits");
+
+        mMinPrefetchThreads = minPrefetchThreads;
+        mMaxPrefetchThreads = maxPrefetchThreads;
+
+        mInteractiveExecutor =
+            new ThreadPoolExecutor(interactiveThreads,
+                                   interactiveThreads,
+                                   KEEP_ALIVE_SECONDS,
+                                   TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   DownloadUtils.makeThreadFactory(TAG + "-interactive",
+                                                                   Process.THREAD_PRIORITY_DEFAULT));
+        mInteractiveExecutor.allowCoreThreadTimeOut(true);
+
+        mPrefetchExecutor =
+            new ThreadPoolExecutor(minPrefetchThreads,
+                                   minPrefetchThreads,
+                                   KEEP_ALIVE_SECONDS,
+                                   TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue<Runnable>(maxQueuedPrefetches),
+                                   DownloadUtils.makeThreadFactory(TAG + "-prefetch",
+                                                                   Process.THREAD_PRIORITY_BACKGROUND),
+                                   new RejectedExecutionHandler() {
+                                       @Override
+                                       public void rejectedExecution(Runnable runnable,
+                                                                     ThreadPoolExecutor executor) {
+                                           dropOldest(runnable, executor);
+                                       }
+                                   });
+        mPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run @a task in its priority class.
+     */
+    public void execute(Task task) {
+        task.mScheduler = this;
+        task.mQueuedNanos = System.nanoTime();
+
+        if (task.priority() == PRIORITY_INTERACTIVE)
+            mInteractiveExecutor.execute(task);
+        else
+            mPrefetchExecutor.execute(task);
+    }
+
+    /**
+     * Move a queued prefetch to the interactive class because a user
+     * is now waiting for it.  Returns false if the task has already
+     * started or was dropped, in which case it's left alone.
+     */
+    public boolean promote(Task task) {
+        if (task.priority() == PRIORITY_INTERACTIVE
+            || !mPrefetchExecutor.remove(task))
+            return false;
+
+        task.mPriority = PRIORITY_INTERACTIVE;
+        mInteractiveExecutor.execute(task);
+        return true;
+    }
+
+    /**
+     * Remove @a task from the queue and tell it it was dropped.
+     * Returns false if the task has already started, in which case
+     * it's left to finish.
+     */
+    public boolean cancel(Task task) {
+        if (!mPrefetchExecutor.remove(task)
+            && !mInteractiveExecutor.remove(task))
+            return false;
+
+        task.dropped();
+        return true;
+    }
+
+    /**
+     * Returns the number of threads prefetches may currently use.
+     */
+    public int prefetchConcurrency() {
+        return mPrefetchExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Let the downloads that were started finish, then release the
+     * threads.  Queued prefetches are dropped.
+     */
+    public void shutdown() {
+        mInteractiveExecutor.shutdown();
+
+        BlockingQueue<Runnable> queue = mPrefetchExecutor.getQueue();
+        for (Runnable runnable; (runnable = queue.poll()) != null; )
+            ((Task) runnable).dropped();
+        mPrefetchExecutor.shutdown();
+    }
+
+    /**
+     * Drop the oldest queued prefetches until @a runnable fits in the
+     * queue.  The executor only rejects a task once all its threads
+     * are busy, so a queued task is still run.
+     */
+    private void dropOldest(Runnable runnable,
+                            ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            ((Task) runnable).dropped();
+            return;
+        }
+
+        BlockingQueue<Runnable> queue = executor.getQueue();
+        while (!queue.offer(runnable)) {
+            Runnable oldest = queue.poll();
+            if (oldest != null) {
+                Log.d(TAG, "prefetch queue full, dropping the oldest prefetch");
+                ((Task) oldest).dropped();
+            }
+        }
+    }
+
+    /**
+     * Record a finished prefetch and, at the end of each window,
+     * adjust the number of prefetch threads.
+     */
+    private synchronized void record(long bytes, long latencyNanos) {
+        mWindowBytes += bytes;
+        mWindowLatencyNanos += latencyNanos;
+        if (++mWindowCount < WINDOW_SIZE)
+            return;
+
+        final long now = System.nanoTime();
+        final double throughput =
+            mWindowBytes * 1e9 / Math.max(1, now - mWindowStartNanos);
+        final double latency = (double) mWindowLatencyNanos / mWindowCount;
+        final boolean backlogged = !mPrefetchExecutor.getQueue().isEmpty();
+
+        mWindowBytes = 0;
+        mWindowCount = 0;
+        mWindowLatencyNanos = 0;
+        mWindowStartNanos = now;
+
+        // More threads only help while prefetches are waiting for
+        // one, and an idle window says nothing about the link.
+        if (!backlogged) {
+            mLastThroughput = -1;
+            return;
+        }
+
+        // Keep going the same way while throughput improves and
+        // latency holds; otherwise turn around.
+        if (mLastThroughput >= 0
+            && (throughput < mLastThroughput * (1 + MIN_THROUGHPUT_GAIN)
+                || latency > mLastLatency * MAX_LATENCY_GROWTH))
+            mStep = -mStep;
+
+        mLastThroughput = throughput;
+        mLastLatency = latency;
+        setPrefetchConcurrency(prefetchConcurrency() + mStep);
+    }
+
+    /**
+     * Set the number of prefetch threads, clamped to the configured
+     * limits.
+     */
+    private void setPrefetchConcurrency(int threads) {
+        threads = Math.max(mMinPrefetchThreads,
+                           Math.min(mMaxPrefetchThreads, threads));
+        final int current = mPrefetchExecutor.getMaximumPoolSize();
+        if (threads == current)
+            return;
+
+        Log.d(TAG, "prefetch threads " + current + " -> " + threads);
+
+        // The core size may never exceed the maximum, so change them
+        // in the order that keeps that true.
+        if (threads > current) {
+            mPrefetchExecutor.setMaximumPoolSize(threads);
+            mPrefetchExecutor.setCorePoolSize(threads);
+        } else {
+            mPrefetchExecutor.setCorePoolSize(threads);
+            mPrefetchExecutor.setMaximumPoolSize(threads);
+        }
+    }
+}
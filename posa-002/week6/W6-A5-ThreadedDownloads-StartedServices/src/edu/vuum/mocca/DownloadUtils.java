@@ -1,11 +1,19 @@
 package edu.vuum.mocca;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.vuum.mocca.R;
 
@@ -16,8 +24,8 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
-import android.util.Base64;
 import android.util.Log;
 
 /**
@@ -42,6 +50,103 @@ public class DownloadUtils {
      * The key used to store/retrieve a file's pathname from a Bundle.
      */
 	public static final String PATHNAME_KEY = "PATHNAME";
+
+    /**
+     * The "what" of a Message carrying a file's pathname, which is
+     * the last Message sent for a download.
+     */
+    public static final int PATHNAME = 0;
+
+    /**
+     * The "what" of a Message reporting a download's progress.
+     */
+    public static final int PROGRESS = 1;
+
+    /**
+     * The "what" of the one Message that answers an aggregated batch,
+     * carrying every URI and its pathname.
+     */
+    public static final int PATHNAMES = 2;
+
+    /**
+     * The keys used to store/retrieve the URIs of a batch from an
+     * Intent or a PATHNAMES Message's Bundle, and their pathnames,
+     * in the same order, from the Bundle.  A pathname is null if its
+     * URI couldn't be downloaded.
+     */
+    public static final String URIS_KEY = "URIS";
+    public static final String PATHNAMES_KEY = "PATHNAMES";
+
+    /**
+     * The key used to store/retrieve from a batch Intent whether its
+     * pathnames are sent in one PATHNAMES Message rather than a
+     * PATHNAME Message each.
+     */
+    public static final String AGGREGATE_KEY = "AGGREGATE";
+
+    /**
+     * The keys used to store/retrieve the bytes downloaded so far,
+     * the size of the file (-1 if it isn't known), and the average
+     * rate in bytes per second from a progress Message's Bundle.
+     */
+    public static final String BYTES_DONE_KEY = "BYTES_DONE";
+    public static final String BYTES_TOTAL_KEY = "BYTES_TOTAL";
+    public static final String BYTES_PER_SECOND_KEY = "BYTES_PER_SECOND";
+
+    /**
+     * The key used to store/retrieve the fewest milliseconds between
+     * progress Messages from an Intent.  Progress is only sent to
+     * requesters whose Intent has this extra.
+     */
+    public static final String PROGRESS_INTERVAL_KEY = "PROGRESS_INTERVAL";
+
+    /**
+     * Fewest milliseconds between progress Messages if the Intent
+     * asks for progress without giving a usable interval.
+     */
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
+
+    /**
+     * The key used to store/retrieve from an Intent the most bytes a
+     * file may have for the service to reply with the file's
+     * contents rather than its pathname.  Such a file is written to
+     * the cache after the reply.  Without this extra every reply is
+     * a pathname.
+     */
+    public static final String MAX_BYTES_IN_MEMORY_KEY = "MAX_BYTES_IN_MEMORY";
+
+    /**
+     * A MAX_BYTES_IN_MEMORY_KEY that keeps a reply well within the
+     * Binder's transaction limit.
+     */
+    public static final int DEFAULT_MAX_BYTES_IN_MEMORY = 64 * 1024;
+
+    /**
+     * The key used to store/retrieve the contents of a file from a
+     * PATHNAME Message's Bundle, which then has a null pathname.
+     */
+    public static final String CONTENTS_KEY = "CONTENTS";
+
+    /**
+     * The key used to store/retrieve from a PATHNAME Message's Bundle
+     * the time until which the file sent under CONTENTS_KEY is fresh.
+     * The file may not be in the cache's index yet, so its expiry
+     * can't be read from there.
+     */
+    public static final String EXPIRES_KEY = "EXPIRES";
+
+    /**
+     * The key used to store/retrieve from an Intent the size, in
+     * pixels, of the square the requester previews the image in.  If
+     * a thumbnail of the image has been made, the reply is its
+     * pathname and nothing is downloaded.
+     */
+    public static final String PREVIEW_SIZE_KEY = "PREVIEW_SIZE";
+
+    /**
+     * The action of an Intent that cancels the download of its URI.
+     */
+    public static final String ACTION_CANCEL = "edu.vuum.mocca.action.CANCEL";
     
     /**
      * If you have access to a stable Internet connection for testing
@@ -92,6 +197,139 @@ public class DownloadUtils {
         return intent;
     }
 
+    /**
+     * Make an Intent which will start @a service downloading every
+     * URI in @a uris, which mustn't be empty, if provided as a
+     * parameter to startService().  If @a aggregate is true the
+     * service replies once, with a PATHNAMES Message, after the last
+     * download; otherwise it sends a PATHNAME Message for each URI as
+     * soon as it's downloaded.
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         Class<?> service,
+                                         Handler handler,
+                                         List<String> uris,
+                                         boolean aggregate) {
+        if (uris.isEmpty())
+            throw new IllegalArgumentException("a batch needs at least one URI");
+
+        Intent intent = new Intent(context,
+                                   service);
+        intent.putExtra(MESSENGER_KEY,
+                        new Messenger(handler));
+        intent.putStringArrayListExtra(URIS_KEY,
+                                       new ArrayList<String>(uris));
+        intent.putExtra(AGGREGATE_KEY,
+                        aggregate);
+
+        return intent;
+    }
+
+    /**
+     * Returns true if @a intent was made by makeBatchIntent().
+     */
+    public static boolean isBatch(Intent intent) {
+        return intent.hasExtra(URIS_KEY);
+    }
+
+    /**
+     * Make an Intent which cancels the download of @a uri by
+     * @a service if provided as a parameter to startService().  A
+     * download that's in progress stops within one buffer, and its
+     * requesters get a null pathname.
+     */
+    public static Intent makeCancelIntent(Context context,
+                                          Class<?> service,
+                                          String uri) {
+        Intent intent = new Intent(context,
+                                   service);
+        intent.setAction(ACTION_CANCEL);
+        intent.setData(Uri.parse(uri));
+
+        return intent;
+    }
+
+    /**
+     * Returns true if @a intent asks for progress Messages.
+     */
+    public static boolean wantsProgress(Intent intent) {
+        return intent.hasExtra(PROGRESS_INTERVAL_KEY);
+    }
+
+    /**
+     * Returns the fewest milliseconds between progress Messages that
+     * @a intent asks for.
+     */
+    public static long progressInterval(Intent intent) {
+        long intervalMs = intent.getLongExtra(PROGRESS_INTERVAL_KEY,
+                                              DEFAULT_PROGRESS_INTERVAL_MS);
+        return intervalMs > 0 ? intervalMs : DEFAULT_PROGRESS_INTERVAL_MS;
+    }
+
+    /**
+     * Returns the most bytes a file may have for the reply to
+     * @a intent to hold its contents, or 0 if it doesn't ask for
+     * them.
+     */
+    public static int maxBytesInMemory(Intent intent) {
+        return intent.getIntExtra(MAX_BYTES_IN_MEMORY_KEY, 0);
+    }
+
+    /**
+     * Returns the size of the preview @a intent asks for, or 0 if it
+     * asks for the image itself.
+     */
+    public static int previewSize(Intent intent) {
+        return intent.getIntExtra(PREVIEW_SIZE_KEY, 0);
+    }
+
+    /**
+     * Returns a DownloadProgress that lets the download be cancelled
+     * and, if @a intent asks for progress, reports it to @a messenger
+     * at the interval it asks for.
+     */
+    public static DownloadProgress makeProgress(Intent intent,
+                                                final Messenger messenger) {
+        final boolean wantsProgress = wantsProgress(intent);
+
+        return new DownloadProgress(progressInterval(intent)) {
+            @Override
+            protected void onProgress(long bytesDone,
+                                      long bytesTotal,
+                                      long bytesPerSecond) {
+                if (wantsProgress)
+                    sendProgress(bytesDone,
+                                 bytesTotal,
+                                 bytesPerSecond,
+                                 messenger);
+            }
+        };
+    }
+
+    /**
+     * Use the provided Messenger to send a progress Message, whose
+     * Bundle holds the bytes done, the size of the file, and the
+     * rate of the download.
+     */
+    public static void sendProgress(long bytesDone,
+                                    long bytesTotal,
+                                    long bytesPerSecond,
+                                    Messenger messenger) {
+        Message msg = Message.obtain();
+        msg.what = PROGRESS;
+        Bundle data = new Bundle();
+        data.putLong(BYTES_DONE_KEY, bytesDone);
+        data.putLong(BYTES_TOTAL_KEY, bytesTotal);
+        data.putLong(BYTES_PER_SECOND_KEY, bytesPerSecond);
+        msg.setData(data);
+
+        try {
+            messenger.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      *	Use the provided Messenger to send a Message to a Handler in
      *	another process.
@@ -101,10 +339,42 @@ public class DownloadUtils {
      */
     public static void sendPath (String outputPath,
                                  Messenger messenger) {
+        sendPath(null, outputPath, messenger);
+    }
+
+    /**
+     * Send @a outputPath as sendPath(outputPath, messenger) does,
+     * with the Uri it was downloaded from as the Message's obj, so
+     * the client can cache what it decodes by Uri.  The Uri isn't
+     * put in the Bundle, which only holds the pathname.
+     */
+    public static void sendPath (Uri uri,
+                                 String outputPath,
+                                 Messenger messenger) {
+        sendPath(uri, outputPath, null, 0, messenger);
+    }
+
+    /**
+     * Send @a outputPath as sendPath(uri, outputPath, messenger)
+     * does, along with the @a contents of the file and the time
+     * until which it @a expires unless @a contents is null, in which
+     * case the client needn't read the file.
+     */
+    public static void sendPath (Uri uri,
+                                 String outputPath,
+                                 byte[] contents,
+                                 long expires,
+                                 Messenger messenger) {
         Message msg = Message.obtain();
+        msg.what = PATHNAME;
+        msg.obj = uri;
         Bundle data = new Bundle();
         data.putString(PATHNAME_KEY,
                        outputPath);
+        if (contents != null) {
+            data.putByteArray(CONTENTS_KEY, contents);
+            data.putLong(EXPIRES_KEY, expires);
+        }
         
         // Make the Bundle the "data" of the Message.
         msg.setData(data);
@@ -117,6 +387,28 @@ public class DownloadUtils {
         }
     }
     
+    /**
+     * Use the provided Messenger to send the PATHNAMES Message that
+     * answers an aggregated batch, whose Bundle holds @a uris and
+     * their @a pathnames.
+     */
+    public static void sendPaths (ArrayList<String> uris,
+                                  ArrayList<String> pathnames,
+                                  Messenger messenger) {
+        Message msg = Message.obtain();
+        msg.what = PATHNAMES;
+        Bundle data = new Bundle();
+        data.putStringArrayList(URIS_KEY, uris);
+        data.putStringArrayList(PATHNAMES_KEY, pathnames);
+        msg.setData(data);
+
+        try {
+            messenger.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Download a file to the Android file system, then respond with
      * the file location using the provided Messenger. 
@@ -124,9 +416,86 @@ public class DownloadUtils {
     public static void downloadAndRespond(Context context,
                                           Uri uri,
                                           Messenger messenger) {
-    	sendPath(DownloadUtils.downloadFile(context,
-                                            uri),
-                 messenger);
+    	downloadAndRespond(context, uri, messenger, null);
+    }
+
+    /**
+     * Download a file as downloadAndRespond(context, uri, messenger)
+     * does, reporting its progress to @a progress, which may be null.
+     */
+    public static void downloadAndRespond(Context context,
+                                          Uri uri,
+                                          Messenger messenger,
+                                          DownloadProgress progress) {
+        String pathname = DownloadUtils.downloadFile(context,
+                                                     uri,
+                                                     progress);
+    	sendPath(uri, pathname, messenger);
+
+        if (pathname != null)
+            makeThumbnails(context,
+                           uri,
+                           DownloadCache.Contents.onDisk(new File(pathname)));
+    }
+
+    /**
+     * Download a file as downloadAndRespond(context, uri, messenger,
+     * progress) does, but respond with the file's contents rather
+     * than its pathname if it's at most @a maxBytesInMemory bytes and
+     * had to be transferred.
+     */
+    public static void downloadAndRespond(Context context,
+                                          Uri uri,
+                                          int maxBytesInMemory,
+                                          Messenger messenger,
+                                          DownloadProgress progress) {
+        DownloadCache.Contents contents =
+            downloadContents(context, uri, maxBytesInMemory, progress);
+
+        if (contents != null && contents.bytes() != null)
+            sendPath(uri, null, contents.bytes(), contents.expires(), messenger);
+        else
+            sendPath(uri, pathname(contents), messenger);
+
+        makeThumbnails(context, uri, contents);
+    }
+
+    /**
+     * Returns the pathname of the cached thumbnail that previews the
+     * image at @a uri in a square of @a previewSize pixels, or null if
+     * there isn't one or @a previewSize is 0.  Never touches the
+     * network.
+     */
+    public static String preview(Context context,
+                                 Uri uri,
+                                 int previewSize) {
+        if (previewSize <= 0 || DOWNLOAD_OFFLINE)
+            return null;
+
+        try {
+            File thumbnail =
+                ThumbnailMaker.instance(context).preview(uri.toString(),
+                                                         previewSize);
+            return thumbnail == null ? null : thumbnail.getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't look up a preview of " + uri + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Make the thumbnails of the image at @a uri, whose downloaded
+     * @a contents may be null if the download failed, at low
+     * priority in the background.  Call this after replying, so the
+     * reply never waits for it.
+     */
+    public static void makeThumbnails(Context context,
+                                      Uri uri,
+                                      DownloadCache.Contents contents) {
+        // Offline downloads aren't kept in the cache.
+        if (contents != null && !DOWNLOAD_OFFLINE)
+            ThumbnailMaker.instance(context).makeLater(uri.toString(),
+                                                       contents);
     }
     
     /**
@@ -142,9 +511,9 @@ public class DownloadUtils {
     static final String OFFLINE_FILENAME = "dougs.jpg";
     
     /**
-     * Download the file located at the provided internet url using
-     * the URL class, store it on the android file system using
-     * openFileOutput(), and return the path to the file on disk.
+     * Download the file located at the provided internet url into
+     * the DownloadCache, which reuses a previous download if the file
+     * hasn't changed, and return the path to the file on disk.
      *
      * @param context	the context in which to write the file
      * @param uri       the web url
@@ -153,6 +522,18 @@ public class DownloadUtils {
      */
     public static String downloadFile (Context context,
                                        Uri uri) {
+        return downloadFile(context, uri, null);
+    }
+
+    /**
+     * Download the file located at the provided internet url as
+     * downloadFile(context, uri) does, reporting the transfer to
+     * @a progress, which may be null.  Returns null if the download
+     * fails or is cancelled.
+     */
+    public static String downloadFile (Context context,
+                                       Uri uri,
+                                       DownloadProgress progress) {
     	
     	try {
     	
@@ -171,36 +552,28 @@ public class DownloadUtils {
                     context.getResources().openRawResource(OFFLINE_TEST_IMAGE);
 	        	
                 // Write the resource to disk.
-                copy(in, out);
+                copy(in, out, progress);
                 in.close();
                 out.close();
 	        	
                 return context.getFilesDir().toString() + File.separator + OFFLINE_FILENAME;
             }
     	
-            // Otherwise, go ahead and download the file
+            // Otherwise, get the file from the download cache,
+            // which only transfers it if it isn't cached or has
+            // changed on the server.
             else {
-                // Create a temp file.
-                final File file = getTemporaryFile(context,
-                                                   uri.toString());
-                Log.d(TAG, "    downloading to " + file);
-	
-                // Download the contents at the URL, which should
-                // reference an image.
-                final InputStream in = (InputStream)
-                    new URL(uri.toString()).getContent();
-                final OutputStream os =
-                    new FileOutputStream(file);
+                final File file =
+                    DownloadCache.instance(context).get(uri.toString(),
+                                                        progress);
+                Log.d(TAG, "    downloaded to " + file);
 	
-                // Copy the contents of the downloaded image to the
-                // temp file.
-                copy(in, os);
-                in.close();
-                os.close();
-	
-                // Return the pathname of the temp file.
+                // Return the pathname of the cached file.
                 return file.getAbsolutePath();
             }
+        } catch (DownloadProgress.CancelledException e) {
+            Log.d(TAG, "Download of " + uri + " cancelled. Returning null.");
+            return null;
         } catch (Exception e) {
             Log.e(TAG, "Exception while downloading. Returning null.");
             Log.e(TAG, e.toString());
@@ -210,48 +583,288 @@ public class DownloadUtils {
     }
         
     /**
-     * Create a temp file to store the result of a download.
+     * Download the file located at the provided internet url as
+     * downloadFile(context, uri, progress) does, except that a file
+     * of at most @a maxBytesInMemory bytes that has to be transferred
+     * comes back in memory and is written to the cache in the
+     * background.  Returns null if the download fails or is
+     * cancelled.
+     */
+    public static DownloadCache.Contents downloadContents (Context context,
+                                                           Uri uri,
+                                                           int maxBytesInMemory,
+                                                           DownloadProgress progress) {
+        if (DOWNLOAD_OFFLINE || maxBytesInMemory <= 0) {
+            String pathname = downloadFile(context, uri, progress);
+            return pathname == null
+                ? null
+                : DownloadCache.Contents.onDisk(new File(pathname));
+        }
+
+        try {
+            return DownloadCache.instance(context).getContents(uri.toString(),
+                                                               maxBytesInMemory,
+                                                               progress);
+        } catch (DownloadProgress.CancelledException e) {
+            Log.d(TAG, "Download of " + uri + " cancelled. Returning null.");
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception while downloading. Returning null.");
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the pathname of the cached file holding @a contents,
+     * waiting for it to be written if need be, or null if
+     * @a contents is null or the file couldn't be written.
+     */
+    public static String pathname (DownloadCache.Contents contents) {
+        if (contents == null)
+            return null;
+
+        try {
+            return contents.file().getAbsolutePath();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write the download to the cache: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Default size of the buffer copy() uses when it can't transfer
+     * the data directly from one file to another.
+     */
+    static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size of the buffer copy() uses, which can be changed by calling
+     * setCopyBufferSize().
+     */
+    private static volatile int mCopyBufferSize = DEFAULT_COPY_BUFFER_SIZE;
+
+    /**
+     * Direct buffer reused by each thread that calls copy(), so a
+     * pool thread doesn't allocate native memory for every download.
+     */
+    private static final ThreadLocal<ByteBuffer> mDirectBuffer =
+        new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Set the size of the buffer copy() uses.
+     */
+    public static void setCopyBufferSize(int copyBufferSize) {
+        if (copyBufferSize <= 0)
+            throw new IllegalArgumentException("copyBufferSize must be positive");
+
+        mCopyBufferSize = copyBufferSize;
+    }
+
+    /**
+     * Copy the contents of an InputStream into an OutputStream using
+     * the buffer size set by setCopyBufferSize().
      * 
-     * @param context
-     * @param url
+     * @param in
+     * @param out
      * @return
      * @throws IOException
      */
-    static private File getTemporaryFile(final Context context,
-                                         final String url) throws IOException {
-        
-        // This is what you'd normally call to get a unique temporary
-        // file, but for testing purposes we always name the file the
-        // same to avoid filling up student phones with numerous
-        // files!
-        // return context.getFileStreamPath(Base64.encodeToString(url.getBytes(),
-        //                                  Base64.NO_WRAP)
-        //                                  + System.currentTimeMillis());
+    static public int copy(final InputStream in,
+                           final OutputStream out) throws IOException {
+        return copy(in, out, mCopyBufferSize, null);
+    }
 
-        return context.getFileStreamPath(Base64.encodeToString(url.getBytes(),
-                                                               Base64.NO_WRAP));
+    /**
+     * Copy the contents of an InputStream into an OutputStream,
+     * reporting each write to @a progress, which may be null.
+     * Throws DownloadProgress.CancelledException if the download is
+     * cancelled part way through.
+     */
+    static public int copy(final InputStream in,
+                           final OutputStream out,
+                           final DownloadProgress progress) throws IOException {
+        return copy(in, out, mCopyBufferSize, progress);
     }
 
     /**
-     * Copy the contents of an InputStream into an OutputStream.
+     * Copy the contents of an InputStream into an OutputStream.  A
+     * file is copied to a file with FileChannel.transferFrom(), so
+     * the data never passes through the Java heap.  Any other stream
+     * is copied to a file through a direct buffer of bufferSize bytes,
+     * which is filled before each write to keep the number of system
+     * calls down.  That isn't zero-copy: the channel that
+     * Channels.newChannel() wraps around the stream still reads into
+     * a heap array and copies it into the buffer, which only saves
+     * the file channel copying a heap buffer again to write it.
+     * Streams that aren't files use a byte array of the same size.
      * 
      * @param in
      * @param out
-     * @return
+     * @param bufferSize
+     * @return the number of bytes copied
      * @throws IOException
      */
     static public int copy(final InputStream in,
-                           final OutputStream out) throws IOException {
-        final int BUFFER_LENGTH = 1024;
-        final byte[] buffer = new byte[BUFFER_LENGTH];
-        int totalRead = 0;
-        int read = 0;
-
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            totalRead += read;			
+                           final OutputStream out,
+                           final int bufferSize) throws IOException {
+        return copy(in, out, bufferSize, null);
+    }
+
+    /**
+     * Copy the contents of an InputStream into an OutputStream as
+     * described above, reporting each write to @a progress unless
+     * it's null.  The time spent reading and writing is added to the
+     * transfer and write phases of the calling thread's
+     * DownloadStats.Trace, if it has one.
+     */
+    private static int copy(final InputStream in,
+                            final OutputStream out,
+                            final int bufferSize,
+                            final DownloadProgress progress) throws IOException {
+        final DownloadStats.Trace trace = DownloadStats.current();
+
+        if (!(out instanceof FileOutputStream)) {
+            final byte[] buffer = new byte[bufferSize];
+            int totalRead = 0;
+            int read = 0;
+            long writeNanos = 0;
+            final long start = System.nanoTime();
+
+            while ((read = in.read(buffer)) != -1) {
+                final long written = System.nanoTime();
+                out.write(buffer, 0, read);
+                writeNanos += System.nanoTime() - written;
+                totalRead += read;
+                if (progress != null)
+                    progress.add(read);
+            }
+
+            addCopyTimes(trace, System.nanoTime() - start, writeNanos);
+            return totalRead;
+        }
+
+        final FileChannel sink = ((FileOutputStream) out).getChannel();
+
+        if (in instanceof FileInputStream) {
+            // A local file copies too quickly to be worth reporting
+            // as it goes.
+            final long transferred =
+                transfer(((FileInputStream) in).getChannel(), sink);
+            if (progress != null)
+                progress.add(transferred);
+            return (int) transferred;
         }
 
-        return totalRead;
+        final ReadableByteChannel source = Channels.newChannel(in);
+        final ByteBuffer buffer = directBuffer(bufferSize);
+        long totalRead = 0;
+        long writeNanos = 0;
+        final long start = System.nanoTime();
+
+        for (boolean eof = false; !eof; ) {
+            // Fill the buffer so each write() moves as much as it can.
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (progress != null && progress.isCancelled())
+                    throw new DownloadProgress.CancelledException();
+                if (source.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+
+            buffer.flip();
+            final int filled = buffer.remaining();
+            totalRead += filled;
+            final long written = System.nanoTime();
+            while (buffer.hasRemaining())
+                sink.write(buffer);
+            writeNanos += System.nanoTime() - written;
+            if (progress != null)
+                progress.add(filled);
+        }
+
+        addCopyTimes(trace, System.nanoTime() - start, writeNanos);
+        return (int) totalRead;
+    }
+
+    /**
+     * Add a copy that took @a totalNanos nanoseconds, @a writeNanos
+     * of them writing, to @a trace unless it's null.  The rest of the
+     * time was spent waiting for the data to arrive.
+     */
+    private static void addCopyTimes(DownloadStats.Trace trace,
+                                     long totalNanos,
+                                     long writeNanos) {
+        if (trace != null) {
+            trace.add(DownloadStats.TRANSFER, totalNanos - writeNanos);
+            trace.add(DownloadStats.WRITE, writeNanos);
+        }
+    }
+
+    /**
+     * Transfer the rest of the source file to the sink's current
+     * position and advance both channels past the copied bytes.
+     */
+    private static long transfer(final FileChannel source,
+                                 final FileChannel sink) throws IOException {
+        final long count = source.size() - source.position();
+        final long start = sink.position();
+        long position = start;
+
+        // transferFrom() may move fewer bytes than requested, so loop
+        // until they've all been copied.
+        while (position - start < count) {
+            long transferred =
+                sink.transferFrom(source,
+                                  position,
+                                  count - (position - start));
+            if (transferred <= 0)
+                break;
+            position += transferred;
+        }
+
+        sink.position(position);
+        return position - start;
+    }
+
+    /**
+     * Returns this thread's direct buffer of the given size.
+     */
+    private static ByteBuffer directBuffer(int size) {
+        ByteBuffer buffer = mDirectBuffer.get();
+
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            mDirectBuffer.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns a factory for threads named @a name followed by a
+     * number, which run at the Process thread @a priority, e.g.,
+     * THREAD_PRIORITY_BACKGROUND.
+     */
+    public static ThreadFactory makeThreadFactory(final String name,
+                                                  final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(priority);
+                            runnable.run();
+                        }
+                    },
+                    name + "-" + mCount.incrementAndGet());
+            }
+        };
     }
 }
@@ -0,0 +1,209 @@
+package edu.vuum.mocca;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+/**
+ * @class ParallelIntentService
+ *
+ * @brief A drop-in replacement for IntentService that handles its
+ *        Intents on a bounded pool of worker threads rather than one,
+ *        so a slow Intent only holds up its own worker.  Intents are
+ *        started in the order they arrive, but may finish in any
+ *        order.
+ *
+ *        IntentService stops itself with stopSelf(startId) after each
+ *        Intent, which is only right because the Intents finish in
+ *        order: with several workers, finishing the newest Intent
+ *        would stop the Service under the others.  This class counts
+ *        the Intents that are queued or running instead, and calls
+ *        stopSelf() with the newest startId only once that count
+ *        drops to zero.  A start that arrives in the meantime has a
+ *        newer startId, so the Service stays up for it.
+ *
+ *        Like IntentService, this class implements the Command
+ *        Processor pattern and the Template Method pattern, with
+ *        onHandleIntent() as the hook method.
+ */
+public abstract class ParallelIntentService extends Service {
+    /**
+     * Default number of worker threads.
+     */
+    public static final int DEFAULT_WORKERS = 4;
+
+    /**
+     * Name of the worker threads.
+     */
+    private final String mName;
+
+    /**
+     * Number of worker threads.
+     */
+    private final int mWorkers;
+
+    /**
+     * Whether onStartCommand() asks for Intents to be redelivered if
+     * the process dies before they're handled.
+     */
+    private volatile boolean mRedelivery;
+
+    /**
+     * Runs onHandleIntent() for each Intent.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Number of Intents queued or being handled, and the newest
+     * startId, both guarded by "this".
+     */
+    private int mOutstanding;
+    private int mLastStartId;
+
+    /**
+     * Constructor creates a Service with DEFAULT_WORKERS workers,
+     * whose threads are named after @a name.
+     */
+    public ParallelIntentService(String name) {
+        this(name, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Constructor creates a Service with @a workers workers, whose
+     * threads are named after @a name.
+     */
+    public ParallelIntentService(String name, int workers) {
+        if (workers <= 0)
+            throw new IllegalArgumentException("workers must be positive");
+
+        mName = name;
+        mWorkers = workers;
+    }
+
+    /**
+     * Ask for Intents to be redelivered if the process dies before
+     * onHandleIntent() returns, as IntentService.setIntentRedelivery()
+     * does.
+     */
+    public void setIntentRedelivery(boolean enabled) {
+        mRedelivery = enabled;
+    }
+
+    /**
+     * Hook method called when the Service is created, which starts
+     * the workers.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mExecutor = Executors.newFixedThreadPool(mWorkers, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable,
+                                      mName + "-" + mCount.incrementAndGet());
+                }
+            });
+    }
+
+    /**
+     * Hook method called on the main thread for each Intent, which
+     * queues it for a worker.  Subclasses that override this must
+     * call it.
+     */
+    @Override
+    public int onStartCommand(final Intent intent,
+                              int flags,
+                              int startId) {
+        synchronized (this) {
+            ++mOutstanding;
+            mLastStartId = startId;
+        }
+
+        submit(new Runnable() {
+                @Override
+                public void run() {
+                    onHandleIntent(intent);
+                }
+            });
+
+        return mRedelivery ? START_REDELIVER_INTENT : START_NOT_STICKY;
+    }
+
+    /**
+     * Run @a task on a worker after whatever is already queued.  The
+     * Service isn't stopped until the task has finished, just as for
+     * an Intent, so onHandleIntent() can split its Intent into tasks
+     * rather than hold its worker while they run.
+     */
+    protected void execute(Runnable task) {
+        synchronized (this) {
+            ++mOutstanding;
+        }
+
+        submit(task);
+    }
+
+    /**
+     * Queue @a task, which has been counted as outstanding, for a
+     * worker.
+     */
+    private void submit(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }
+            });
+    }
+
+    /**
+     * Hook method called when the Service is destroyed.  Intents that
+     * haven't been handled yet are dropped, as IntentService does.
+     */
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Return null since this class does not implement a Bound
+     * Service.
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Hook method called on a worker thread for each Intent.  Several
+     * calls may run at once.
+     */
+    protected abstract void onHandleIntent(Intent intent);
+
+    /**
+     * Called after each Intent or task is handled.  Stops the Service
+     * once none is left, unless a newer Intent has just arrived.
+     */
+    private void finished() {
+        int lastStartId;
+        synchronized (this) {
+            if (--mOutstanding > 0)
+                return;
+            lastStartId = mLastStartId;
+        }
+
+        stopSelf(lastStartId);
+    }
+}
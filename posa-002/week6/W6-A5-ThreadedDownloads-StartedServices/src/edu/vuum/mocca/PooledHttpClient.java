@@ -0,0 +1,282 @@
+package edu.vuum.mocca;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * @class PooledHttpClient
+ *
+ * @brief Opens the HTTP connections the downloads are made over.
+ *        Every connection gets the same connect and read timeouts,
+ *        and at most a configurable number of connections to each
+ *        host are open at once, so a burst of downloads from one
+ *        origin queues here rather than overwhelming the server or
+ *        the link.
+ *
+ *        A connection whose response has been read to the end is
+ *        closed without being disconnected, which leaves its socket
+ *        in the platform's keep-alive pool, so the next request to
+ *        the same host skips the TCP and TLS handshakes.
+ *
+ *        Whole-file requests ask for gzip, which the Connection
+ *        decompresses, so compressible files cost fewer bytes on the
+ *        wire.  Range requests ask for the identity encoding, since
+ *        the byte ranges of a compressed body aren't offsets in the
+ *        file.  The exception is the DownloadCache's request for the
+ *        first segment of a file, which asks for gzip so a server
+ *        that compresses the file can send all of it instead.
+ */
+public class PooledHttpClient {
+    /**
+     * Timeouts for connecting to the server and reading the response.
+     */
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 30000;
+
+    /**
+     * Default maximum number of connections open to each host.
+     */
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /**
+     * Most bytes of an unread response that are skipped to keep its
+     * connection alive.  Beyond that, disconnecting is cheaper.
+     */
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /**
+     * The client shared by everything in this process.
+     */
+    private static PooledHttpClient mInstance;
+
+    /**
+     * @class Connection
+     *
+     * @brief A connection that holds one of its host's slots until
+     *        it's closed.  Exactly one call to close() must follow
+     *        each call to open().
+     */
+    public static class Connection {
+        /**
+         * The underlying connection, used for the request headers,
+         * the status, and the response headers.
+         */
+        private final HttpURLConnection mConnection;
+
+        /**
+         * The slot of the host, released by close().
+         */
+        private final Semaphore mSlot;
+
+        /**
+         * The body of the response, decompressed if it's encoded, or
+         * null until getInputStream() is called.
+         */
+        private InputStream mIn;
+
+        /**
+         * True once close() has been called.
+         */
+        private boolean mClosed;
+
+        Connection(HttpURLConnection connection, Semaphore slot) {
+            mConnection = connection;
+            mSlot = slot;
+        }
+
+        /**
+         * Returns the underlying connection.
+         */
+        public HttpURLConnection connection() {
+            return mConnection;
+        }
+
+        /**
+         * Returns true if the body of the response is gzip-encoded.
+         */
+        public boolean isCompressed() {
+            return "gzip".equalsIgnoreCase(mConnection.getHeaderField("Content-Encoding"));
+        }
+
+        /**
+         * Returns the length of the decompressed body, or -1 if it
+         * isn't known, which is always the case for a compressed body.
+         */
+        public long getContentLength() {
+            if (isCompressed())
+                return -1;
+
+            String length = mConnection.getHeaderField("Content-Length");
+            try {
+                return length == null ? -1 : Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns the body of the response, decompressed if it's
+         * encoded.  The caller mustn't close it; close() does.
+         */
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mIn == null)
+                mIn = isCompressed()
+                    ? new GZIPInputStream(mConnection.getInputStream())
+                    : mConnection.getInputStream();
+            return mIn;
+        }
+
+        /**
+         * Release the connection and its host's slot.  If @a reuse is
+         * true and the rest of the response is short, it's skipped and
+         * the socket is kept alive for the next request to the host;
+         * otherwise the socket is closed.  Calls after the first are
+         * ignored.
+         */
+        public void close(boolean reuse) {
+            synchronized (this) {
+                if (mClosed)
+                    return;
+                mClosed = true;
+            }
+
+            try {
+                if (!reuse || !drain())
+                    mConnection.disconnect();
+            } finally {
+                mSlot.release();
+            }
+        }
+
+        /**
+         * Skip the rest of the response and close its stream.  Returns
+         * false if that failed or the rest was too long.
+         */
+        private boolean drain() {
+            try {
+                InputStream raw = mConnection.getInputStream();
+                byte[] buffer = new byte[4096];
+                long skipped = 0;
+                for (int count;
+                     (count = raw.read(buffer)) != -1; )
+                    if ((skipped += count) > MAX_DRAIN_BYTES)
+                        return false;
+
+                if (mIn != null)
+                    mIn.close();
+                raw.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The slots of each host, keyed by "host:port".
+     */
+    private final HashMap<String, Semaphore> mSlots =
+        new HashMap<String, Semaphore>();
+
+    /**
+     * Maximum number of connections open to each host.
+     */
+    private final int mMaxConnectionsPerHost;
+
+    /**
+     * Returns the client shared by everything in this process.
+     */
+    public static synchronized PooledHttpClient instance() {
+        if (mInstance == null)
+            mInstance = new PooledHttpClient(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        return mInstance;
+    }
+
+    /**
+     * Constructor creates a client that opens at most
+     * @a maxConnectionsPerHost connections to each host at once.
+     */
+    public PooledHttpClient(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0)
+            throw new IllegalArgumentException("invalid connection limit");
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Open a GET request for @a url, waiting for a slot if the host
+     * already has as many connections as it may.  A @a ranged request
+     * isn't compressed.  Nothing is sent until the caller asks for
+     * the response.
+     */
+    public Connection open(String url,
+                           boolean ranged) throws IOException {
+        URL parsed = new URL(url);
+        Semaphore slot = slot(parsed);
+        try {
+            slot.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to "
+                                             + parsed.getHost());
+        }
+        return connect(parsed, slot, ranged);
+    }
+
+    /**
+     * Open a GET request for @a url as open() does, but return null
+     * at once if the host has no free slot.
+     */
+    public Connection tryOpen(String url,
+                              boolean ranged) throws IOException {
+        URL parsed = new URL(url);
+        Semaphore slot = slot(parsed);
+        if (!slot.tryAcquire())
+            return null;
+        return connect(parsed, slot, ranged);
+    }
+
+    /**
+     * Create the connection for @a url, which holds @a slot, and set
+     * it up.  The slot is released if that fails.
+     */
+    private Connection connect(URL url,
+                               Semaphore slot,
+                               boolean ranged) throws IOException {
+        boolean connected = false;
+        try {
+            HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept-Encoding",
+                                          ranged ? "identity" : "gzip");
+            connected = true;
+            return new Connection(connection, slot);
+        } finally {
+            if (!connected)
+                slot.release();
+        }
+    }
+
+    /**
+     * Returns the slots of the host of @a url, creating them the first
+     * time the host is seen.
+     */
+    private synchronized Semaphore slot(URL url) {
+        String host = url.getHost().toLowerCase(Locale.US)
+            + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        Semaphore slot = mSlots.get(host);
+        if (slot == null) {
+            slot = new Semaphore(mMaxConnectionsPerHost, true);
+            mSlots.put(host, slot);
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,550 @@
+package edu.vuum.mocca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * @class RangedDownload
+ *
+ * @brief Downloads a file over several connections at once, which
+ *        helps on links where each connection's throughput is limited
+ *        by latency rather than bandwidth.  The first segment comes
+ *        from a probe response to a Range request, whose Content-Range
+ *        header gives the file's size.  The rest of the file is split
+ *        into segments that are fetched concurrently with their own
+ *        Range requests and written straight to their offsets in the
+ *        file with FileChannel.write(buffer, position).
+ *
+ *        A segment whose connection fails or ends early is resumed
+ *        from the last byte written, so an interruption only costs
+ *        the rest of that segment.  Every segment but the probe is
+ *        sent with If-Range, so a file that changes on the server
+ *        mid-download fails rather than being stitched together from
+ *        two versions.  Cancelling the DownloadProgress stops every
+ *        segment without resuming it.  Once one segment fails for
+ *        good, the connections of the others are disconnected, so a
+ *        segment that's waiting for the server stops at once too.
+ *
+ *        Segments only get a connection of their own if the
+ *        PooledHttpClient has a slot free for the host; the rest are
+ *        fetched one after another by the thread that fetched the
+ *        probe's segment, so a download never waits for a slot while
+ *        holding one.
+ *
+ *        Since the segments overlap, the transfer phase of the
+ *        download's DownloadStats.Trace is the time from the probe's
+ *        response to the last byte, while the write phase is the time
+ *        during which any segment was writing, so writes that overlap
+ *        are only counted once.
+ */
+class RangedDownload {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "RangedDownload";
+
+    /**
+     * Number of times a segment is resumed before the download fails.
+     */
+    static final int MAX_RESUMES = 3;
+
+    /**
+     * Size of the buffer each segment reads into.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Status of a response to a Range request that starts past the
+     * end of the file, which HttpURLConnection has no constant for.
+     */
+    static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Threads that fetch segments other than the probe.
+     */
+    private static final ExecutorService mSegmentExecutor =
+        Executors.newCachedThreadPool();
+
+    /**
+     * @class Segment
+     *
+     * @brief A range of the file and how much of it has been written.
+     */
+    static class Segment {
+        /** Offset of the next byte to write. */
+        volatile long mPosition;
+
+        /** Offset just past the last byte of the segment. */
+        final long mEnd;
+
+        Segment(long start, long end) {
+            mPosition = start;
+            mEnd = end;
+        }
+    }
+
+    /**
+     * Opens the connections the segments are fetched over.
+     */
+    private final PooledHttpClient mClient;
+
+    /**
+     * The URL being downloaded.
+     */
+    private final String mUrl;
+
+    /**
+     * Value sent with If-Range, i.e., the probe's ETag or
+     * Last-Modified header, or null if it had neither.
+     */
+    private final String mValidator;
+
+    /**
+     * Size of the file in bytes.
+     */
+    private final long mLength;
+
+    /**
+     * Channel of the file the segments are written to.
+     */
+    private final FileChannel mChannel;
+
+    /**
+     * Told about every write, or null.
+     */
+    private final DownloadProgress mProgress;
+
+    /**
+     * The Trace of the request the download is for, or null.
+     */
+    private final DownloadStats.Trace mTrace;
+
+    /**
+     * Guards mWriters and mWritersSince.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Number of segments writing to the file at the moment.
+     */
+    private int mWriters;
+
+    /**
+     * When mWriters last went up from zero.
+     */
+    private long mWritersSince;
+
+    /**
+     * Set once any segment fails, so the others stop rather than
+     * resume.
+     */
+    private volatile boolean mAborted;
+
+    /**
+     * Connections the segments are being fetched over, which abort()
+     * disconnects.  Guarded by itself.
+     */
+    private final Set<PooledHttpClient.Connection> mConnections =
+        new HashSet<PooledHttpClient.Connection>();
+
+    /**
+     * @class FileChangedException
+     *
+     * @brief Thrown when the file changes on the server during a
+     *        download, which resuming can't fix.
+     */
+    static class FileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Download the file @a probe is the 206 response for into @a file,
+     * using at most @a maxSegments concurrent connections from
+     * @a client, each fetching at least @a minSegmentBytes bytes, and
+     * reporting each write to @a progress unless it's null.  Closes
+     * @a probe.  Returns the number of bytes downloaded.
+     */
+    static long download(PooledHttpClient client,
+                         String url,
+                         PooledHttpClient.Connection probe,
+                         File file,
+                         int maxSegments,
+                         long minSegmentBytes,
+                         DownloadProgress progress) throws IOException {
+        boolean started = false;
+        try {
+            long[] range = contentRange(probe.connection());
+            if (range == null || range[0] != 0 || range[2] < 0)
+                throw new IOException("Bad Content-Range from " + url);
+            long length = range[2];
+            if (progress != null)
+                progress.setTotal(length);
+
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(length);
+                RangedDownload download =
+                    new RangedDownload(client,
+                                       url,
+                                       probe.connection(),
+                                       length,
+                                       out.getChannel(),
+                                       progress);
+                started = true;
+                return download.run(probe, maxSegments, minSegmentBytes);
+            } finally {
+                out.close();
+            }
+        } finally {
+            // Once the download has started, fetch() closes the probe.
+            if (!started)
+                probe.close(false);
+        }
+    }
+
+    /**
+     * Constructor remembers what the segments need to know about the
+     * download.
+     */
+    private RangedDownload(PooledHttpClient client,
+                           String url,
+                           HttpURLConnection probe,
+                           long length,
+                           FileChannel channel,
+                           DownloadProgress progress) {
+        mClient = client;
+        mUrl = url;
+        mLength = length;
+        mChannel = channel;
+        mProgress = progress;
+        mTrace = DownloadStats.current();
+
+        String eTag = probe.getHeaderField("ETag");
+        mValidator = eTag != null && !eTag.startsWith("W/")
+            ? eTag
+            : probe.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Copy the probe's body into the first segment while the other
+     * segments are fetched on the segment threads, fetch the segments
+     * that didn't get a connection, then wait for them all.
+     */
+    private long run(PooledHttpClient.Connection probe,
+                     int maxSegments,
+                     long minSegmentBytes) throws IOException {
+        long probeEnd =
+            Math.min(mLength, contentRange(probe.connection())[1] + 1);
+        Segment first = new Segment(0, probeEnd);
+
+        // Split the rest of the file evenly, but never into segments
+        // smaller than minSegmentBytes, except that a rest smaller
+        // than that is still fetched as one segment.
+        long rest = mLength - probeEnd;
+        int count = rest == 0
+            ? 0
+            : (int) Math.max(1, Math.min(maxSegments - 1,
+                                         rest / minSegmentBytes));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        List<Segment> deferred = new ArrayList<Segment>();
+        final long start = System.nanoTime();
+
+        boolean succeeded = false;
+        try {
+            for (int i = 0; i < count; ++i) {
+                final Segment segment =
+                    new Segment(probeEnd + rest * i / count,
+                                probeEnd + rest * (i + 1) / count);
+                final PooledHttpClient.Connection connection =
+                    mClient.tryOpen(mUrl, true);
+                if (connection == null) {
+                    deferred.add(segment);
+                    continue;
+                }
+                if (!track(connection)) {
+                    connection.close(false);
+                    throw new IOException("Download of " + mUrl + " was aborted");
+                }
+
+                futures.add(mSegmentExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            fetch(segment, connection, false);
+                            return null;
+                        }
+                    }));
+            }
+
+            PooledHttpClient.Connection connection = probe;
+            probe = null;
+            fetch(first, connection, true);
+            for (Segment segment : deferred)
+                fetch(segment, null, false);
+
+            for (Future<Void> future : futures)
+                future.get();
+            succeeded = true;
+            if (mTrace != null)
+                mTrace.add(DownloadStats.TRANSFER, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while downloading " + mUrl);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                ? (IOException) cause
+                : new IOException(cause.toString());
+        } finally {
+            if (probe != null)
+                probe.close(false);
+            // Segments that haven't started yet see the flag, and
+            // the ones that have lose their connections.
+            if (!succeeded)
+                abort();
+        }
+
+        Log.d(TAG, "    downloaded " + mLength + " bytes in "
+              + (count + 1) + " segments, " + deferred.size()
+              + " of them after the probe's: " + mUrl);
+        return mLength;
+    }
+
+    /**
+     * Fetch a segment over @a connection if it's non-null, which has
+     * already received its response if @a responded is true, and
+     * resume it from where it stopped if it's interrupted.  Closes
+     * every connection it uses.
+     */
+    private void fetch(Segment segment,
+                       PooledHttpClient.Connection connection,
+                       boolean responded) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        for (int resumes = 0; segment.mPosition < segment.mEnd; ++resumes) {
+            boolean reuse = false;
+            try {
+                if (mAborted)
+                    throw new IOException("Download of " + mUrl + " was aborted");
+
+                if (connection == null)
+                    connection = mClient.open(mUrl, true);
+                if (!track(connection))
+                    throw new IOException("Download of " + mUrl + " was aborted");
+                if (!responded)
+                    request(segment, connection.connection());
+                write(segment, connection.getInputStream(), buffer);
+                reuse = true;
+            } catch (FileChangedException e) {
+                abort();
+                throw e;
+            } catch (DownloadProgress.CancelledException e) {
+                abort();
+                throw e;
+            } catch (IOException e) {
+                if (resumes >= MAX_RESUMES || mAborted) {
+                    abort();
+                    throw e;
+                }
+                Log.d(TAG, "    resuming at " + segment.mPosition
+                      + " after " + e);
+            } finally {
+                if (connection != null) {
+                    untrack(connection);
+                    connection.close(reuse);
+                }
+                connection = null;
+                responded = false;
+            }
+        }
+
+        if (connection != null) {
+            untrack(connection);
+            connection.close(true);
+        }
+    }
+
+    /**
+     * Add @a connection to the ones abort() disconnects.  Returns
+     * false, without adding it, if the download has been aborted.
+     */
+    private boolean track(PooledHttpClient.Connection connection) {
+        synchronized (mConnections) {
+            if (mAborted)
+                return false;
+            mConnections.add(connection);
+            return true;
+        }
+    }
+
+    /**
+     * Remove @a connection from the ones abort() disconnects.
+     */
+    private void untrack(PooledHttpClient.Connection connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+    }
+
+    /**
+     * Stop every segment: the ones between reads see mAborted, and
+     * the ones waiting for the server have their connections
+     * disconnected under them.
+     */
+    private void abort() {
+        synchronized (mConnections) {
+            mAborted = true;
+            for (PooledHttpClient.Connection connection : mConnections)
+                connection.close(false);
+            mConnections.clear();
+        }
+    }
+
+    /**
+     * Request the unwritten part of a segment over @a connection.
+     */
+    private void request(Segment segment,
+                         HttpURLConnection connection) throws IOException {
+        connection.setRequestProperty("Range",
+                                      "bytes=" + segment.mPosition
+                                      + "-" + (segment.mEnd - 1));
+        if (mValidator != null)
+            connection.setRequestProperty("If-Range", mValidator);
+
+        int status = connection.getResponseCode();
+        long[] range = contentRange(connection);
+        if (status == HttpURLConnection.HTTP_PARTIAL
+            && range != null
+            && range[0] == segment.mPosition
+            && range[2] == mLength)
+            return;
+
+        // A 200 means the If-Range validator no longer matches.
+        if (status == HttpURLConnection.HTTP_OK
+            || status == HttpURLConnection.HTTP_PARTIAL)
+            throw new FileChangedException(mUrl + " changed during the download");
+        throw new IOException("HTTP " + status + " for a range of " + mUrl);
+    }
+
+    /**
+     * Write the body of a segment's response at the segment's
+     * position until the segment is complete.  Throws if the body
+     * ends early.
+     */
+    private void write(Segment segment,
+                       InputStream in,
+                       ByteBuffer buffer) throws IOException {
+        // The stream belongs to the connection, which closes it.
+        ReadableByteChannel source = Channels.newChannel(in);
+        while (segment.mPosition < segment.mEnd) {
+            if (mProgress != null && mProgress.isCancelled())
+                throw new DownloadProgress.CancelledException();
+            if (mAborted)
+                throw new IOException("Download of " + mUrl + " was aborted");
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(),
+                                        segment.mEnd - segment.mPosition));
+            if (source.read(buffer) == -1)
+                throw new IOException("Connection closed at "
+                                      + segment.mPosition);
+
+            buffer.flip();
+            final int read = buffer.remaining();
+            startWrite();
+            try {
+                while (buffer.hasRemaining())
+                    segment.mPosition +=
+                        mChannel.write(buffer, segment.mPosition);
+            } finally {
+                finishWrite();
+            }
+            if (mProgress != null)
+                mProgress.add(read);
+        }
+    }
+
+    /**
+     * Called before a segment writes to the file.
+     */
+    private void startWrite() {
+        if (mTrace != null)
+            synchronized (mWriteLock) {
+                if (mWriters++ == 0)
+                    mWritersSince = System.nanoTime();
+            }
+    }
+
+    /**
+     * Called after a segment writes to the file.  Once no segment is
+     * writing, adds the time since one started to the write phase.
+     */
+    private void finishWrite() {
+        if (mTrace != null)
+            synchronized (mWriteLock) {
+                if (--mWriters == 0)
+                    mTrace.add(DownloadStats.WRITE,
+                               System.nanoTime() - mWritersSince);
+            }
+    }
+
+    /**
+     * Returns true if @a connection's response is a 416 whose
+     * Content-Range gives the file's length as 0, which is how a
+     * server answers a Range request for an empty file.
+     */
+    static boolean isEmpty(HttpURLConnection connection) throws IOException {
+        String contentRange = connection.getHeaderField("Content-Range");
+        return connection.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE
+            && contentRange != null
+            && contentRange.replace(" ", "").equals("bytes*/0");
+    }
+
+    /**
+     * Returns the first byte, last byte, and total length given by a
+     * 206 response's Content-Range header, e.g., "bytes 0-65535/1048576",
+     * with a length of -1 if it's "*", i.e., unknown.  Returns null if
+     * the header is missing or malformed.
+     */
+    static long[] contentRange(HttpURLConnection connection) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return null;
+
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash)
+            return null;
+
+        try {
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[] {
+                Long.parseLong(contentRange.substring(6, dash).trim()),
+                Long.parseLong(contentRange.substring(dash + 1, slash).trim()),
+                total.equals("*") ? -1 : Long.parseLong(total)
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package edu.vuum.mocca;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import android.app.Service;
 import android.content.Context;
@@ -10,36 +13,230 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Messenger;
+import android.util.Log;
 
 /**
  * @class ThreadPoolDownloadService
  *
  * @brief This Service handles downloading several files concurrently
  *        within a pool of Threads.  When it is created, it creates a
- *        ThreadPoolExecutor using the newFixedThreadPool() method of
- *        the Executors class.
+ *        DownloadScheduler, which runs interactive downloads ahead of
+ *        prefetches and adapts the number of prefetch threads to the
+ *        link.
  * 
  *        When this Service is started, it should be supplied with a
  *        URI for download and a Messenger.  It downloads the URI
  *        supplied, stores it on the Android file system, then returns
  *        the pathname of the downloaded file using the supplied
- *        Messenger.
+ *        Messenger.  Requests for a URI that's already being
+ *        downloaded join that download rather than starting another
+ *        one, and every requester gets the pathname when it's done.
+ *        A prefetch that a user then asks for is promoted to the
+ *        interactive class, and a prefetch that's dropped from the
+ *        full queue is answered with a null pathname.
+ *
+ *        Requesters whose Intent has a PROGRESS_INTERVAL_KEY extra
+ *        also get throttled progress Messages, and an Intent made by
+ *        DownloadUtils.makeCancelIntent() cancels the download of its
+ *        URI for everyone waiting for it.
+ *
+ *        An Intent made by makeBatchIntent() asks for a list of URIs
+ *        at once.  Each URI is scheduled as though it had been asked
+ *        for by itself, so the DownloadScheduler's threads bound how
+ *        many run at once, and the pathnames are replied to as the
+ *        DownloadBatch describes.
+ *
+ *        A requester whose Intent has a MAX_BYTES_IN_MEMORY_KEY extra
+ *        is sent the contents of a small file rather than its
+ *        pathname, if the first request for the URI asked for that
+ *        too, and the file is written to the cache afterwards.  One
+ *        whose Intent has a PREVIEW_SIZE_KEY extra is sent the
+ *        pathname of a thumbnail instead, if it's been made by the
+ *        time the download starts.  Thumbnails of each download are
+ *        made by the ThumbnailMaker once it's been replied to.
+ *
+ *        The phases of each download are recorded in the
+ *        DownloadStats of the Service's process, which "adb shell
+ *        dumpsys activity service ThreadPoolDownloadService" prints.
  * 
  *        This class implements the Synchronous Service layer of the
  *        Half-Sync/Half-Async pattern.  It also implements a variant
  *        of the Factory Method pattern.
  */
 public class ThreadPoolDownloadService extends Service {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "ThreadPoolDownloadService";
+
     /**
      * A class constant that determines the maximum number of threads
-     * used to service download requests.
+     * used to service prefetch requests.
      */
     static final int MAX_THREADS = 4;
-	
+
+    /**
+     * Number of threads reserved for interactive requests, as many as
+     * the single pool that used to serve every request had.
+     */
+    static final int INTERACTIVE_THREADS = 4;
+
     /**
-     * The ExecutorService that references a ThreadPool.
+     * Number of prefetches queued before the oldest one is dropped.
      */
-    ExecutorService mExecutor;
+    static final int MAX_QUEUED_PREFETCHES = 32;
+
+    /**
+     * The key used to store/retrieve the priority class of a request
+     * from an Intent.
+     */
+    public static final String PRIORITY_KEY = "PRIORITY";
+
+    /**
+     * The DownloadScheduler that runs the downloads.
+     */
+    DownloadScheduler mScheduler;
+
+    /**
+     * The download in flight for each URI, keyed by the URI.  A URI
+     * is in this map exactly while its download is queued or running
+     * and hasn't been cancelled.
+     */
+    private final HashMap<String, PendingDownload> mPendingDownloads =
+        new HashMap<String, PendingDownload>();
+
+    /**
+     * @class PendingDownload
+     *
+     * @brief Downloads a URI and sends its pathname to every Messenger
+     *        that asked for it while the download was in flight.
+     */
+    private class PendingDownload extends DownloadScheduler.Task {
+        /**
+         * The URI to download.
+         */
+        final Uri mUri;
+
+        /**
+         * The requests waiting for the pathname.
+         */
+        final List<DownloadBatch.Item> mReplies =
+            new ArrayList<DownloadBatch.Item>();
+
+        /**
+         * The Messengers of the requesters that asked for progress.
+         */
+        final List<Messenger> mProgressReplies = new ArrayList<Messenger>();
+
+        /**
+         * Shortest interval between reports that any requester in
+         * mProgressReplies asked for.
+         */
+        long mProgressIntervalMs;
+
+        /**
+         * Reports progress to mProgressReplies and lets the download
+         * be cancelled.
+         */
+        final DownloadProgress mProgress;
+
+        /**
+         * Most bytes the file may have to be downloaded into memory
+         * rather than straight to the cache.
+         */
+        final int mMaxBytesInMemory;
+
+        PendingDownload(Uri uri,
+                        int priority,
+                        long progressIntervalMs,
+                        int maxBytesInMemory) {
+            super(priority);
+            mUri = uri;
+            mProgressIntervalMs = progressIntervalMs;
+            mMaxBytesInMemory = maxBytesInMemory;
+            mProgress = new DownloadProgress(progressIntervalMs) {
+                @Override
+                protected void onProgress(long bytesDone,
+                                          long bytesTotal,
+                                          long bytesPerSecond) {
+                    List<Messenger> waiting;
+                    synchronized (mPendingDownloads) {
+                        waiting = new ArrayList<Messenger>(mProgressReplies);
+                    }
+
+                    for (Messenger messenger : waiting)
+                        DownloadUtils.sendProgress(bytesDone,
+                                                   bytesTotal,
+                                                   bytesPerSecond,
+                                                   messenger);
+                }
+            };
+        }
+
+        @Override
+        protected long download() {
+            if (mProgress.isCancelled()) {
+                reply(null);
+                return 0;
+            }
+            if (replyWithPreviews())
+                return 0;
+
+            DownloadCache.Contents contents =
+                DownloadUtils.downloadContents(getApplicationContext(),
+                                               mUri,
+                                               mMaxBytesInMemory,
+                                               mProgress);
+            reply(contents);
+            DownloadUtils.makeThumbnails(getApplicationContext(),
+                                         mUri,
+                                         contents);
+            return contents == null ? 0 : contents.length();
+        }
+
+        @Override
+        protected void dropped() {
+            Log.d(TAG, "dropped download of " + mUri);
+            reply(null);
+        }
+
+        /**
+         * Send the pathname of a thumbnail to everyone waiting for a
+         * preview of the URI that's already been made.  Returns true,
+         * and forgets the download, if no one is left waiting for
+         * the URI itself.
+         */
+        private boolean replyWithPreviews() {
+            List<DownloadBatch.Item> waiting;
+            synchronized (mPendingDownloads) {
+                waiting = new ArrayList<DownloadBatch.Item>(mReplies);
+            }
+
+            for (DownloadBatch.Item item : waiting)
+                if (item.previewSize() > 0
+                    && item.donePreview(getApplicationContext()))
+                    synchronized (mPendingDownloads) {
+                        mReplies.remove(item);
+                    }
+
+            synchronized (mPendingDownloads) {
+                if (!mReplies.isEmpty())
+                    return false;
+                forget(this);
+                return true;
+            }
+        }
+
+        /**
+         * Send the @a contents of the URI, or their pathname, to
+         * everyone waiting for it.  A null @a contents means the URI
+         * couldn't be downloaded.
+         */
+        private void reply(DownloadCache.Contents contents) {
+            for (DownloadBatch.Item waiting : removePendingReplies(this))
+                waiting.done(contents);
+        }
+    }
 
     /**
      * Hook method called when the Service is created.
@@ -47,7 +244,10 @@ public class ThreadPoolDownloadService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        mExecutor = Executors.newFixedThreadPool(MAX_THREADS);
+        mScheduler = new DownloadScheduler(INTERACTIVE_THREADS,
+                                           1,
+                                           MAX_THREADS,
+                                           MAX_QUEUED_PREFETCHES);
     }
 
     /**
@@ -68,6 +268,23 @@ public class ThreadPoolDownloadService extends Service {
     public static Intent makeIntent(Context context,
                                     Handler handler,
                                     String uri) {
+        return makeIntent(context,
+                          handler,
+                          uri,
+                          DownloadScheduler.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Make an intent that will start this service with a request in
+     * the given priority class, i.e.,
+     * DownloadScheduler.PRIORITY_INTERACTIVE for a file the user is
+     * waiting for or DownloadScheduler.PRIORITY_PREFETCH for one
+     * that's fetched ahead of time.
+     */
+    public static Intent makeIntent(Context context,
+                                    Handler handler,
+                                    String uri,
+                                    int priority) {
         // Create the Intent that's associated to the DownloadService
         // class.
         Intent intent = new Intent(context, ThreadPoolDownloadService.class);
@@ -78,6 +295,25 @@ public class ThreadPoolDownloadService extends Service {
         // Create and pass a Messenger as an "extra" so the
         // DownloadService can send back the pathname.
         intent.putExtra(DownloadUtils.MESSENGER_KEY, new Messenger(handler));
+        intent.putExtra(PRIORITY_KEY, priority);
+        return intent;
+    }
+
+    /**
+     * Make an intent that will start this service downloading every
+     * URI in @a uris as interactive requests, replying to @a handler
+     * as DownloadUtils.makeBatchIntent() describes.
+     */
+    public static Intent makeBatchIntent(Context context,
+                                         Handler handler,
+                                         List<String> uris,
+                                         boolean aggregate) {
+        Intent intent = DownloadUtils.makeBatchIntent(context,
+                                                      ThreadPoolDownloadService.class,
+                                                      handler,
+                                                      uris,
+                                                      aggregate);
+        intent.putExtra(PRIORITY_KEY, DownloadScheduler.PRIORITY_INTERACTIVE);
         return intent;
     }
 
@@ -89,14 +325,22 @@ public class ThreadPoolDownloadService extends Service {
     public int onStartCommand(final Intent intent,
                               int flags,
                               int startId) {
-        Runnable downloadRunnable = new Runnable() {
-            @Override
-            public void run() {
-                DownloadUtils.downloadAndRespond(getApplicationContext(), intent.getData(), (Messenger) intent.getExtras().get(DownloadUtils.MESSENGER_KEY));
-            }
-        };
+        // A cancel Intent isn't redelivered, since the download it
+        // cancels wouldn't be either.
+        if (DownloadUtils.ACTION_CANCEL.equals(intent.getAction())) {
+            cancel(intent.getData().toString());
+            return START_NOT_STICKY;
+        }
+
+        int priority =
+            intent.getIntExtra(PRIORITY_KEY,
+                               DownloadScheduler.PRIORITY_INTERACTIVE);
 
-        mExecutor.execute(downloadRunnable);
+        for (DownloadBatch.Item item : DownloadBatch.fromIntent(intent).items())
+            schedule(item,
+                     priority,
+                     DownloadUtils.wantsProgress(intent),
+                     DownloadUtils.progressInterval(intent));
       
         // Tell the Android framework how to behave if this service is
         // interrupted.  In our case, we want to restart the service
@@ -105,6 +349,91 @@ public class ThreadPoolDownloadService extends Service {
         return START_REDELIVER_INTENT;
     }
 
+    /**
+     * Schedule the download of @a item's URI in the @a priority
+     * class.  Only the first request for a URI downloads it; later
+     * requests just wait for that download's pathname, promoting it
+     * if a user is now waiting for a prefetch.
+     */
+    private void schedule(DownloadBatch.Item item,
+                          int priority,
+                          boolean wantsProgress,
+                          long progressIntervalMs) {
+        final Uri uri = item.uri();
+        PendingDownload download;
+        boolean isFirst;
+
+        synchronized (mPendingDownloads) {
+            download = mPendingDownloads.get(uri.toString());
+            isFirst = download == null;
+
+            if (isFirst) {
+                download =
+                    new PendingDownload(uri,
+                                        priority,
+                                        progressIntervalMs,
+                                        item.maxBytesInMemory());
+                mPendingDownloads.put(uri.toString(), download);
+            }
+            download.mReplies.add(item);
+            if (wantsProgress) {
+                // Report as often as the most eager requester asked.
+                if (download.mProgressReplies.isEmpty()
+                    || progressIntervalMs < download.mProgressIntervalMs) {
+                    download.mProgressIntervalMs = progressIntervalMs;
+                    download.mProgress.setInterval(progressIntervalMs);
+                }
+                download.mProgressReplies.add(item.messenger());
+            }
+        }
+
+        if (isFirst)
+            mScheduler.execute(download);
+        else if (priority == DownloadScheduler.PRIORITY_INTERACTIVE)
+            mScheduler.promote(download);
+    }
+
+    /**
+     * Cancel the download of a URI, if one is in flight.  A queued
+     * download is answered right away; a running one stops the next
+     * time it writes.  Either way its requesters are answered with a
+     * null pathname, and a later request for the URI starts a fresh
+     * download rather than joining the cancelled one.
+     */
+    private void cancel(String uri) {
+        PendingDownload download;
+        synchronized (mPendingDownloads) {
+            download = mPendingDownloads.remove(uri);
+        }
+
+        if (download != null) {
+            download.mProgress.cancel();
+            mScheduler.cancel(download);
+        }
+    }
+
+    /**
+     * Returns the requests waiting for @a download, which just
+     * finished.  Any later request for its URI starts a new download.
+     */
+    private List<DownloadBatch.Item> removePendingReplies(PendingDownload download) {
+        synchronized (mPendingDownloads) {
+            forget(download);
+            return download.mReplies;
+        }
+    }
+
+    /**
+     * Stop @a download from being joined by later requests, unless
+     * it's been cancelled and a fresh download of its URI has taken
+     * its place.  Called with mPendingDownloads locked.
+     */
+    private void forget(PendingDownload download) {
+        String uri = download.mUri.toString();
+        if (mPendingDownloads.get(uri) == download)
+            mPendingDownloads.remove(uri);
+    }
+
     /**
      * Called when the service is destroyed, which is the last call
      * the Service receives informing it to clean up any resources it
@@ -112,10 +441,21 @@ public class ThreadPoolDownloadService extends Service {
      */
     @Override
 	public void onDestroy() {
-    	// Ensure that the threads used by the ThreadPoolExecutor
+    	// Ensure that the threads used by the DownloadScheduler
     	// complete and are reclaimed by the system.
 
-        mExecutor.shutdown();
+        mScheduler.shutdown();
+    }
+
+    /**
+     * Hook method called by "adb shell dumpsys", which prints the
+     * DownloadStats of this process.
+     */
+    @Override
+    protected void dump(FileDescriptor fd,
+                        PrintWriter writer,
+                        String[] args) {
+        DownloadStats.instance().dump(writer);
     }
 
     /**
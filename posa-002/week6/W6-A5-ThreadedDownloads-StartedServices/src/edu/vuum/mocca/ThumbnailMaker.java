@@ -0,0 +1,224 @@
+package edu.vuum.mocca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @class ThumbnailMaker
+ *
+ * @brief Makes thumbnails of downloaded images at a few configured
+ *        sizes and stores them in the DownloadCache next to the
+ *        originals, so a requester that only shows a preview is sent
+ *        a small file rather than the whole image.
+ *
+ *        Each image is decoded once, sampled down to about the size
+ *        of the largest thumbnail, and scaled down from there for
+ *        each smaller one.  Thumbnails are JPEG-encoded, which is the
+ *        most compact format BitmapFactory can encode on every
+ *        platform this app supports.
+ *
+ *        Thumbnails are made one image at a time on a thread of the
+ *        lowest priority, after the download has been replied to, so
+ *        they never hold up a reply or compete with a download for
+ *        the CPU.
+ */
+public class ThumbnailMaker {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "ThumbnailMaker";
+
+    /**
+     * Default sizes, in pixels, of the squares the thumbnails fit in.
+     */
+    static final int[] DEFAULT_SIZES = { 128, 512 };
+
+    /**
+     * Quality the thumbnails are JPEG-encoded at.
+     */
+    static final int JPEG_QUALITY = 80;
+
+    /**
+     * The ThumbnailMaker shared by everything in this process.
+     */
+    private static ThumbnailMaker mInstance;
+
+    /**
+     * Makes the thumbnails, one image at a time at the lowest
+     * priority.
+     */
+    private static final ExecutorService mExecutor =
+        Executors.newSingleThreadExecutor(
+            DownloadUtils.makeThreadFactory(TAG,
+                                            Process.THREAD_PRIORITY_LOWEST));
+
+    /**
+     * The cache the images and their thumbnails are kept in.
+     */
+    private final DownloadCache mCache;
+
+    /**
+     * Sizes of the thumbnails made, smallest first.
+     */
+    private volatile int[] mSizes;
+
+    /**
+     * Returns the ThumbnailMaker shared by everything in this
+     * process, which keeps thumbnails of DEFAULT_SIZES in the
+     * process's DownloadCache.
+     */
+    public static synchronized ThumbnailMaker instance(Context context) {
+        if (mInstance == null)
+            mInstance = new ThumbnailMaker(DownloadCache.instance(context),
+                                           DEFAULT_SIZES);
+        return mInstance;
+    }
+
+    /**
+     * Constructor creates a ThumbnailMaker that keeps thumbnails
+     * fitting in squares of each of @a sizes pixels in @a cache.
+     */
+    public ThumbnailMaker(DownloadCache cache, int... sizes) {
+        mCache = cache;
+        setSizes(sizes);
+    }
+
+    /**
+     * Make thumbnails fitting in squares of each of @a sizes pixels
+     * from now on.
+     */
+    public void setSizes(int... sizes) {
+        if (sizes.length == 0)
+            throw new IllegalArgumentException("no thumbnail sizes");
+
+        int[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        if (sorted[0] <= 0)
+            throw new IllegalArgumentException("invalid thumbnail size");
+
+        mSizes = sorted;
+    }
+
+    /**
+     * Returns the thumbnail of the URL's image that best previews it
+     * at @a size by @a size pixels, i.e., the smallest one at least
+     * that big, or the largest if none is.  Returns null if that
+     * thumbnail hasn't been made yet.  Never touches the network.
+     */
+    public File preview(String url,
+                        int size) throws IOException {
+        int[] sizes = mSizes;
+        int best = 0;
+        while (best < sizes.length - 1 && sizes[best] < size)
+            ++best;
+
+        return mCache.getThumbnail(url, sizes[best]);
+    }
+
+    /**
+     * Make the thumbnails of the URL's image, whose downloaded
+     * @a contents are in the cache or being written to it, in the
+     * background.  Thumbnails that already exist aren't made again.
+     */
+    public Future<?> makeLater(final String url,
+                               final DownloadCache.Contents contents) {
+        return mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        make(url, contents.file());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Couldn't make thumbnails of " + url + ": " + e);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Make the missing thumbnails of the URL's image, held in
+     * @a image, on the calling thread.
+     */
+    void make(String url,
+              File image) throws IOException {
+        // Only decode the image at the size of the largest thumbnail
+        // that's missing.
+        int[] sizes = mSizes;
+        int largest = sizes.length - 1;
+        while (largest >= 0
+               && mCache.getThumbnail(url, sizes[largest]) != null)
+            --largest;
+        if (largest < 0)
+            return;
+
+        // Read just the size of the image, which also tells us
+        // whether it's an image at all.
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize =
+            BitmapDecoder.calculateInSampleSize(options.outWidth,
+                                                options.outHeight,
+                                                sizes[largest],
+                                                sizes[largest]);
+        Bitmap bitmap = BitmapFactory.decodeFile(image.getPath(), options);
+        if (bitmap == null)
+            return;
+
+        try {
+            for (int i = largest; i >= 0; --i) {
+                if (i < largest && mCache.getThumbnail(url, sizes[i]) != null)
+                    continue;
+
+                Bitmap thumbnail = scaleToFit(bitmap, sizes[i]);
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    thumbnail.compress(Bitmap.CompressFormat.JPEG,
+                                       JPEG_QUALITY,
+                                       out);
+                    if (mCache.putThumbnail(url, sizes[i], out.toByteArray()) == null)
+                        // The image has been evicted.
+                        return;
+                    Log.d(TAG, "    made " + sizes[i] + "px thumbnail of " + url);
+                } finally {
+                    if (thumbnail != bitmap)
+                        thumbnail.recycle();
+                }
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Returns @a bitmap scaled down to fit in a square of @a size
+     * pixels, or @a bitmap itself if it already does.
+     */
+    private static Bitmap scaleToFit(Bitmap bitmap,
+                                     int size) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= size && height <= size)
+            return bitmap;
+
+        float scale = (float) size / Math.max(width, height);
+        return Bitmap.createScaledBitmap(bitmap,
+                                         Math.max(1, Math.round(width * scale)),
+                                         Math.max(1, Math.round(height * scale)),
+                                         true);
+    }
+}
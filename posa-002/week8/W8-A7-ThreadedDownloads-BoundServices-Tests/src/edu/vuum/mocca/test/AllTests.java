@@ -17,6 +17,12 @@ public class AllTests {
 		suite.addTestSuite(DownloadBoundServiceSyncTests.class);
 		suite.addTestSuite(DownloadUtilsTests.class);
 		suite.addTestSuite(DownloadActivityTests.class);
+		suite.addTestSuite(DownloadCacheTests.class);
+		suite.addTestSuite(DownloadProgressTests.class);
+		suite.addTestSuite(BitmapDecoderTests.class);
+		suite.addTestSuite(BitmapCacheTests.class);
+		suite.addTestSuite(DownloadStatsTests.class);
+		suite.addTestSuite(LoadTests.class);
 		//$JUnit-END$
 		return suite;
 	}
@@ -14,7 +14,9 @@ import edu.vuum.mocca.DownloadRequest;
 /**
  * @class DownloadBoundServiceAsyncTests
  *
- * @brief Tests the functionality of the Asynchronous Bound Service. 
+ * @brief Tests the functionality of the Asynchronous Bound Service,
+ *        including that a download doesn't hold up the call that
+ *        asked for it.
  */
 public class DownloadBoundServiceAsyncTests extends ServiceTestCase<DownloadBoundServiceAsync>{
     // Store the intent from makeIntent() to ensure proper creation
@@ -88,4 +90,31 @@ public class DownloadBoundServiceAsyncTests extends ServiceTestCase<DownloadBoun
         // Make sure the file actually downloaded
         assertTrue(Utilities.checkDownloadedImage(context, mReceivedUri));
     }
+
+    /**
+     * Check that downloadImage() returns before a slow download
+     * finishes, so the Binder thread it arrives on is free again,
+     * and that the callback is still called once it does.
+     */
+    public void test_downloadImage_returns_at_once () throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final long latencyMs = Options.SHORT_WAIT_TIME / 10;
+            server.setLatency(latencyMs);
+            server.serve("/slow", new byte[10000], null, 0, -1);
+
+            mLatch = new CountDownLatch(1);
+            mReceivedUri = null;
+            DownloadRequest request = DownloadRequest.Stub.asInterface(bindService(mIntent));
+
+            long start = System.currentTimeMillis();
+            request.downloadImage(Uri.parse(server.url("/slow")), callback_);
+            assertTrue(System.currentTimeMillis() - start < latencyMs);
+
+            assertTrue(mLatch.await(Options.LONG_WAIT_TIME, TimeUnit.MILLISECONDS));
+            assertNotNull(mReceivedUri);
+        } finally {
+            server.shutdown();
+        }
+    }
 }
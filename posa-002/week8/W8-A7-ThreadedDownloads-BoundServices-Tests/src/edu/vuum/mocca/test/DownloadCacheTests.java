@@ -0,0 +1,542 @@
+package edu.vuum.mocca.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import edu.vuum.mocca.DownloadCache;
+import edu.vuum.mocca.PooledHttpClient;
+
+/**
+ * @class DownloadCacheTests
+ *
+ * @brief Test the DownloadCache against a LocalHttpServer, checking
+ *        that fresh entries are reused, stale entries are revalidated
+ *        rather than downloaded again, no-store responses aren't
+ *        cached, the cache stays within its byte budget, its index
+ *        survives being reopened and isn't rewritten by hits, large
+ *        files are downloaded in resumable ranges, small files can
+ *        be returned in memory, thumbnails live and die with their
+ *        images, and its connections are kept alive, compressed, and
+ *        limited per host.
+ */
+public class DownloadCacheTests extends TestCase {
+    /**
+     * Size of the files served in these tests.
+     */
+    static final int FILE_SIZE = 10000;
+
+    /**
+     * Number of segments large files are split into, and the size of
+     * the large files, which fills them all.
+     */
+    static final int SEGMENTS = 4;
+    static final int LARGE_FILE_SIZE = SEGMENTS * FILE_SIZE;
+
+    /**
+     * The server the files are downloaded from.
+     */
+    LocalHttpServer mServer;
+
+    /**
+     * Directory the cache is kept in.
+     */
+    File mDirectory;
+
+    /**
+     * The cache under test.
+     */
+    DownloadCache mCache;
+
+    /**
+     * Start the server and open an empty cache in a new directory.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+
+        mDirectory = File.createTempFile("DownloadCacheTests", "");
+        mDirectory.delete();
+        mCache = new DownloadCache(mDirectory, 10 * FILE_SIZE);
+    }
+
+    /**
+     * Stop the server and delete the cache.
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        for (File file : mDirectory.listFiles())
+            file.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A file that's still fresh is returned without a request.
+     */
+    public void test_fresh_entry_is_not_requested_again () throws IOException {
+        byte[] body = makeBody(1);
+        mServer.serve("/fresh", body, "\"v1\"", 0, 60);
+
+        File first = mCache.get(mServer.url("/fresh"));
+        File second = mCache.get(mServer.url("/fresh"));
+
+        assertEquals(first, second);
+        assertTrue(Arrays.equals(body, readFile(second)));
+        assertEquals(1, mServer.requestCount());
+    }
+
+    /**
+     * The expiry of a cached file is when its max-age runs out, and
+     * a file that isn't cached has already expired.
+     */
+    public void test_expiry_follows_max_age () throws IOException {
+        mServer.serve("/expiry", makeBody(1), "\"v1\"", 0, 60);
+        long before = System.currentTimeMillis();
+        mCache.get(mServer.url("/expiry"));
+
+        long expiry = mCache.expiry(mServer.url("/expiry"));
+        assertTrue(expiry >= before + 60 * 1000);
+        assertTrue(expiry <= System.currentTimeMillis() + 60 * 1000);
+        assertEquals(0, mCache.expiry(mServer.url("/uncached")));
+    }
+
+    /**
+     * A stale file with an ETag is revalidated, and the server's 304
+     * reply means its contents aren't sent again.
+     */
+    public void test_stale_entry_is_revalidated_by_etag () throws IOException {
+        byte[] body = makeBody(2);
+        mServer.serve("/etag", body, "\"v1\"", 0, 0);
+
+        mCache.get(mServer.url("/etag"));
+        File file = mCache.get(mServer.url("/etag"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(2, mServer.requestCount());
+        assertEquals(1, mServer.bodyCount());
+    }
+
+    /**
+     * A stale file with only a Last-Modified time is revalidated with
+     * If-Modified-Since.
+     */
+    public void test_stale_entry_is_revalidated_by_date () throws IOException {
+        byte[] body = makeBody(3);
+        mServer.serve("/date", body, null, 1000000000000L, -1);
+
+        mCache.get(mServer.url("/date"));
+        mCache.get(mServer.url("/date"));
+
+        assertEquals(2, mServer.requestCount());
+        assertEquals(1, mServer.bodyCount());
+    }
+
+    /**
+     * A file that changed on the server is downloaded again.
+     */
+    public void test_changed_file_is_downloaded_again () throws IOException {
+        mServer.serve("/changed", makeBody(4), "\"v1\"", 0, 0);
+        mCache.get(mServer.url("/changed"));
+
+        byte[] body = makeBody(5);
+        mServer.serve("/changed", body, "\"v2\"", 0, 0);
+        File file = mCache.get(mServer.url("/changed"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(2, mServer.bodyCount());
+    }
+
+    /**
+     * A response that says no-store is returned but never cached, and
+     * drops what was cached for its URL.
+     */
+    public void test_no_store_response_is_not_cached () throws IOException {
+        byte[] body = makeBody(5);
+        mServer.serve("/nostore", body, "\"v1\"", 0, 0);
+        mCache.get(mServer.url("/nostore"));
+
+        mServer.setNoStore(true);
+        mServer.serve("/nostore", body, "\"v2\"", 0, 60);
+        File first = mCache.get(mServer.url("/nostore"));
+        File second = mCache.get(mServer.url("/nostore"));
+
+        assertTrue(Arrays.equals(body, readFile(first)));
+        assertTrue(Arrays.equals(body, readFile(second)));
+        assertNull(mCache.peek(mServer.url("/nostore")));
+        assertEquals(0, mCache.size());
+        assertEquals(3, mServer.bodyCount());
+    }
+
+    /**
+     * The least recently used files are evicted once the cache holds
+     * more bytes than its budget.
+     */
+    public void test_least_recently_used_file_is_evicted () throws IOException {
+        mCache.setMaxBytes(2 * FILE_SIZE + FILE_SIZE / 2);
+        for (int i = 0; i < 3; ++i)
+            mServer.serve("/lru" + i, makeBody(i), "\"v1\"", 0, 60);
+
+        File first = mCache.get(mServer.url("/lru0"));
+        mCache.get(mServer.url("/lru1"));
+
+        // Use the first file again so the second one is evicted.
+        mCache.get(mServer.url("/lru0"));
+        mCache.get(mServer.url("/lru2"));
+
+        assertTrue(first.exists());
+        assertNull(mCache.peek(mServer.url("/lru1")));
+        assertEquals(2 * FILE_SIZE, mCache.size());
+    }
+
+    /**
+     * Reopening the cache, as a restarted process would, keeps the
+     * files that were cached.
+     */
+    public void test_index_survives_reopening () throws IOException {
+        byte[] body = makeBody(6);
+        mServer.serve("/persist", body, "\"v1\"", 0, 60);
+        mCache.get(mServer.url("/persist"));
+
+        DownloadCache reopened = new DownloadCache(mDirectory, 10 * FILE_SIZE);
+        File file = reopened.get(mServer.url("/persist"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(1, mServer.requestCount());
+    }
+
+    /**
+     * A cache hit doesn't rewrite the index, but the order it leaves
+     * the entries in is written with the next change.
+     */
+    public void test_hit_does_not_rewrite_index () throws IOException {
+        mCache.setMaxBytes(2 * FILE_SIZE + FILE_SIZE / 2);
+        for (int i = 0; i < 3; ++i)
+            mServer.serve("/hit" + i, makeBody(i), "\"v1\"", 0, 60);
+        mCache.get(mServer.url("/hit0"));
+        mCache.get(mServer.url("/hit1"));
+
+        File index = new File(mDirectory, "index");
+        assertTrue(index.setLastModified(1000000000000L));
+        mCache.get(mServer.url("/hit0"));
+        assertEquals(1000000000000L, index.lastModified());
+
+        // The next download writes the order, so another process
+        // evicts the second file rather than the first.
+        DownloadCache other = new DownloadCache(mDirectory, 2 * FILE_SIZE + FILE_SIZE / 2);
+        mCache.get(mServer.url("/hit2"));
+        assertNotNull(other.peek(mServer.url("/hit0")));
+        assertNull(other.peek(mServer.url("/hit1")));
+    }
+
+    /**
+     * A large file is fetched over one connection per segment and
+     * reassembled correctly.
+     */
+    public void test_large_file_is_downloaded_in_ranges () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE);
+        byte[] body = makeLargeBody();
+        mServer.serve("/ranged", body, "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/ranged"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(SEGMENTS, mServer.requestCount());
+        assertEquals(SEGMENTS, mServer.rangeCount());
+    }
+
+    /**
+     * The rest of a file after the probe's segment is never split
+     * into segments smaller than the minimum.
+     */
+    public void test_segments_are_not_smaller_than_minimum () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE * 3 / 2);
+        byte[] body = makeLargeBody();
+        mServer.serve("/minimum", body, "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/minimum"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(2, mServer.requestCount());
+        assertEquals(2, mServer.rangeCount());
+    }
+
+    /**
+     * An empty file, whose first segment the server can't send, is
+     * cached as an empty file.
+     */
+    public void test_empty_file_is_cached () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE);
+        mServer.serve("/empty", new byte[0], "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/empty"));
+
+        assertTrue(file.exists());
+        assertEquals(0, file.length());
+        assertEquals(file, mCache.peek(mServer.url("/empty")));
+        assertEquals(1, mServer.requestCount());
+    }
+
+    /**
+     * An interrupted segment is resumed from where it stopped rather
+     * than restarting the file.
+     */
+    public void test_interrupted_segment_is_resumed () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE);
+        byte[] body = makeLargeBody();
+        mServer.serve("/resumed", body, "\"v1\"", 0, 60);
+        mServer.interruptResponses(1, FILE_SIZE / 2);
+
+        File file = mCache.get(mServer.url("/resumed"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(SEGMENTS + 1, mServer.requestCount());
+    }
+
+    /**
+     * A server that ignores ranges still gets the whole file over one
+     * connection.
+     */
+    public void test_server_without_ranges_sends_whole_file () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE);
+        mServer.setRangesSupported(false);
+        byte[] body = makeLargeBody();
+        mServer.serve("/whole", body, "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/whole"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(1, mServer.requestCount());
+        assertEquals(0, mServer.rangeCount());
+    }
+
+    /**
+     * Downloads from one host reuse a single kept-alive connection.
+     */
+    public void test_connections_are_kept_alive () throws IOException {
+        final int files = 5;
+        for (int i = 0; i < files; ++i)
+            mServer.serve("/alive" + i, makeBody(i), "\"v1\"", 0, 60);
+
+        for (int i = 0; i < files; ++i)
+            assertTrue(Arrays.equals(makeBody(i),
+                                     readFile(mCache.get(mServer.url("/alive" + i)))));
+
+        assertEquals(files, mServer.requestCount());
+        assertEquals(1, mServer.connectionCount());
+    }
+
+    /**
+     * A whole-file response is gzipped on the wire and stored
+     * decompressed.
+     */
+    public void test_whole_file_is_compressed () throws IOException {
+        mCache.setSegments(1, FILE_SIZE);
+        mServer.setCompression(true);
+        byte[] body = makeBody(1);
+        mServer.serve("/compressed", body, "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/compressed"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(1, mServer.compressedCount());
+    }
+
+    /**
+     * The request for the first segment accepts gzip, so a file the
+     * server compresses is sent whole and compressed even when it
+     * could be downloaded in ranges.
+     */
+    public void test_first_segment_request_accepts_gzip () throws IOException {
+        mCache.setSegments(SEGMENTS, FILE_SIZE);
+        mServer.setCompression(true);
+        byte[] body = makeLargeBody();
+        mServer.serve("/probe", body, "\"v1\"", 0, 60);
+
+        File file = mCache.get(mServer.url("/probe"));
+
+        assertTrue(Arrays.equals(body, readFile(file)));
+        assertEquals(1, mServer.requestCount());
+        assertEquals(1, mServer.compressedCount());
+        assertEquals(0, mServer.rangeCount());
+    }
+
+    /**
+     * Concurrent downloads from one host never use more connections
+     * than the client allows.
+     */
+    public void test_connections_per_host_are_limited () throws Exception {
+        final int maxConnections = 2;
+        final int files = 3 * maxConnections;
+        mCache.setHttpClient(new PooledHttpClient(maxConnections));
+        mServer.setLatency(100);
+        for (int i = 0; i < files; ++i)
+            mServer.serve("/limited" + i, makeBody(i), "\"v1\"", 0, 60);
+
+        ExecutorService executor = Executors.newFixedThreadPool(files);
+        try {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for (int i = 0; i < files; ++i) {
+                final String url = mServer.url("/limited" + i);
+                futures.add(executor.submit(new Callable<File>() {
+                        public File call() throws IOException {
+                            return mCache.get(url);
+                        }
+                    }));
+            }
+
+            for (int i = 0; i < files; ++i)
+                assertTrue(Arrays.equals(makeBody(i),
+                                         readFile(futures.get(i).get())));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(maxConnections, mServer.maxActiveRequests());
+    }
+
+    /**
+     * A file small enough is returned in memory, with when it
+     * expires, and is in the cache once it's been written.
+     */
+    public void test_small_file_is_returned_in_memory () throws IOException {
+        byte[] body = makeBody(6);
+        mServer.serve("/small", body, "\"v1\"", 0, 60);
+        long before = System.currentTimeMillis();
+
+        DownloadCache.Contents contents =
+            mCache.getContents(mServer.url("/small"), FILE_SIZE, null);
+
+        assertTrue(Arrays.equals(body, contents.bytes()));
+        assertTrue(contents.expires() >= before + 60 * 1000);
+        assertTrue(Arrays.equals(body, readFile(contents.file())));
+        assertEquals(contents.file(), mCache.get(mServer.url("/small")));
+        assertEquals(1, mServer.requestCount());
+    }
+
+    /**
+     * A file larger than the limit is only returned on disk.
+     */
+    public void test_large_file_is_not_returned_in_memory () throws IOException {
+        byte[] body = makeBody(7);
+        mServer.serve("/notsmall", body, "\"v1\"", 0, 60);
+
+        DownloadCache.Contents contents =
+            mCache.getContents(mServer.url("/notsmall"), FILE_SIZE - 1, null);
+
+        assertNull(contents.bytes());
+        assertTrue(Arrays.equals(body, readFile(contents.file())));
+    }
+
+    /**
+     * A thumbnail is kept next to its image and counts towards the
+     * size of the cache.
+     */
+    public void test_thumbnail_is_kept_next_to_its_image () throws IOException {
+        byte[] thumbnail = makeThumbnail(1);
+        mServer.serve("/thumb", makeBody(1), "\"v1\"", 0, 60);
+        File image = mCache.get(mServer.url("/thumb"));
+
+        File file = mCache.putThumbnail(mServer.url("/thumb"), 128, thumbnail);
+
+        assertEquals(image.getParentFile(), file.getParentFile());
+        assertEquals(file, mCache.getThumbnail(mServer.url("/thumb"), 128));
+        assertTrue(Arrays.equals(thumbnail, readFile(file)));
+        assertNull(mCache.getThumbnail(mServer.url("/thumb"), 512));
+        assertEquals(FILE_SIZE + thumbnail.length, mCache.size());
+    }
+
+    /**
+     * A thumbnail of an image that isn't cached isn't kept.
+     */
+    public void test_thumbnail_of_uncached_image_is_not_kept () throws IOException {
+        assertNull(mCache.putThumbnail(mServer.url("/none"), 128, makeThumbnail(2)));
+        assertNull(mCache.getThumbnail(mServer.url("/none"), 128));
+    }
+
+    /**
+     * Thumbnails are evicted along with their image.
+     */
+    public void test_thumbnails_are_evicted_with_their_image () throws IOException {
+        mCache.setMaxBytes(2 * FILE_SIZE + FILE_SIZE / 2);
+        for (int i = 0; i < 3; ++i)
+            mServer.serve("/evict" + i, makeBody(i), "\"v1\"", 0, 60);
+
+        mCache.get(mServer.url("/evict0"));
+        File file = mCache.putThumbnail(mServer.url("/evict0"), 128, makeThumbnail(3));
+        mCache.get(mServer.url("/evict1"));
+        mCache.get(mServer.url("/evict2"));
+
+        assertNull(mCache.peek(mServer.url("/evict0")));
+        assertFalse(file.exists());
+        assertEquals(2 * FILE_SIZE, mCache.size());
+    }
+
+    /**
+     * Thumbnails of a file that changed on the server are dropped
+     * when it's downloaded again.
+     */
+    public void test_thumbnails_of_changed_file_are_dropped () throws IOException {
+        mServer.serve("/rethumb", makeBody(4), "\"v1\"", 0, 0);
+        mCache.get(mServer.url("/rethumb"));
+        File file = mCache.putThumbnail(mServer.url("/rethumb"), 128, makeThumbnail(4));
+
+        mServer.serve("/rethumb", makeBody(5), "\"v2\"", 0, 0);
+        mCache.get(mServer.url("/rethumb"));
+
+        assertFalse(file.exists());
+        assertNull(mCache.getThumbnail(mServer.url("/rethumb"), 128));
+        assertEquals(FILE_SIZE, mCache.size());
+    }
+
+    /**
+     * Returns the contents of a test file.
+     */
+    private static byte[] makeBody(int seed) {
+        byte[] body = new byte[FILE_SIZE];
+        Arrays.fill(body, (byte) seed);
+        return body;
+    }
+
+    /**
+     * Returns the contents of a test thumbnail.
+     */
+    private static byte[] makeThumbnail(int seed) {
+        byte[] thumbnail = new byte[FILE_SIZE / 10];
+        Arrays.fill(thumbnail, (byte) seed);
+        return thumbnail;
+    }
+
+    /**
+     * Returns the contents of a large test file, which differ at
+     * every offset so a misplaced segment is caught.
+     */
+    private static byte[] makeLargeBody() {
+        byte[] body = new byte[LARGE_FILE_SIZE];
+        for (int i = 0; i < body.length; ++i)
+            body[i] = (byte) (i * 31 + i / 251);
+        return body;
+    }
+
+    /**
+     * Returns the contents of a file.
+     */
+    private static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(contents);
+        in.close();
+        return contents;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.vuum.mocca.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+import edu.vuum.mocca.DownloadCache;
+import edu.vuum.mocca.DownloadProgress;
+import edu.vuum.mocca.DownloadUtils;
+
+/**
+ * @class DownloadProgressTests
+ *
+ * @brief Test that DownloadProgress coalesces its reports, that its
+ *        interval can be shortened, and that cancelling it stops a
+ *        copy, and a cached download, part way through.
+ */
+public class DownloadProgressTests extends TestCase {
+    /**
+     * Size of the file downloaded in these tests.
+     */
+    static final int FILE_SIZE = 100000;
+
+    /**
+     * @class CountingProgress
+     *
+     * @brief A DownloadProgress that counts its reports and cancels
+     *        itself once @a cancelAfter bytes are done.
+     */
+    static class CountingProgress extends DownloadProgress {
+        final long mCancelAfter;
+        int mReports;
+        long mLastBytesDone;
+
+        CountingProgress(long intervalMs, long cancelAfter) {
+            super(intervalMs);
+            mCancelAfter = cancelAfter;
+        }
+
+        @Override
+        protected void onProgress(long bytesDone,
+                                  long bytesTotal,
+                                  long bytesPerSecond) {
+            ++mReports;
+            mLastBytesDone = bytesDone;
+            if (bytesDone >= mCancelAfter)
+                cancel();
+        }
+    }
+
+    /**
+     * Many writes within one interval are reported once, plus the
+     * report for the last byte.
+     */
+    public void test_reports_are_coalesced () throws IOException {
+        CountingProgress progress =
+            new CountingProgress(60000, Long.MAX_VALUE);
+        progress.setTotal(FILE_SIZE);
+
+        for (int i = 0; i < FILE_SIZE / 100; ++i)
+            progress.add(100);
+
+        assertEquals(2, progress.mReports);
+        assertEquals(FILE_SIZE, progress.mLastBytesDone);
+    }
+
+    /**
+     * Shortening the interval lets the next write be reported rather
+     * than waiting out the longer one.
+     */
+    public void test_shorter_interval_takes_effect () throws IOException {
+        CountingProgress progress =
+            new CountingProgress(60000, Long.MAX_VALUE);
+        progress.setTotal(FILE_SIZE);
+
+        progress.add(100);
+        progress.add(100);
+        assertEquals(1, progress.mReports);
+
+        progress.setInterval(0);
+        progress.add(100);
+        assertEquals(2, progress.mReports);
+        assertEquals(300, progress.mLastBytesDone);
+    }
+
+    /**
+     * Cancelling stops a copy from an endless stream.
+     */
+    public void test_cancel_stops_copy () {
+        CountingProgress progress = new CountingProgress(0, FILE_SIZE);
+        InputStream endless = new InputStream() {
+                @Override
+                public int read() {
+                    return 0;
+                }
+            };
+
+        try {
+            DownloadUtils.copy(endless, new ByteArrayOutputStream(), progress);
+            fail("copy() wasn't cancelled");
+        } catch (DownloadProgress.CancelledException e) {
+            assertTrue(progress.isCancelled());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    /**
+     * A cancelled download leaves nothing in the cache.
+     */
+    public void test_cancelled_download_is_not_cached () throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        File directory = File.createTempFile("DownloadProgressTests", "");
+        directory.delete();
+
+        try {
+            server.serve("/cancelled", new byte[FILE_SIZE], "\"v1\"", 0, 60);
+            DownloadCache cache = new DownloadCache(directory, 10 * FILE_SIZE);
+            cache.setSegments(1, FILE_SIZE);
+
+            try {
+                cache.get(server.url("/cancelled"),
+                          new CountingProgress(0, 1));
+                fail("the download wasn't cancelled");
+            } catch (DownloadProgress.CancelledException e) {
+            }
+
+            assertNull(cache.peek(server.url("/cancelled")));
+            assertEquals(0, cache.size());
+        } finally {
+            server.shutdown();
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+}
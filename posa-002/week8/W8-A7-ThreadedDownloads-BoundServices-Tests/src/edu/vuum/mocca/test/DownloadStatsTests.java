@@ -0,0 +1,103 @@
+package edu.vuum.mocca.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+import edu.vuum.mocca.DownloadStats;
+import edu.vuum.mocca.DownloadUtils;
+
+/**
+ * @class DownloadStatsTests
+ *
+ * @brief Test that DownloadStats aggregates its samples correctly and
+ *        that a Trace collects the phases measured on its thread.
+ */
+public class DownloadStatsTests extends TestCase {
+    /**
+     * The mean and percentiles are computed from the samples, in
+     * milliseconds.
+     */
+    public void test_aggregates () {
+        DownloadStats stats = new DownloadStats();
+        for (int ms = 1; ms <= 100; ++ms)
+            stats.record(DownloadStats.CONNECT, ms * 1000000L);
+
+        assertEquals(100, stats.count(DownloadStats.CONNECT));
+        assertEquals(50.5, stats.meanMs(DownloadStats.CONNECT), 1e-9);
+        assertEquals(95.0, stats.percentileMs(DownloadStats.CONNECT, 95), 1e-9);
+        assertEquals(99.0, stats.percentileMs(DownloadStats.CONNECT, 99), 1e-9);
+        assertEquals(0, stats.count(DownloadStats.DECODE));
+        assertEquals(0.0, stats.meanMs(DownloadStats.DECODE), 1e-9);
+    }
+
+    /**
+     * Only the most recent samples count towards the mean, though
+     * every sample is counted.
+     */
+    public void test_window_rolls () {
+        DownloadStats stats = new DownloadStats();
+        for (int i = 0; i < 10000; ++i)
+            stats.record(DownloadStats.WRITE, 1000000L);
+        for (int i = 0; i < 10000; ++i)
+            stats.record(DownloadStats.WRITE, 3000000L);
+
+        assertEquals(20000, stats.count(DownloadStats.WRITE));
+        assertEquals(3.0, stats.meanMs(DownloadStats.WRITE), 1e-9);
+    }
+
+    /**
+     * The dump has a line for each phase that was recorded.
+     */
+    public void test_dump () {
+        DownloadStats stats = new DownloadStats();
+        stats.record(DownloadStats.FIRST_BYTE, 2000000L);
+
+        StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out));
+
+        assertTrue(out.toString(), out.toString().contains("first byte: 1, 2.0, 2.0, 2.0"));
+        assertFalse(out.toString(), out.toString().contains("decode"));
+    }
+
+    /**
+     * A copy made under a Trace adds its transfer and write phases,
+     * which are recorded when the Trace finishes.  Phases measured
+     * without a Trace are dropped.
+     */
+    public void test_trace_records_copy () throws IOException {
+        DownloadStats stats = DownloadStats.instance();
+        long transfers = stats.count(DownloadStats.TRANSFER);
+        long writes = stats.count(DownloadStats.WRITE);
+        long connects = stats.count(DownloadStats.CONNECT);
+
+        DownloadStats.add(DownloadStats.CONNECT, 1000000L);
+        assertNull(DownloadStats.current());
+
+        File file = File.createTempFile("stats", ".tmp");
+        try {
+            DownloadStats.Trace trace = DownloadStats.begin();
+            assertSame(trace, DownloadStats.current());
+
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                DownloadUtils.copy(new ByteArrayInputStream(new byte[100000]),
+                                   out);
+            } finally {
+                out.close();
+            }
+            trace.finish();
+        } finally {
+            file.delete();
+        }
+
+        assertNull(DownloadStats.current());
+        assertEquals(transfers + 1, stats.count(DownloadStats.TRANSFER));
+        assertEquals(writes + 1, stats.count(DownloadStats.WRITE));
+        assertEquals(connects, stats.count(DownloadStats.CONNECT));
+    }
+}
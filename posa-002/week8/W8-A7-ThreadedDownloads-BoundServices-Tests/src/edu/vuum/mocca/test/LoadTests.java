@@ -0,0 +1,199 @@
+package edu.vuum.mocca.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.test.InstrumentationTestCase;
+import edu.vuum.mocca.DownloadBoundServiceAsync;
+import edu.vuum.mocca.DownloadBoundServiceSync;
+import edu.vuum.mocca.DownloadCall;
+import edu.vuum.mocca.DownloadCallback;
+import edu.vuum.mocca.DownloadRequest;
+
+/**
+ * @class LoadTests
+ *
+ * @brief Drive many concurrent downloads through the
+ *        DownloadBoundServiceSync and the DownloadBoundServiceAsync
+ *        with a LoadHarness, and check that every request is
+ *        answered.  Each test logs its service's throughput and
+ *        latency percentiles under the "LoadHarness" tag, so the two
+ *        service models can be compared for a given load.
+ *
+ *        The services are bound through the target application's
+ *        Context, so they run in their own processes and the
+ *        measurements include the cost of the Binder calls.
+ */
+public class LoadTests extends InstrumentationTestCase {
+    /**
+     * Number of requests made in each run.
+     */
+    static final int REQUESTS = 50;
+
+    /**
+     * Most requests outstanding at once.
+     */
+    static final int CONCURRENCY = 8;
+
+    /**
+     * Size of each file served.
+     */
+    static final int FILE_BYTES = 64 * 1024;
+
+    /**
+     * Milliseconds the server waits before each response.
+     */
+    static final long LATENCY_MS = 50;
+
+    /**
+     * Milliseconds a run may take before its unanswered requests
+     * count as failures.
+     */
+    static final long RUN_TIMEOUT_MS = 4 * Options.LONG_WAIT_TIME;
+
+    /**
+     * The harness that makes the requests.
+     */
+    LoadHarness mHarness;
+
+    /**
+     * The context the services are bound in.
+     */
+    Context mContext;
+
+    /**
+     * The AIDL interfaces of the bound services.
+     */
+    volatile DownloadCall mDownloadCall;
+    volatile DownloadRequest mDownloadRequest;
+
+    /**
+     * Counted down as each service is connected.
+     */
+    CountDownLatch mConnected;
+
+    /**
+     * Receives the DownloadCall of the DownloadBoundServiceSync.
+     */
+    ServiceConnection mServiceConnectionSync = new ServiceConnection() {
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mDownloadCall = DownloadCall.Stub.asInterface(service);
+                mConnected.countDown();
+            }
+
+            public void onServiceDisconnected(ComponentName name) {
+                mDownloadCall = null;
+            }
+        };
+
+    /**
+     * Receives the DownloadRequest of the DownloadBoundServiceAsync.
+     */
+    ServiceConnection mServiceConnectionAsync = new ServiceConnection() {
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                mDownloadRequest = DownloadRequest.Stub.asInterface(service);
+                mConnected.countDown();
+            }
+
+            public void onServiceDisconnected(ComponentName name) {
+                mDownloadRequest = null;
+            }
+        };
+
+    /**
+     * This is called once before each test is run.
+     */
+    public void setUp() throws Exception {
+        super.setUp();
+
+        mHarness = new LoadHarness(REQUESTS, CONCURRENCY, FILE_BYTES, LATENCY_MS);
+        mContext = getInstrumentation().getTargetContext();
+
+        // Bind to both services and wait until they're connected.
+        mConnected = new CountDownLatch(2);
+        mContext.bindService(DownloadBoundServiceSync.makeIntent(mContext),
+                             mServiceConnectionSync,
+                             Context.BIND_AUTO_CREATE);
+        mContext.bindService(DownloadBoundServiceAsync.makeIntent(mContext),
+                             mServiceConnectionAsync,
+                             Context.BIND_AUTO_CREATE);
+        assertTrue(mConnected.await(Options.SHORT_WAIT_TIME,
+                                    TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * This is called once after each test is run.
+     */
+    public void tearDown() throws Exception {
+        mContext.unbindService(mServiceConnectionSync);
+        mContext.unbindService(mServiceConnectionAsync);
+        super.tearDown();
+    }
+
+    /**
+     * Load the DownloadBoundServiceSync.  Each twoway call blocks the
+     * thread that makes it, so the requests are made from a pool of
+     * CONCURRENCY threads.
+     */
+    public void test_bound_sync_service_load () throws Exception {
+        final ExecutorService callers =
+            Executors.newFixedThreadPool(CONCURRENCY);
+
+        try {
+            LoadHarness.Report report =
+                mHarness.run("DownloadBoundServiceSync",
+                             new LoadHarness.Client() {
+                                 public void request(final String url,
+                                                     final LoadHarness.Reply reply) {
+                                     callers.execute(new Runnable() {
+                                             public void run() {
+                                                 String pathname = null;
+                                                 try {
+                                                     pathname = mDownloadCall.downloadImage(Uri.parse(url));
+                                                 } catch (RemoteException e) {
+                                                 }
+                                                 reply.done(pathname);
+                                             }
+                                         });
+                                 }
+                             },
+                             RUN_TIMEOUT_MS);
+
+            assertEquals(report.toString(), 0, report.failures());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    /**
+     * Load the DownloadBoundServiceAsync, whose oneway calls return
+     * at once and answer through a DownloadCallback.
+     */
+    public void test_bound_async_service_load () throws Exception {
+        LoadHarness.Report report =
+            mHarness.run("DownloadBoundServiceAsync",
+                         new LoadHarness.Client() {
+                             public void request(String url,
+                                                 final LoadHarness.Reply reply)
+                                 throws RemoteException {
+                                 mDownloadRequest.downloadImage(Uri.parse(url),
+                                                                new DownloadCallback.Stub() {
+                                                                    public void sendPath(String path) {
+                                                                        reply.done(path);
+                                                                    }
+                                                                });
+                             }
+                         },
+                         RUN_TIMEOUT_MS);
+
+        assertEquals(report.toString(), 0, report.failures());
+    }
+}
@@ -119,39 +119,59 @@ public class DownloadActivity extends DownloadBase {
      * Service using the DownloadRequest.downloadImage() method.
      * 
      * This implementation of DownloadCallback.Stub plays the role of
-     * Invoker in the Broker Pattern.
+     * Invoker in the Broker Pattern.  It doesn't know which URL the
+     * image came from, so what it displays isn't cached;
+     * runService() passes a callback from makeDownloadCallback()
+     * instead.
      */
-    DownloadCallback.Stub mDownloadCallback = new DownloadCallback.Stub() {
+    DownloadCallback.Stub mDownloadCallback = makeDownloadCallback(null);
+
+    /**
+     * Make a DownloadCallback that displays the image downloaded from
+     * @a url and keeps it in the BitmapCache.  A null @a url means
+     * the image isn't cached.
+     */
+    DownloadCallback.Stub makeDownloadCallback(final String url) {
+        return new DownloadCallback.Stub() {
             /**
-             * Called when the DownloadServiceAsync finishes obtaining
-             * the results from the GeoNames Web service.  Use the
-             * provided String to display the results in a TextView.
+             * Called when the DownloadServiceAsync finishes
+             * downloading the image.  Display the image at the
+             * provided pathname on the UI Thread.
              */
             @Override
             public void sendPath(final String imagePathname) throws RemoteException {
                 Runnable displayRunnable = new Runnable() {
                     @Override
                     public void run() {
-                        displayBitmap(imagePathname);
+                        displayBitmap(url, imagePathname);
                     }
                 };
                 runOnUiThread(displayRunnable);
             }
         };
+    }
      
     /**
      * This method is called when a user presses a button (see
      * res/layout/activity_download.xml)
+     * 
+     * Neither service is used if the image is in the BitmapCache.
      */
     public void runService(View view) {
         Uri uri = Uri.parse(getUrlString());
 
         hideKeyboard();
 
+        // An image that's already been displayed is shown again
+        // straight from memory, whichever service downloaded it.
+        if (displayCachedBitmap(uri.toString()))
+            return;
+
     	switch (view.getId()) {
         case R.id.bound_sync_button:
             try {
-                displayBitmap(getDownloadCall().downloadImage(uri));
+                displayBitmap(uri.toString(),
+                              getDownloadCall().downloadImage(uri));
             } catch (RemoteException e) {
                 Toast.makeText(getApplicationContext(), "Failed to synchronously download image: " + e.getMessage(), Toast.LENGTH_LONG);
             }
@@ -159,7 +179,8 @@ public class DownloadActivity extends DownloadBase {
 
         case R.id.bound_async_button:
             try {
-                getDownloadRequest().downloadImage(uri, getDownloadCallback());
+                getDownloadRequest().downloadImage(uri,
+                                                   makeDownloadCallback(uri.toString()));
             } catch (RemoteException e) {
                 Toast.makeText(getApplicationContext(), "Failed to asynchronously download image: " + e.getMessage(), Toast.LENGTH_LONG);
             }
@@ -1,11 +1,20 @@
 package edu.vuum.mocca;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.util.Log;
 
 /**
  * @class DownloadBoundServiceAsync
@@ -21,12 +30,39 @@ import android.os.RemoteException;
  *        finished, this service should send the pathname of the
  *        downloaded file back to the calling component by calling
  *        sendPath() on the DownloadCallback object.
+ *
+ *        downloadImage() is oneway, so the Binder thread it arrives on
+ *        only hands the download to a small pool of download threads
+ *        and returns, leaving the process's Binder threads free for
+ *        other calls however slow the downloads are.  The callback is
+ *        called from the download thread once the file is on disk.
+ *
+ *        The phases of each download are recorded in the
+ *        DownloadStats of the Service's process, which "adb shell
+ *        dumpsys activity service DownloadBoundServiceAsync" prints.
  *  
  *        AIDL is an example of the Broker Pattern, in which all
  *        interprocess communication details are hidden behind the
  *        AIDL interfaces.
  */
 public class DownloadBoundServiceAsync extends Service{
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "DownloadBoundServiceAsync";
+
+    /**
+     * Number of threads that run downloads, as many as the
+     * PooledHttpClient lets connect to one host at once.
+     */
+    static final int MAX_THREADS =
+        PooledHttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /**
+     * Runs the downloads, so the Binder threads never do.
+     */
+    private ExecutorService mExecutor;
+
     /**
      * The concrete implementation of the AIDL Interface
      * DownloadRequest.  We extend the Stub class, which implements
@@ -45,13 +81,74 @@ public class DownloadBoundServiceAsync extends Service{
              * Use the methods defined in DownloadUtils for code brevity.
              */
             @Override
-            public void downloadImage(Uri uri,
-                                      DownloadCallback callback)
+            public void downloadImage(final Uri uri,
+                                      final DownloadCallback callback)
                 throws RemoteException {
-                callback.sendPath(DownloadUtils.downloadFile(getApplicationContext(), uri));
+                final long queued = System.nanoTime();
+                try {
+                    mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                download(uri, callback, queued);
+                            }
+                        });
+                } catch (RejectedExecutionException e) {
+                    // The Service is being destroyed.
+                    Log.d(TAG, "dropping download of " + uri);
+                    callback.sendPath(null);
+                }
             }
 		
 	};
+
+    /**
+     * Download the image at @a uri, whose request was queued at
+     * @a queued, and send its pathname to @a callback.  Runs on a
+     * download thread.
+     */
+    private void download(Uri uri,
+                          DownloadCallback callback,
+                          long queued) {
+        DownloadStats.Trace trace = DownloadStats.begin();
+        trace.add(DownloadStats.QUEUE_WAIT, System.nanoTime() - queued);
+        try {
+            callback.sendPath(DownloadUtils.downloadFile(getApplicationContext(), uri));
+        } catch (RemoteException e) {
+            // The caller has gone away, so there's no one to tell.
+            Log.d(TAG, "couldn't reply to the download of " + uri + ": " + e);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    /**
+     * Hook method called when the Service is created, which starts
+     * the download threads.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mExecutor = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable,
+                                      TAG + "-" + mCount.incrementAndGet());
+                }
+            });
+    }
+
+    /**
+     * Hook method called when the Service is destroyed.  No client
+     * is bound any more, so there's no one to reply to: running
+     * downloads are interrupted and queued ones are dropped.
+     */
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdownNow();
+        super.onDestroy();
+    }
 	
     /**
      * Called when a component calls bindService() with the proper
@@ -63,6 +160,17 @@ public class DownloadBoundServiceAsync extends Service{
         return mDownloadRequestImpl;
     }
 
+    /**
+     * Hook method called by "adb shell dumpsys", which prints the
+     * DownloadStats of this process.
+     */
+    @Override
+    protected void dump(FileDescriptor fd,
+                        PrintWriter writer,
+                        String[] args) {
+        DownloadStats.instance().dump(writer);
+    }
+
     /**
      * Make an Intent that will start this service when passed to
      * bindService().
@@ -1,6 +1,9 @@
 
 package edu.vuum.mocca;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
@@ -23,6 +26,10 @@ import android.os.RemoteException;
  *        DownloadCall object, which will run synchronously in this
  *        service until it finishes downloading and returns the file
  *        name of the downloaded file as a String.
+ *
+ *        The phases of each download are recorded in the
+ *        DownloadStats of the Service's process, which "adb shell
+ *        dumpsys activity service DownloadBoundServiceSync" prints.
  *  
  *        AIDL is an example of the Broker Pattern, in which all
  *        interprocess communication details are hidden behind the
@@ -47,7 +54,12 @@ public class DownloadBoundServiceSync extends Service {
              */
             @Override
             public String downloadImage(Uri uri) throws RemoteException {
-                return DownloadUtils.downloadFile(getApplication().getApplicationContext(), uri);
+                DownloadStats.Trace trace = DownloadStats.begin();
+                try {
+                    return DownloadUtils.downloadFile(getApplication().getApplicationContext(), uri);
+                } finally {
+                    trace.finish();
+                }
             }
 	};
 	
@@ -60,6 +72,17 @@ public class DownloadBoundServiceSync extends Service {
 	public IBinder onBind(Intent intent) {
         return mDownloadCallImpl;
     }
+
+    /**
+     * Hook method called by "adb shell dumpsys", which prints the
+     * DownloadStats of this process.
+     */
+    @Override
+    protected void dump(FileDescriptor fd,
+                        PrintWriter writer,
+                        String[] args) {
+        DownloadStats.instance().dump(writer);
+    }
 	
     /**
      * Make an Intent that will start this service when passed to
@@ -0,0 +1,1071 @@
+package edu.vuum.mocca;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * @class DownloadCache
+ *
+ * @brief Keeps downloaded files in a directory on the Android file
+ *        system so that downloading the same URL again reuses the
+ *        bytes that are already on disk.  The cache holds at most a
+ *        configurable number of bytes and evicts the least recently
+ *        used files first.
+ *
+ *        An entry is returned without touching the network until it
+ *        expires according to the server's Cache-Control max-age or
+ *        Expires header.  After that it's revalidated with a
+ *        conditional GET that sends the ETag and Last-Modified values
+ *        the server returned, so an unchanged file costs a 304
+ *        response rather than a new transfer.
+ *
+ *        The first request for a file asks for just its first
+ *        segment.  If the server supports ranges and the file is
+ *        bigger than that, a RangedDownload fetches the rest over
+ *        several connections at once.  Every connection comes from a
+ *        PooledHttpClient, which limits the connections to each host
+ *        and keeps them alive between downloads.
+ *
+ *        getContents() returns a file no bigger than the caller says
+ *        as bytes in memory, straight from the network, and writes it
+ *        to the cache on a background thread afterwards, so a small
+ *        image can be decoded without a round trip through the disk.
+ *
+ *        Thumbnails of an image, made by a ThumbnailMaker, are kept
+ *        next to its file and count towards the cache's size.  They
+ *        are evicted along with the file, and dropped when the file
+ *        is downloaded again.
+ *
+ *        A response whose Cache-Control says no-store isn't cached
+ *        at all.  Its file is kept out of the index, so it's never
+ *        returned again, and only the latest such file for each URL
+ *        is kept, for the caller to use.
+ *
+ *        The index of entries is rewritten in the cache directory
+ *        after each change, so it survives process restarts.  The
+ *        Services that use the cache run in separate processes, so
+ *        each operation holds a lock on the index file and rereads
+ *        it first.  Downloads themselves run without the lock.  A
+ *        cache hit only changes the order of the entries, which is
+ *        kept in memory and written with the next change rather than
+ *        rewriting the index on every hit.
+ */
+public class DownloadCache {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "DownloadCache";
+
+    /**
+     * Default maximum number of bytes of files the cache holds.
+     */
+    static final long DEFAULT_MAX_BYTES = 20 * 1024 * 1024;
+
+    /**
+     * Name of the cache directory within the application's cache
+     * directory.
+     */
+    static final String CACHE_DIRECTORY = "downloads";
+
+    /**
+     * Names of the index file, the file it's written to before it's
+     * renamed into place, and the file that's locked while the index
+     * is in use.
+     */
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    private static final String LOCK_FILE = "index.lock";
+
+    /**
+     * Format of the index file, which is bumped when the format
+     * changes so an old index is discarded rather than misread.
+     */
+    private static final int INDEX_VERSION = 2;
+
+    /**
+     * What a thumbnail's file name adds to the name of its image's
+     * file, before the size of the thumbnail.
+     */
+    private static final String THUMBNAIL_INFIX = ".thumb";
+
+    /**
+     * What the file of a no-store response adds to the name the file
+     * would be cached under.
+     */
+    private static final String UNCACHED_SUFFIX = ".uncached";
+
+    /**
+     * Default maximum number of connections a file is downloaded
+     * over, and the fewest bytes each of them fetches.
+     */
+    static final int DEFAULT_MAX_SEGMENTS = 4;
+    static final long DEFAULT_MIN_SEGMENT_BYTES = 256 * 1024;
+
+    /**
+     * The cache shared by everything in this process.
+     */
+    private static DownloadCache mInstance;
+
+    /**
+     * Writes the files getContents() returned in memory to the
+     * cache, one at a time at background priority.
+     */
+    private static final ExecutorService mWriteExecutor =
+        Executors.newSingleThreadExecutor(
+            DownloadUtils.makeThreadFactory(TAG + "-writer",
+                                            Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * @class Contents
+     *
+     * @brief The contents of a URL returned by getContents(): the
+     *        cached file and, for a file that was small enough to be
+     *        downloaded into memory, its bytes.
+     */
+    public static class Contents {
+        /**
+         * The bytes of the file, or null if they're only on disk.
+         */
+        private final byte[] mBytes;
+
+        /**
+         * The cached file, once it's been written.
+         */
+        private final Future<File> mFile;
+
+        /**
+         * Length of the file in bytes.
+         */
+        private final long mLength;
+
+        /**
+         * Time until which the file is fresh, if it was downloaded
+         * into memory, or 0.
+         */
+        private final long mExpires;
+
+        Contents(byte[] bytes, Future<File> file, long length, long expires) {
+            mBytes = bytes;
+            mFile = file;
+            mLength = length;
+            mExpires = expires;
+        }
+
+        /**
+         * Returns the contents of @a file, which is already on disk.
+         */
+        static Contents onDisk(final File file) {
+            FutureTask<File> written = new FutureTask<File>(new Callable<File>() {
+                    @Override
+                    public File call() {
+                        return file;
+                    }
+                });
+            written.run();
+            return new Contents(null, written, file.length(), 0);
+        }
+
+        /**
+         * Returns the time until which the file is fresh if its bytes
+         * were downloaded into memory, since its index entry may not
+         * have been written yet, or 0 for a file that's only on disk,
+         * whose expiry() can be read from the cache.
+         */
+        public long expires() {
+            return mExpires;
+        }
+
+        /**
+         * Returns the bytes of the file, or null if they weren't
+         * downloaded into memory.
+         */
+        public byte[] bytes() {
+            return mBytes;
+        }
+
+        /**
+         * Returns the length of the file in bytes.
+         */
+        public long length() {
+            return mLength;
+        }
+
+        /**
+         * Returns the cached file, waiting for it to be written if
+         * the bytes were downloaded into memory.
+         */
+        public File file() throws IOException {
+            try {
+                return mFile.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for a cache write");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException(cause.toString());
+            }
+        }
+    }
+
+    /**
+     * @class Entry
+     *
+     * @brief What the cache knows about one downloaded file.
+     */
+    static class Entry {
+        /** The URL the file was downloaded from. */
+        final String mUrl;
+
+        /** Name of the file within the cache directory. */
+        final String mFileName;
+
+        /** Length of the file in bytes. */
+        long mLength;
+
+        /** The server's ETag for the file, or null if it sent none. */
+        String mETag;
+
+        /** The server's Last-Modified time, or 0 if it sent none. */
+        long mLastModified;
+
+        /** Time until which the file is fresh, or 0 if it isn't. */
+        long mExpires;
+
+        /** Length of the file's thumbnails in bytes. */
+        long mThumbnailLength;
+
+        Entry(String url, String fileName) {
+            mUrl = url;
+            mFileName = fileName;
+        }
+    }
+
+    /**
+     * Directory holding the files and the index.
+     */
+    private final File mDirectory;
+
+    /**
+     * Maximum number of bytes of files the cache holds.
+     */
+    private long mMaxBytes;
+
+    /**
+     * Maximum number of connections a file is downloaded over, and
+     * the fewest bytes each of them fetches.
+     */
+    private volatile int mMaxSegments = DEFAULT_MAX_SEGMENTS;
+    private volatile long mMinSegmentBytes = DEFAULT_MIN_SEGMENT_BYTES;
+
+    /**
+     * Opens the connections the files are downloaded over.
+     */
+    private volatile PooledHttpClient mClient = PooledHttpClient.instance();
+
+    /**
+     * The entries, in least- to most-recently used order.  Reread
+     * from the index at the start of each operation.
+     */
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * URLs this process has used since the index was last written,
+     * least recently used first.  They're moved to the end of
+     * mEntries each time it's reread, and written with the next
+     * change to the index.
+     */
+    private final LinkedHashSet<String> mUsed = new LinkedHashSet<String>();
+
+    /**
+     * The file that's locked while the index is in use.
+     */
+    private final RandomAccessFile mLockFile;
+
+    /**
+     * Returns the cache shared by everything in this process, which
+     * lives in the application's cache directory.
+     */
+    public static synchronized DownloadCache instance(Context context) {
+        if (mInstance == null)
+            try {
+                mInstance =
+                    new DownloadCache(new File(context.getCacheDir(),
+                                               CACHE_DIRECTORY),
+                                      DEFAULT_MAX_BYTES);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't open the download cache", e);
+            }
+
+        return mInstance;
+    }
+
+    /**
+     * Constructor opens the cache in the given directory, which is
+     * created if it doesn't exist.
+     */
+    public DownloadCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mLockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+    }
+
+    /**
+     * Change the maximum number of bytes of files the cache holds,
+     * evicting entries if it now holds too many.
+     */
+    public synchronized void setMaxBytes(long maxBytes) throws IOException {
+        mMaxBytes = maxBytes;
+
+        FileLock lock = openIndex();
+        try {
+            if (evict(null))
+                writeIndex();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Download files over at most @a maxSegments connections, each
+     * fetching at least @a minSegmentBytes bytes.  A @a maxSegments
+     * of 1 downloads each file over a single connection.
+     */
+    public void setSegments(int maxSegments, long minSegmentBytes) {
+        if (maxSegments <= 0 || minSegmentBytes <= 0)
+            throw new IllegalArgumentException("invalid segment limits");
+
+        mMaxSegments = maxSegments;
+        mMinSegmentBytes = minSegmentBytes;
+    }
+
+    /**
+     * Download files over connections opened by @a client rather than
+     * the one shared by the process.
+     */
+    public void setHttpClient(PooledHttpClient client) {
+        mClient = client;
+    }
+
+    /**
+     * Returns the number of bytes of files in the cache.
+     */
+    public synchronized long size() throws IOException {
+        FileLock lock = openIndex();
+        try {
+            return totalLength();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Returns the file holding the contents of the URL.  It's
+     * returned as is while it's fresh, revalidated with the server
+     * once it's stale, and downloaded if it isn't cached.
+     */
+    public File get(String url) throws IOException {
+        return get(url, null);
+    }
+
+    /**
+     * Returns the file holding the contents of the URL, as get(url)
+     * does, reporting the transfer to @a progress, which may be null.
+     * Throws DownloadProgress.CancelledException if the download is
+     * cancelled, in which case nothing is cached.
+     */
+    public File get(String url,
+                    DownloadProgress progress) throws IOException {
+        return getContents(url, 0, progress).file();
+    }
+
+    /**
+     * Returns the contents of the URL, as get(url, progress) does,
+     * except that a file of at most @a maxBytesInMemory bytes that
+     * has to be transferred is returned as bytes in memory and
+     * written to the cache in the background.
+     */
+    public Contents getContents(String url,
+                                int maxBytesInMemory,
+                                DownloadProgress progress) throws IOException {
+        Entry entry = lookup(url);
+
+        if (entry != null && System.currentTimeMillis() < entry.mExpires)
+            return Contents.onDisk(new File(mDirectory, entry.mFileName));
+
+        Contents contents = download(url, entry, maxBytesInMemory, progress);
+        if (contents == null)
+            // The entry was evicted while it was being revalidated,
+            // so download the file again.
+            contents = download(url, null, maxBytesInMemory, progress);
+        return contents;
+    }
+
+    /**
+     * Returns the file holding the contents of the URL if it's in the
+     * cache, without touching the network, or null if it isn't.
+     */
+    public File peek(String url) throws IOException {
+        Entry entry = lookup(url);
+        return entry == null ? null : new File(mDirectory, entry.mFileName);
+    }
+
+    /**
+     * Returns the time until which the URL's cached file is fresh, or
+     * 0 if it isn't cached or has to be revalidated, without marking
+     * it as used or touching the network.
+     */
+    public synchronized long expiry(String url) throws IOException {
+        FileLock lock = openIndex();
+        try {
+            Entry entry = mEntries.get(url);
+            return entry == null ? 0 : entry.mExpires;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Returns the thumbnail of the URL's image that fits in @a size
+     * by @a size pixels, or null if it hasn't been made.  Its image
+     * is marked as the most recently used, as for get().
+     */
+    public File getThumbnail(String url,
+                             int size) throws IOException {
+        Entry entry = lookup(url);
+        if (entry == null)
+            return null;
+
+        File thumbnail = new File(mDirectory, thumbnailName(entry, size));
+        return thumbnail.exists() ? thumbnail : null;
+    }
+
+    /**
+     * Store @a encoded as the thumbnail of the URL's image that fits
+     * in @a size by @a size pixels, if the image is still cached,
+     * replacing any thumbnail of that size it already has.  Returns
+     * the thumbnail, or null if the image has been evicted.
+     */
+    public File putThumbnail(String url,
+                             int size,
+                             byte[] encoded) throws IOException {
+        File temp = File.createTempFile("thumbnail", ".tmp", mDirectory);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(encoded);
+            } finally {
+                out.close();
+            }
+            return storeThumbnail(url, size, temp);
+        } finally {
+            // Only left behind if the image was evicted.
+            temp.delete();
+        }
+    }
+
+    /**
+     * Download the URL into the cache, or into memory if it's at most
+     * @a maxBytesInMemory bytes.  If @a entry is non-null the request
+     * is made conditional on the file having changed since it was
+     * cached.  Returns the contents, or null if the server said the
+     * file hadn't changed but the entry has since been evicted.
+     */
+    private Contents download(String url,
+                              Entry entry,
+                              int maxBytesInMemory,
+                              DownloadProgress progress) throws IOException {
+        return download(url, entry, maxBytesInMemory, progress, mMaxSegments);
+    }
+
+    /**
+     * Download the URL as download(url, entry, maxBytesInMemory,
+     * progress) does, over at most @a maxSegments connections.
+     */
+    private Contents download(String url,
+                              Entry entry,
+                              int maxBytesInMemory,
+                              DownloadProgress progress,
+                              int maxSegments) throws IOException {
+        final long minSegmentBytes = mMinSegmentBytes;
+        final PooledHttpClient client = mClient;
+
+        // Ask for the first segment, which also tells us the size
+        // of the file if the server supports ranges.  The request
+        // accepts gzip, so a server that compresses the file can
+        // send all of it compressed instead, and only the rest of
+        // the segments ask for the identity encoding.
+        PooledHttpClient.Connection connection =
+            client.open(url, false);
+        boolean reuse = false;
+        try {
+            HttpURLConnection http = connection.connection();
+
+            if (entry != null) {
+                if (entry.mETag != null)
+                    http.setRequestProperty("If-None-Match",
+                                            entry.mETag);
+                if (entry.mLastModified != 0)
+                    http.setIfModifiedSince(entry.mLastModified);
+            }
+
+            if (maxSegments > 1)
+                http.setRequestProperty("Range",
+                                        "bytes=0-" + (minSegmentBytes - 1));
+
+            // Connect separately, so the handshake and the wait for
+            // the response are timed as phases of their own.
+            final long connecting = System.nanoTime();
+            http.connect();
+            final long connected = System.nanoTime();
+            int status = http.getResponseCode();
+            DownloadStats.add(DownloadStats.CONNECT, connected - connecting);
+            DownloadStats.add(DownloadStats.FIRST_BYTE, System.nanoTime() - connected);
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED
+                && entry != null) {
+                Log.d(TAG, "    not modified: " + url);
+                reuse = true;
+                File file = revalidated(url, expires(http));
+                return file == null ? null : Contents.onDisk(file);
+            }
+            boolean empty = RangedDownload.isEmpty(http);
+            if (status != HttpURLConnection.HTTP_OK
+                && status != HttpURLConnection.HTTP_PARTIAL
+                && !empty)
+                throw new IOException("HTTP " + status + " from " + url);
+
+            if (status == HttpURLConnection.HTTP_PARTIAL
+                && connection.isCompressed()) {
+                // The range is of the compressed file, so its offsets
+                // are no use to the other segments.  Ask for the
+                // whole file instead.
+                connection.close(true);
+                connection = null;
+                return download(url, entry, maxBytesInMemory, progress, 1);
+            }
+
+            String eTag = http.getHeaderField("ETag");
+            long lastModified = http.getLastModified();
+            long expires = expires(http);
+            boolean noStore = noStore(http);
+
+            if (empty) {
+                // The first segment of an empty file is past its end,
+                // so there's no body to read.
+                if (progress != null)
+                    progress.setTotal(0);
+                reuse = true;
+                File temp = File.createTempFile("download", ".tmp", mDirectory);
+                try {
+                    return Contents.onDisk(store(url,
+                                                 temp,
+                                                 eTag,
+                                                 lastModified,
+                                                 expires,
+                                                 noStore));
+                } finally {
+                    temp.delete();
+                }
+            }
+
+            // A small file skips the disk on its way to the caller.
+            long length = wholeLength(connection, status);
+            if (length >= 0 && length <= maxBytesInMemory) {
+                if (progress != null)
+                    progress.setTotal(length);
+
+                ByteArrayOutputStream out =
+                    new ByteArrayOutputStream((int) length);
+                DownloadUtils.copy(connection.getInputStream(),
+                                   out,
+                                   progress);
+                reuse = true;
+
+                byte[] bytes = out.toByteArray();
+                return new Contents(bytes,
+                                    storeLater(url,
+                                               bytes,
+                                               eTag,
+                                               lastModified,
+                                               expires,
+                                               noStore),
+                                    bytes.length,
+                                    expires);
+            }
+
+            // Download into a file of our own and rename it into
+            // place, so no other thread or process ever sees a
+            // partial file.
+            File temp = File.createTempFile("download", ".tmp", mDirectory);
+            try {
+                if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    // The RangedDownload closes the probe.
+                    PooledHttpClient.Connection probe = connection;
+                    connection = null;
+                    RangedDownload.download(client,
+                                            url,
+                                            probe,
+                                            temp,
+                                            maxSegments,
+                                            minSegmentBytes,
+                                            progress);
+                } else {
+                    if (progress != null)
+                        progress.setTotal(connection.getContentLength());
+
+                    OutputStream out = new FileOutputStream(temp);
+                    try {
+                        DownloadUtils.copy(connection.getInputStream(),
+                                           out,
+                                           progress);
+                    } finally {
+                        out.close();
+                    }
+                    reuse = true;
+                }
+
+                return Contents.onDisk(store(url,
+                                             temp,
+                                             eTag,
+                                             lastModified,
+                                             expires,
+                                             noStore));
+            } finally {
+                // Only left behind if the download failed.
+                temp.delete();
+            }
+        } finally {
+            if (connection != null)
+                connection.close(reuse);
+        }
+    }
+
+    /**
+     * Write @a bytes, downloaded from the URL, to the cache in the
+     * background.  Returns the cached file once it's been written.
+     */
+    private Future<File> storeLater(final String url,
+                                    final byte[] bytes,
+                                    final String eTag,
+                                    final long lastModified,
+                                    final long expires,
+                                    final boolean noStore) {
+        return mWriteExecutor.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    File temp = File.createTempFile("download", ".tmp", mDirectory);
+                    try {
+                        OutputStream out = new FileOutputStream(temp);
+                        try {
+                            out.write(bytes);
+                        } finally {
+                            out.close();
+                        }
+                        return store(url,
+                                     temp,
+                                     eTag,
+                                     lastModified,
+                                     expires,
+                                     noStore);
+                    } finally {
+                        temp.delete();
+                    }
+                }
+            });
+    }
+
+    /**
+     * Returns the length of the whole file if the response that
+     * @a connection received with @a status holds all of it, or -1 if
+     * it only holds part of it or its length isn't known.
+     */
+    private static long wholeLength(PooledHttpClient.Connection connection,
+                                    int status) {
+        if (status != HttpURLConnection.HTTP_PARTIAL)
+            return connection.getContentLength();
+
+        long[] range = RangedDownload.contentRange(connection.connection());
+        return range != null && range[0] == 0 && range[1] + 1 == range[2]
+            ? range[2]
+            : -1;
+    }
+
+    /**
+     * Returns the entry for the URL and marks it as the most recently
+     * used, or returns null if the URL isn't cached.  The index is
+     * only rewritten if the entry had to be dropped.
+     */
+    private synchronized Entry lookup(String url) throws IOException {
+        FileLock lock = openIndex();
+        try {
+            Entry entry = mEntries.get(url);
+            if (entry == null)
+                return null;
+
+            // The system may delete files from the cache directory
+            // when it's low on storage.
+            if (!new File(mDirectory, entry.mFileName).exists()) {
+                deleteThumbnails(entry);
+                mEntries.remove(url);
+                writeIndex();
+                return null;
+            }
+
+            mUsed.remove(url);
+            mUsed.add(url);
+            return entry;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Record that the server confirmed the cached file is current.
+     * Returns the file, or null if the entry has been evicted.
+     */
+    private synchronized File revalidated(String url,
+                                          long expires) throws IOException {
+        FileLock lock = openIndex();
+        try {
+            Entry entry = mEntries.get(url);
+            if (entry == null
+                || !new File(mDirectory, entry.mFileName).exists())
+                return null;
+
+            entry.mExpires = expires;
+            writeIndex();
+            return new File(mDirectory, entry.mFileName);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Move a freshly downloaded file into the cache and evict the
+     * least recently used entries if the cache is now too big.  The
+     * file of a @a noStore response is kept out of the index instead,
+     * and whatever was cached for the URL is dropped.
+     */
+    private synchronized File store(String url,
+                                    File temp,
+                                    String eTag,
+                                    long lastModified,
+                                    long expires,
+                                    boolean noStore) throws IOException {
+        FileLock lock = openIndex();
+        try {
+            if (noStore) {
+                File file = new File(mDirectory, fileName(url) + UNCACHED_SUFFIX);
+                if (!temp.renameTo(file))
+                    throw new IOException("Can't rename " + temp + " to " + file);
+
+                Entry previous = mEntries.remove(url);
+                if (previous != null) {
+                    new File(mDirectory, previous.mFileName).delete();
+                    deleteThumbnails(previous);
+                    writeIndex();
+                }
+                return file;
+            }
+
+            Entry entry = new Entry(url, fileName(url));
+            File file = new File(mDirectory, entry.mFileName);
+            if (!temp.renameTo(file))
+                throw new IOException("Can't rename " + temp + " to " + file);
+
+            entry.mLength = file.length();
+            entry.mETag = eTag;
+            entry.mLastModified = lastModified;
+            entry.mExpires = expires;
+
+            // Thumbnails of what the file used to hold are stale.
+            Entry previous = mEntries.put(url, entry);
+            if (previous != null)
+                deleteThumbnails(previous);
+
+            evict(url);
+            writeIndex();
+            return file;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Move a freshly made thumbnail into the cache next to the
+     * URL's image and evict the least recently used entries if the
+     * cache is now too big.
+     */
+    private synchronized File storeThumbnail(String url,
+                                             int size,
+                                             File temp) throws IOException {
+        FileLock lock = openIndex();
+        try {
+            Entry entry = mEntries.get(url);
+            if (entry == null
+                || !new File(mDirectory, entry.mFileName).exists())
+                return null;
+
+            File thumbnail = new File(mDirectory, thumbnailName(entry, size));
+            long replaced = thumbnail.length();
+            if (!temp.renameTo(thumbnail))
+                throw new IOException("Can't rename " + temp + " to " + thumbnail);
+
+            entry.mThumbnailLength += thumbnail.length() - replaced;
+
+            evict(url);
+            writeIndex();
+            return thumbnail;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Remove the least recently used entries, other than the one for
+     * @a keepUrl, until the cache fits in mMaxBytes.  Returns true if
+     * any entries were removed.
+     */
+    private boolean evict(String keepUrl) {
+        long total = totalLength();
+        boolean evicted = false;
+
+        for (Iterator<Entry> i = mEntries.values().iterator();
+             total > mMaxBytes && i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.mUrl.equals(keepUrl))
+                continue;
+
+            Log.d(TAG, "    evicting " + entry.mUrl);
+            new File(mDirectory, entry.mFileName).delete();
+            deleteThumbnails(entry);
+            total -= entry.mLength + entry.mThumbnailLength;
+            i.remove();
+            evicted = true;
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Returns the number of bytes of files in mEntries.
+     */
+    private long totalLength() {
+        long total = 0;
+        for (Entry entry : mEntries.values())
+            total += entry.mLength + entry.mThumbnailLength;
+        return total;
+    }
+
+    /**
+     * Delete the thumbnails of @a entry's file, whatever their sizes.
+     */
+    private void deleteThumbnails(Entry entry) {
+        if (entry.mThumbnailLength == 0)
+            return;
+
+        final String prefix = entry.mFileName + THUMBNAIL_INFIX;
+        for (File file : mDirectory.listFiles())
+            if (file.getName().startsWith(prefix))
+                file.delete();
+        entry.mThumbnailLength = 0;
+    }
+
+    /**
+     * Lock the index against other processes and reread it into
+     * mEntries, then mark the entries this process has used since it
+     * was last written as the most recently used.  The caller must
+     * release the lock.
+     */
+    private FileLock openIndex() throws IOException {
+        FileChannel channel = mLockFile.getChannel();
+        FileLock lock = channel.lock();
+        try {
+            readIndex();
+            for (String url : mUsed)
+                mEntries.get(url);
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Read the index file into mEntries.  A missing, truncated, or
+     * outdated index just leaves the cache empty.
+     */
+    private void readIndex() throws IOException {
+        mEntries.clear();
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream
+                (new BufferedInputStream
+                 (new FileInputStream(new File(mDirectory, INDEX_FILE))));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+
+        try {
+            if (in.readInt() != INDEX_VERSION)
+                return;
+
+            for (int count = in.readInt(); count > 0; --count) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF());
+                entry.mLength = in.readLong();
+                String eTag = in.readUTF();
+                entry.mETag = eTag.length() == 0 ? null : eTag;
+                entry.mLastModified = in.readLong();
+                entry.mExpires = in.readLong();
+                entry.mThumbnailLength = in.readLong();
+                mEntries.put(entry.mUrl, entry);
+            }
+        } catch (EOFException e) {
+            Log.e(TAG, "Truncated index, discarding the cache");
+            mEntries.clear();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write mEntries to the index file, least recently used first so
+     * reading it back restores the order.  The index is written to a
+     * temporary file that's renamed into place, so a crash never
+     * leaves a partial index.
+     */
+    private void writeIndex() throws IOException {
+        File temp = new File(mDirectory, INDEX_TEMP_FILE);
+        DataOutputStream out =
+            new DataOutputStream
+            (new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(entry.mUrl);
+                out.writeUTF(entry.mFileName);
+                out.writeLong(entry.mLength);
+                out.writeUTF(entry.mETag == null ? "" : entry.mETag);
+                out.writeLong(entry.mLastModified);
+                out.writeLong(entry.mExpires);
+                out.writeLong(entry.mThumbnailLength);
+            }
+        } finally {
+            out.close();
+        }
+
+        File index = new File(mDirectory, INDEX_FILE);
+        if (!temp.renameTo(index))
+            throw new IOException("Can't rename " + temp + " to " + index);
+        mUsed.clear();
+    }
+
+    /**
+     * Returns the time until which a response is fresh, based on its
+     * Cache-Control and Expires headers, or 0 if it must be
+     * revalidated before it's used again.
+     */
+    static long expires(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        long maxAge = -1;
+
+        if (cacheControl != null)
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache")
+                    || directive.equals("no-store"))
+                    return 0;
+                else if (directive.startsWith("max-age="))
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8));
+                    } catch (NumberFormatException e) {
+                    }
+            }
+
+        if (maxAge >= 0)
+            return System.currentTimeMillis() + maxAge * 1000;
+        else
+            return connection.getExpiration();
+    }
+
+    /**
+     * Returns true if a response's Cache-Control header says it
+     * mustn't be cached at all.
+     */
+    static boolean noStore(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+
+        if (cacheControl != null)
+            for (String directive : cacheControl.split(","))
+                if (directive.trim().equalsIgnoreCase("no-store"))
+                    return true;
+        return false;
+    }
+
+    /**
+     * Returns the name of the thumbnail of @a entry's file that fits
+     * in @a size by @a size pixels.
+     */
+    private static String thumbnailName(Entry entry, int size) {
+        return entry.mFileName + THUMBNAIL_INFIX + size;
+    }
+
+    /**
+     * Returns the name of the file that caches the URL, which is a
+     * hash of the URL so it's always a valid file name.
+     */
+    static String fileName(String url) {
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1")
+                     .digest(url.getBytes("UTF-8")))
+                name.append(String.format("%02x", b));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
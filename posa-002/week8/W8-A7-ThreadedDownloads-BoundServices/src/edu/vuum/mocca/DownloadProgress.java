@@ -0,0 +1,159 @@
+package edu.vuum.mocca;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class DownloadProgress
+ *
+ * @brief Tracks how much of a download is done and lets it be
+ *        cancelled.  The copy loops call add() after every write,
+ *        which throws CancelledException once cancel() has been
+ *        called, so a cancelled download stops within one buffer.
+ *
+ *        Progress is reported to onProgress() at most once per
+ *        interval, however many threads are writing the file, so a
+ *        fast download never floods whoever is listening.  The
+ *        report for the last byte is always sent, and a report that
+ *        loses a race to a later one is dropped rather than sent
+ *        after it.
+ */
+public abstract class DownloadProgress {
+    /**
+     * @class CancelledException
+     *
+     * @brief Thrown by the copy loops once the download has been
+     *        cancelled.
+     */
+    public static class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException() {
+            super("Download cancelled");
+        }
+    }
+
+    /**
+     * Fewest nanoseconds between reports.
+     */
+    private volatile long mIntervalNanos;
+
+    /**
+     * When the download started, for computing its rate.
+     */
+    private final long mStartNanos = System.nanoTime();
+
+    /**
+     * Bytes written so far.
+     */
+    private final AtomicLong mBytesDone = new AtomicLong();
+
+    /**
+     * Size of the file, or -1 if it isn't known.
+     */
+    private volatile long mBytesTotal = -1;
+
+    /**
+     * Earliest time the next report may be sent.
+     */
+    private final AtomicLong mNextReportNanos = new AtomicLong(mStartNanos);
+
+    /**
+     * Bytes done at the last report, guarded by this.
+     */
+    private long mBytesReported = -1;
+
+    /**
+     * True once the download has been cancelled.
+     */
+    private volatile boolean mCancelled;
+
+    /**
+     * Constructor sets the fewest milliseconds between reports.
+     */
+    protected DownloadProgress(long intervalMs) {
+        mIntervalNanos = intervalMs * 1000000L;
+    }
+
+    /**
+     * Hook method called with the bytes done, the size of the file
+     * (or -1 if it isn't known), and the average rate so far in
+     * bytes per second.  Called from whichever thread wrote the
+     * bytes, but never from two threads at once.
+     */
+    protected abstract void onProgress(long bytesDone,
+                                       long bytesTotal,
+                                       long bytesPerSecond);
+
+    /**
+     * Set the fewest milliseconds between reports.  A shorter
+     * interval takes effect at once rather than after the next
+     * report.
+     */
+    public void setInterval(long intervalMs) {
+        mIntervalNanos = intervalMs * 1000000L;
+
+        final long due = System.nanoTime() + mIntervalNanos;
+        for (long next; due - (next = mNextReportNanos.get()) < 0; )
+            if (mNextReportNanos.compareAndSet(next, due))
+                break;
+    }
+
+    /**
+     * Record the size of the file once the response says what it is.
+     */
+    public void setTotal(long bytesTotal) {
+        mBytesTotal = bytesTotal;
+    }
+
+    /**
+     * Record that @a bytes more bytes were written, and report them
+     * if the interval has passed.  Throws CancelledException if the
+     * download has been cancelled.
+     */
+    public void add(long bytes) throws CancelledException {
+        if (mCancelled)
+            throw new CancelledException();
+
+        final long done = mBytesDone.addAndGet(bytes);
+        final long now = System.nanoTime();
+        final long next = mNextReportNanos.get();
+
+        // The last byte is always reported.  Otherwise only the
+        // thread that advances the deadline reports.
+        if (done == mBytesTotal) {
+            mNextReportNanos.set(now + mIntervalNanos);
+            report(done, now);
+        } else if (now - next >= 0
+                   && mNextReportNanos.compareAndSet(next, now + mIntervalNanos))
+            report(done, now);
+    }
+
+    /**
+     * Report @a done bytes at @a now unless a later report has
+     * already been sent.
+     */
+    private synchronized void report(long done,
+                                     long now) {
+        if (done <= mBytesReported)
+            return;
+        mBytesReported = done;
+
+        final long elapsed = Math.max(1, now - mStartNanos);
+        onProgress(done, mBytesTotal, (long) (done * 1e9 / elapsed));
+    }
+
+    /**
+     * Stop the download the next time it writes.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Returns true if the download has been cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+}
@@ -0,0 +1,275 @@
+package edu.vuum.mocca;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+/**
+ * @class DownloadStats
+ *
+ * @brief Records how long each phase of a download takes, so a slow
+ *        download can be pinned on the queue, the network, the disk,
+ *        or the decoder.  Each phase keeps a count of the samples
+ *        recorded and a window of the most recent ones, from which
+ *        dump() computes the mean and the 95th and 99th percentiles.
+ *
+ *        The phases of one request are gathered in a Trace.  A
+ *        service begins one on the thread that handles the request,
+ *        the download code adds the phases it measures to the current
+ *        Trace of its thread, and finish() records them all.  Decode
+ *        and UI post times are measured in the Activity's process and
+ *        recorded there directly.  Each process keeps its own stats,
+ *        which "adb shell dumpsys activity service <Service>" prints
+ *        for a Service.
+ *
+ *        Recording a sample costs a couple of clock reads and an
+ *        uncontended lock, so the stats can stay on in production.
+ */
+public class DownloadStats {
+    /**
+     * Used for debugging.
+     */
+    static final String TAG = "DownloadStats";
+
+    /**
+     * The phases of a download.
+     */
+    public static final int QUEUE_WAIT = 0;
+    public static final int CONNECT = 1;
+    public static final int FIRST_BYTE = 2;
+    public static final int TRANSFER = 3;
+    public static final int WRITE = 4;
+    public static final int DECODE = 5;
+    public static final int UI_POST = 6;
+
+    /**
+     * Number of phases, and the name each is dumped under.
+     */
+    static final int PHASES = 7;
+    static final String[] PHASE_NAMES = {
+        "queue wait", "connect", "first byte", "transfer", "write", "decode", "UI post"
+    };
+
+    /**
+     * Number of recent samples of each phase the mean and percentiles
+     * are computed from.
+     */
+    static final int WINDOW_SIZE = 512;
+
+    /**
+     * The stats of this process.
+     */
+    private static final DownloadStats mInstance = new DownloadStats();
+
+    /**
+     * The Trace of the request each thread is handling, if any.
+     */
+    private static final ThreadLocal<Trace> mCurrent = new ThreadLocal<Trace>();
+
+    /**
+     * @class Trace
+     *
+     * @brief The phase times of one request.  Phases measured more
+     *        than once, e.g., each time a RangedDownload's segments
+     *        start writing again, are summed.
+     */
+    public static class Trace {
+        /**
+         * Nanoseconds spent in each phase.
+         */
+        private final AtomicLongArray mNanos = new AtomicLongArray(PHASES);
+
+        /**
+         * Bit i is set once phase i has been measured.
+         */
+        private final AtomicInteger mMeasured = new AtomicInteger();
+
+        /**
+         * The stats the phases are recorded in.
+         */
+        private final DownloadStats mStats;
+
+        Trace(DownloadStats stats) {
+            mStats = stats;
+        }
+
+        /**
+         * Add @a nanos nanoseconds to @a phase.  May be called from
+         * any thread.
+         */
+        public void add(int phase, long nanos) {
+            mNanos.addAndGet(phase, nanos);
+            for (int measured;
+                 ((measured = mMeasured.get()) & (1 << phase)) == 0
+                     && !mMeasured.compareAndSet(measured, measured | (1 << phase)); )
+                continue;
+        }
+
+        /**
+         * Record the phases that were measured and stop being the
+         * current Trace of the calling thread.
+         */
+        public void finish() {
+            if (mCurrent.get() == this)
+                mCurrent.remove();
+
+            final int measured = mMeasured.get();
+            for (int phase = 0; phase < PHASES; ++phase)
+                if ((measured & (1 << phase)) != 0)
+                    mStats.record(phase, mNanos.get(phase));
+        }
+    }
+
+    /**
+     * The most recent samples of each phase, in a ring.
+     */
+    private final long[][] mSamples = new long[PHASES][WINDOW_SIZE];
+
+    /**
+     * Number of samples of each phase ever recorded.
+     */
+    private final long[] mCounts = new long[PHASES];
+
+    /**
+     * Returns the stats of this process.
+     */
+    public static DownloadStats instance() {
+        return mInstance;
+    }
+
+    /**
+     * Begin the Trace of a request handled by the calling thread,
+     * recorded in the stats of this process.
+     */
+    public static Trace begin() {
+        Trace trace = new Trace(mInstance);
+        mCurrent.set(trace);
+        return trace;
+    }
+
+    /**
+     * Returns the Trace of the request the calling thread is
+     * handling, or null if there isn't one.
+     */
+    public static Trace current() {
+        return mCurrent.get();
+    }
+
+    /**
+     * Add @a nanos nanoseconds to @a phase of the calling thread's
+     * current Trace, if it has one.
+     */
+    public static void add(int phase, long nanos) {
+        Trace trace = mCurrent.get();
+        if (trace != null)
+            trace.add(phase, nanos);
+    }
+
+    /**
+     * Record one sample of @a nanos nanoseconds for @a phase.
+     */
+    public void record(int phase, long nanos) {
+        synchronized (mSamples[phase]) {
+            mSamples[phase][(int) (mCounts[phase]++ % WINDOW_SIZE)] = nanos;
+        }
+    }
+
+    /**
+     * Returns the number of samples of @a phase ever recorded.
+     */
+    public long count(int phase) {
+        synchronized (mSamples[phase]) {
+            return mCounts[phase];
+        }
+    }
+
+    /**
+     * Returns the mean of the recent samples of @a phase in
+     * milliseconds, or 0 if there are none.
+     */
+    public double meanMs(int phase) {
+        long[] samples = window(phase);
+        if (samples.length == 0)
+            return 0;
+
+        long sum = 0;
+        for (long sample : samples)
+            sum += sample;
+        return sum / 1e6 / samples.length;
+    }
+
+    /**
+     * Returns the time in milliseconds that @a percent percent of the
+     * recent samples of @a phase took no longer than, or 0 if there
+     * are none.
+     */
+    public double percentileMs(int phase, double percent) {
+        long[] samples = window(phase);
+        if (samples.length == 0)
+            return 0;
+
+        Arrays.sort(samples);
+        int rank = (int) Math.ceil(percent / 100 * samples.length);
+        return samples[Math.max(0, Math.min(samples.length, rank) - 1)] / 1e6;
+    }
+
+    /**
+     * Print a line for each phase that has samples to @a writer.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("phase: count, mean, p95, p99 (ms) of the last "
+                       + WINDOW_SIZE);
+        for (int phase = 0; phase < PHASES; ++phase) {
+            long count = count(phase);
+            if (count > 0)
+                writer.println(String.format(Locale.US,
+                                             "%s: %d, %.1f, %.1f, %.1f",
+                                             PHASE_NAMES[phase],
+                                             count,
+                                             meanMs(phase),
+                                             percentileMs(phase, 95),
+                                             percentileMs(phase, 99)));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write the stats to logcat.
+     */
+    public void dumpToLog() {
+        StringWriter lines = new StringWriter();
+        dump(new PrintWriter(lines));
+        for (String line : lines.toString().split("\n"))
+            Log.i(TAG, line);
+    }
+
+    /**
+     * Write the stats to @a file, replacing what it held.
+     */
+    public void dumpToFile(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns a copy of the recent samples of @a phase.
+     */
+    private long[] window(int phase) {
+        synchronized (mSamples[phase]) {
+            return Arrays.copyOf(mSamples[phase],
+                                 (int) Math.min(mCounts[phase], WINDOW_SIZE));
+        }
+    }
+}
@@ -1,17 +1,23 @@
 package edu.vuum.mocca;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.vuum.mocca.R;
 
 import android.content.Context;
 import android.net.Uri;
-import android.util.Base64;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -49,9 +55,9 @@ public class DownloadUtils {
     static final String OFFLINE_FILENAME = "dougs.jpg";
     
     /**
-     * Download the file located at the provided internet url using
-     * the URL class, store it on the android file system using
-     * openFileOutput(), and return the path to the file on disk.
+     * Download the file located at the provided internet url into
+     * the DownloadCache, which reuses a previous download if the file
+     * hasn't changed, and return the path to the file on disk.
      *
      * @param context	the context in which to write the file
      * @param uri       the web url
@@ -85,27 +91,15 @@ public class DownloadUtils {
                 return context.getFilesDir().toString() + File.separator + OFFLINE_FILENAME;
             }
     	
-            // Otherwise, go ahead and download the file
+            // Otherwise, get the file from the download cache,
+            // which only transfers it if it isn't cached or has
+            // changed on the server.
             else {
-                // Create a temp file.
-                final File file = getTemporaryFile(context,
-                                                   uri.toString());
-                Log.d(TAG, "    downloading to " + file);
+                final File file =
+                    DownloadCache.instance(context).get(uri.toString());
+                Log.d(TAG, "    downloaded to " + file);
 	
-                // Download the contents at the URL, which should
-                // reference an image.
-                final InputStream in = (InputStream)
-                    new URL(uri.toString()).getContent();
-                final OutputStream os =
-                    new FileOutputStream(file);
-	
-                // Copy the contents of the downloaded image to the
-                // temp file.
-                copy(in, os);
-                in.close();
-                os.close();
-	
-                // Return the pathname of the temp file.
+                // Return the pathname of the cached file.
                 return file.getAbsolutePath();
             }
         } catch (Exception e) {
@@ -117,48 +111,237 @@ public class DownloadUtils {
     }
         
     /**
-     * Create a temp file to store the result of a download.
+     * Default size of the buffer copy() uses when it can't transfer
+     * the data directly from one file to another.
+     */
+    static final int DEFAULT_COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size of the buffer copy() uses, which can be changed by calling
+     * setCopyBufferSize().
+     */
+    private static volatile int mCopyBufferSize = DEFAULT_COPY_BUFFER_SIZE;
+
+    /**
+     * Direct buffer reused by each thread that calls copy(), so a
+     * pool thread doesn't allocate native memory for every download.
+     */
+    private static final ThreadLocal<ByteBuffer> mDirectBuffer =
+        new ThreadLocal<ByteBuffer>();
+
+    /**
+     * Set the size of the buffer copy() uses.
+     */
+    public static void setCopyBufferSize(int copyBufferSize) {
+        if (copyBufferSize <= 0)
+            throw new IllegalArgumentException("copyBufferSize must be positive");
+
+        mCopyBufferSize = copyBufferSize;
+    }
+
+    /**
+     * Copy the contents of an InputStream into an OutputStream using
+     * the buffer size set by setCopyBufferSize().
      * 
-     * @param context
-     * @param url
+     * @param in
+     * @param out
      * @return
      * @throws IOException
      */
-    static private File getTemporaryFile(final Context context,
-                                         final String url) throws IOException {
-        
-        // This is what you'd normally call to get a unique temporary
-        // file, but for testing purposes we always name the file the
-        // same to avoid filling up student phones with numerous
-        // files!
-        // return context.getFileStreamPath(Base64.encodeToString(url.getBytes(),
-        //                                  Base64.NO_WRAP)
-        //                                  + System.currentTimeMillis());
-
-        return context.getFileStreamPath(Base64.encodeToString(url.getBytes(),
-                                                               Base64.NO_WRAP));
+    static public int copy(final InputStream in,
+                           final OutputStream out) throws IOException {
+        return copy(in, out, mCopyBufferSize, null);
+    }
+
+    /**
+     * Copy the contents of an InputStream into an OutputStream,
+     * reporting each write to @a progress, which may be null.
+     * Throws DownloadProgress.CancelledException if the download is
+     * cancelled part way through.
+     */
+    static public int copy(final InputStream in,
+                           final OutputStream out,
+                           final DownloadProgress progress) throws IOException {
+        return copy(in, out, mCopyBufferSize, progress);
     }
 
     /**
-     * Copy the contents of an InputStream into an OutputStream.
+     * Copy the contents of an InputStream into an OutputStream.  A
+     * file is copied to a file with FileChannel.transferFrom(), so
+     * the data never passes through the Java heap.  Any other stream
+     * is copied to a file through a direct buffer of bufferSize bytes,
+     * which is filled before each write to keep the number of system
+     * calls down.  That isn't zero-copy: the channel that
+     * Channels.newChannel() wraps around the stream still reads into
+     * a heap array and copies it into the buffer, which only saves
+     * the file channel copying a heap buffer again to write it.
+     * Streams that aren't files use a byte array of the same size.
      * 
      * @param in
      * @param out
-     * @return
+     * @param bufferSize
+     * @return the number of bytes copied
      * @throws IOException
      */
     static public int copy(final InputStream in,
-                           final OutputStream out) throws IOException {
-        final int BUFFER_LENGTH = 1024;
-        final byte[] buffer = new byte[BUFFER_LENGTH];
-        int totalRead = 0;
-        int read = 0;
-
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-            totalRead += read;			
+                           final OutputStream out,
+                           final int bufferSize) throws IOException {
+        return copy(in, out, bufferSize, null);
+    }
+
+    /**
+     * Copy the contents of an InputStream into an OutputStream as
+     * described above, reporting each write to @a progress unless
+     * it's null.  The time spent reading and writing is added to the
+     * transfer and write phases of the calling thread's
+     * DownloadStats.Trace, if it has one.
+     */
+    private static int copy(final InputStream in,
+                            final OutputStream out,
+                            final int bufferSize,
+                            final DownloadProgress progress) throws IOException {
+        final DownloadStats.Trace trace = DownloadStats.current();
+
+        if (!(out instanceof FileOutputStream)) {
+            final byte[] buffer = new byte[bufferSize];
+            int totalRead = 0;
+            int read = 0;
+            long writeNanos = 0;
+            final long start = System.nanoTime();
+
+            while ((read = in.read(buffer)) != -1) {
+                final long written = System.nanoTime();
+                out.write(buffer, 0, read);
+                writeNanos += System.nanoTime() - written;
+                totalRead += read;
+                if (progress != null)
+                    progress.add(read);
+            }
+
+            addCopyTimes(trace, System.nanoTime() - start, writeNanos);
+            return totalRead;
+        }
+
+        final FileChannel sink = ((FileOutputStream) out).getChannel();
+
+        if (in instanceof FileInputStream) {
+            // A local file copies too quickly to be worth reporting
+            // as it goes.
+            final long transferred =
+                transfer(((FileInputStream) in).getChannel(), sink);
+            if (progress != null)
+                progress.add(transferred);
+            return (int) transferred;
+        }
+
+        final ReadableByteChannel source = Channels.newChannel(in);
+        final ByteBuffer buffer = directBuffer(bufferSize);
+        long totalRead = 0;
+        long writeNanos = 0;
+        final long start = System.nanoTime();
+
+        for (boolean eof = false; !eof; ) {
+            // Fill the buffer so each write() moves as much as it can.
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (progress != null && progress.isCancelled())
+                    throw new DownloadProgress.CancelledException();
+                if (source.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+
+            buffer.flip();
+            final int filled = buffer.remaining();
+            totalRead += filled;
+            final long written = System.nanoTime();
+            while (buffer.hasRemaining())
+                sink.write(buffer);
+            writeNanos += System.nanoTime() - written;
+            if (progress != null)
+                progress.add(filled);
         }
 
-        return totalRead;
+        addCopyTimes(trace, System.nanoTime() - start, writeNanos);
+        return (int) totalRead;
+    }
+
+    /**
+     * Add a copy that took @a totalNanos nanoseconds, @a writeNanos
+     * of them writing, to @a trace unless it's null.  The rest of the
+     * time was spent waiting for the data to arrive.
+     */
+    private static void addCopyTimes(DownloadStats.Trace trace,
+                                     long totalNanos,
+                                     long writeNanos) {
+        if (trace != null) {
+            trace.add(DownloadStats.TRANSFER, totalNanos - writeNanos);
+            trace.add(DownloadStats.WRITE, writeNanos);
+        }
+    }
+
+    /**
+     * Transfer the rest of the source file to the sink's current
+     * position and advance both channels past the copied bytes.
+     */
+    private static long transfer(final FileChannel source,
+                                 final FileChannel sink) throws IOException {
+        final long count = source.size() - source.position();
+        final long start = sink.position();
+        long position = start;
+
+        // transferFrom() may move fewer bytes than requested, so loop
+        // until they've all been copied.
+        while (position - start < count) {
+            long transferred =
+                sink.transferFrom(source,
+                                  position,
+                                  count - (position - start));
+            if (transferred <= 0)
+                break;
+            position += transferred;
+        }
+
+        sink.position(position);
+        return position - start;
+    }
+
+    /**
+     * Returns this thread's direct buffer of the given size.
+     */
+    private static ByteBuffer directBuffer(int size) {
+        ByteBuffer buffer = mDirectBuffer.get();
+
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            mDirectBuffer.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Returns a factory for threads named @a name followed by a
+     * number, which run at the Process thread @a priority, e.g.,
+     * THREAD_PRIORITY_BACKGROUND.
+     */
+    public static ThreadFactory makeThreadFactory(final String name,
+                                                  final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(priority);
+                            runnable.run();
+                        }
+                    },
+                    name + "-" + mCount.incrementAndGet());
+            }
+        };
     }
 }